@@ -0,0 +1,28 @@
+package my_chat;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of the message path, always with the GC profiler, so the results include the allocation
+ * rate of every benchmark ("gc.alloc.rate.norm" is the bytes allocated per operation).
+ * The arguments are the usual JMH ones, e.g. a regex of the benchmarks to run, or "-rf json" to save the results for
+ * comparing with a later run.
+ *
+ * @author Elisha
+ */
+public class Benchmarks
+{
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException
+	{
+		var options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
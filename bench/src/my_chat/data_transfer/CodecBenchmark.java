@@ -0,0 +1,125 @@
+package my_chat.data_transfer;
+
+import my_chat.message_types.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding one payload of every message type, with each codec.
+ *
+ * @author Elisha
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark
+{
+	@Param({"serialization", "binary"})
+	public String codecName;
+
+	@Param({"ChatMessage", "BroadcastMessage", "ClientJoinedMessage", "ClientLeftMessage", "InvalidUserMessage",
+			"LoginMessage", "LoginRequestMessage", "LoginResponseMessage", "NameListMessage", "NameRequestMessage",
+			"ReplayEndMessage", "RoomMessage", "JoinRoomMessage", "BatchMessage", "FileChunkMessage"})
+	public String type;
+
+	private MessageCodec codec;
+	private IMessage message;
+	private byte[] payload;
+
+	@Setup
+	public void setUp() throws IOException
+	{
+		codec = MessageCodec.forName(codecName);
+		message = sample(type);
+		payload = codec.encode(message);
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException
+	{
+		return codec.encode(message);
+	}
+
+	@Benchmark
+	public IMessage decode() throws IOException, ClassNotFoundException
+	{
+		return codec.decode(payload, 0, payload.length);
+	}
+
+	/**
+	 * @param type the simple name of a message class.
+	 * @return a typical message of that class.
+	 */
+	static IMessage sample(String type)
+	{
+		switch (type)
+		{
+			case "ChatMessage":
+			{
+				var m = new ChatMessage("alice", "bob", "Are we still meeting at the station at eight?");
+				m.seq = 123_456;
+				return m;
+			}
+			case "BroadcastMessage":
+			{
+				var m = new BroadcastMessage("The server restarts in five minutes.");
+				m.seq = 123_456;
+				return m;
+			}
+			case "ClientJoinedMessage":
+				return new ClientJoinedMessage("alice");
+			case "ClientLeftMessage":
+				return new ClientLeftMessage("alice");
+			case "InvalidUserMessage":
+				return new InvalidUserMessage("alice", "carol");
+			case "LoginMessage":
+				return new LoginMessage("alice", true, 123_456);
+			case "LoginRequestMessage":
+				return new LoginRequestMessage();
+			case "LoginResponseMessage":
+				return new LoginResponseMessage(true, false, "alice", 123_456);
+			case "NameListMessage":
+			{
+				var names = new HashSet<String>();
+				for (int i = 0; i < 20; i++)
+				{
+					names.add("user" + i);
+				}
+				return new NameListMessage("alice", names);
+			}
+			case "NameRequestMessage":
+				return new NameRequestMessage("alice");
+			case "ReplayEndMessage":
+				return new ReplayEndMessage("alice", 123_456, 42);
+			case "RoomMessage":
+				return new RoomMessage("alice", "general", "Are we still meeting at the station at eight?");
+			case "JoinRoomMessage":
+				return new JoinRoomMessage("alice", "general", true);
+			case "BatchMessage":
+			{
+				var messages = new ArrayList<IMessage>();
+				for (int i = 0; i < 64; i++)
+				{
+					messages.add(sample("ChatMessage"));
+				}
+				return new BatchMessage(null, "alice", messages);
+			}
+			case "FileChunkMessage":
+			{
+				var data = new byte[32 << 10];
+				new Random(1).nextBytes(data);
+				return new FileChunkMessage("alice", "bob", 42, 3 * data.length, data, false);
+			}
+			default:
+				throw new IllegalArgumentException("No sample of " + type);
+		}
+	}
+}
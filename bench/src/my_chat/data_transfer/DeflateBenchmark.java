@@ -0,0 +1,92 @@
+package my_chat.data_transfer;
+
+import my_chat.message_types.ChatMessage;
+import my_chat.message_types.IMessage;
+import my_chat.message_types.NameListMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compressing one large frame and decoding it again, with the compressor and decompressor a connection keeps. Run it
+ * through {@link my_chat.Benchmarks} for the bytes allocated per frame: compressing should cost little more than the
+ * compressed frame, and decoding little more than the message.
+ *
+ * @author Elisha
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DeflateBenchmark
+{
+	@Param({"serialization", "binary"})
+	public String codecName;
+
+	/**
+	 * "Log": a chat message of 400 log lines, about 23 KB. "NameList": the names of 5000 clients.
+	 */
+	@Param({"Log", "NameList"})
+	public String type;
+
+	private MessageCodec codec;
+	private byte[] payload;
+	private byte[] compressed;
+	private final Deflate.Compressor compressor = new Deflate.Compressor(Deflate.DEFAULT_MIN_BYTES);
+	private final Deflate.Decompressor decompressor = new Deflate.Decompressor();
+
+	@Setup
+	public void setUp() throws IOException
+	{
+		codec = MessageCodec.forName(codecName);
+		payload = codec.encode(sample(type));
+		compressed = compressor.compress(payload, 0, payload.length);
+	}
+
+	@Benchmark
+	public byte[] compress()
+	{
+		return compressor.compress(payload, 0, payload.length);
+	}
+
+	@Benchmark
+	public IMessage decode() throws IOException, ClassNotFoundException
+	{
+		return decompressor.decode(codec, compressed, Integer.BYTES, compressed.length - Integer.BYTES);
+	}
+
+	/**
+	 * For comparison: decoding the same message when it is not compressed.
+	 */
+	@Benchmark
+	public IMessage decodePlain() throws IOException, ClassNotFoundException
+	{
+		return codec.decode(payload, 0, payload.length);
+	}
+
+	static IMessage sample(String type)
+	{
+		var random = new Random(1);
+		if (type.equals("Log"))
+		{
+			var log = new StringBuilder();
+			for (int i = 0; i < 400; i++)
+			{
+				log.append("2026-10-18 12:00:").append(i % 60).append(" INFO worker-").append(random.nextInt(8))
+						.append(" processed request ").append(random.nextInt(100_000)).append('\n');
+			}
+			return new ChatMessage("alice", "<all>", log.toString());
+		}
+		var names = new HashSet<String>();
+		for (int i = 0; i < 5000; i++)
+		{
+			names.add("user" + random.nextInt(1_000_000));
+		}
+		return new NameListMessage("alice", names);
+	}
+}
@@ -0,0 +1,82 @@
+package my_chat.data_transfer;
+
+import my_chat.message_types.IMessage;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading one frame off a connection and decoding it, as a server's reader does for every message it gets.
+ * Run it through {@link my_chat.Benchmarks} for the bytes allocated per frame: with the binary codec, a chat message
+ * should cost little more than the message and its text.
+ *
+ * @author Elisha
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReceiveBenchmark
+{
+	@Param({"serialization", "binary"})
+	public String codecName;
+
+	@Param({"ChatMessage", "RoomMessage", "NameRequestMessage"})
+	public String type;
+
+	private MessageInput in;
+
+	@Setup
+	public void setUp() throws IOException
+	{
+		var codec = MessageCodec.forName(codecName);
+		var frame = new ByteArrayOutputStream();
+		try (var out = new MessageOutput(frame, codec))
+		{
+			out.writeMessage(CodecBenchmark.sample(type));
+		}
+		in = new MessageInput(new Repeating(frame.toByteArray()), codec);
+	}
+
+	@Benchmark
+	public IMessage readMessage() throws IOException, ClassNotFoundException
+	{
+		return in.readMessage();
+	}
+
+	/**
+	 * A stream that gives the same bytes over and over, without allocating.
+	 */
+	private static final class Repeating extends InputStream
+	{
+		private final byte[] bytes;
+		private int position = 0;
+
+		Repeating(byte[] bytes)
+		{
+			this.bytes = bytes;
+		}
+
+		@Override
+		public int read()
+		{
+			int b = bytes[position] & 0xFF;
+			position = (position + 1) % bytes.length;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length)
+		{
+			int count = Math.min(length, bytes.length - position);
+			System.arraycopy(bytes, position, buffer, offset, count);
+			position = (position + count) % bytes.length;
+			return count;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package my_chat.serverside;
+
+import my_chat.data_transfer.ChatListener;
+import my_chat.data_transfer.MessageCodec;
+import my_chat.message_types.ChatMessage;
+import my_chat.message_types.IMessage;
+import my_chat.message_types.LoginMessage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A message from a client through {@link ChatServer}'s routing, history and fan-out, to in-memory connections that
+ * take each frame's bytes the way a writer does. The sockets are left out, so this measures the server's own cost per
+ * message.
+ *
+ * @author Elisha
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark
+{
+	@Param({"10", "100", "1000"})
+	public int recipients;
+
+	@Param({"serialization", "binary"})
+	public String codecName;
+
+	private ChatServer server;
+	// user0's, which the messages come on
+	private ClientConnection sender;
+
+	@Setup
+	public void setUp(Blackhole blackhole)
+	{
+		server = new ChatServer(new QuietListener(), 1);
+		server.setCodec(MessageCodec.forName(codecName));
+		for (int i = 0; i < recipients; i++)
+		{
+			var connection = new InMemoryConnection(blackhole);
+			server.clientConnected(new LoginMessage("user" + i, true), connection);
+			if (i == 0)
+				sender = connection;
+		}
+	}
+
+	@Benchmark
+	public void broadcast()
+	{
+		server.messageReceived(new ChatMessage("user0", "<all>", "Are we still meeting at the station at eight?"), sender);
+	}
+
+	@Benchmark
+	public void unicast()
+	{
+		server.messageReceived(new ChatMessage("user0", "user1", "Are we still meeting at the station at eight?"), sender);
+	}
+
+	/**
+	 * A connection that hands the bytes of every frame it gets to a blackhole instead of a socket.
+	 */
+	static class InMemoryConnection implements ClientConnection
+	{
+		private final Blackhole blackhole;
+		private final SessionStats stats = new SessionStats();
+
+		InMemoryConnection(Blackhole blackhole)
+		{
+			this.blackhole = blackhole;
+		}
+
+		@Override
+		public void send(Frame frame) throws IOException
+		{
+			byte[] bytes = frame.bytes();
+			stats.sent(bytes.length);
+			blackhole.consume(bytes);
+		}
+
+		@Override
+		public int queueDepth()
+		{
+			return 0;
+		}
+
+		@Override
+		public SessionStats stats()
+		{
+			return stats;
+		}
+
+		@Override
+		public void close()
+		{
+		}
+
+		@Override
+		public boolean isClosed()
+		{
+			return false;
+		}
+	}
+
+	static class QuietListener implements ChatListener
+	{
+		@Override
+		public void messageReceived(IMessage message)
+		{
+		}
+
+		@Override
+		public void messageSent(IMessage message)
+		{
+		}
+
+		@Override
+		public void stat(String message, boolean err)
+		{
+		}
+	}
+}
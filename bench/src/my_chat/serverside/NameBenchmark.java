@@ -0,0 +1,83 @@
+package my_chat.serverside;
+
+import my_chat.message_types.LoginMessage;
+import my_chat.message_types.NameListMessage;
+import my_chat.message_types.NameRequestMessage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The name checks of a login, and the name list or directory page a {@link my_chat.message_types.NameRequestMessage}
+ * gets.
+ *
+ * @author Elisha
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NameBenchmark
+{
+	@Param({"10", "100", "1000"})
+	public int clients;
+
+	private ChatServer server;
+	private final ClientRegistry registry = new ClientRegistry();
+	// user0's, which the requests come on
+	private ClientConnection sender;
+
+	@Setup
+	public void setUp(Blackhole blackhole)
+	{
+		server = new ChatServer(new FanOutBenchmark.QuietListener(), 1);
+		for (int i = 0; i < clients; i++)
+		{
+			var connection = new FanOutBenchmark.InMemoryConnection(blackhole);
+			server.clientConnected(new LoginMessage("user" + i, true), connection);
+			registry.register("user" + i, connection);
+			if (i == 0)
+				sender = connection;
+		}
+	}
+
+	@Benchmark
+	public boolean validName()
+	{
+		return server.isValidName("alice_1990");
+	}
+
+	@Benchmark
+	public boolean invalidName()
+	{
+		return server.isValidName("alice 1990!");
+	}
+
+	@Benchmark
+	public NameListMessage nameList()
+	{
+		return new NameListMessage("user0", registry.names());
+	}
+
+	/**
+	 * The whole request: the list, its routing, and its encoding for the client.
+	 */
+	@Benchmark
+	public void nameRequest()
+	{
+		server.messageReceived(new NameRequestMessage("user0"), sender);
+	}
+
+	/**
+	 * A typeahead lookup: the first page of the names with a prefix, which should cost about the same whatever the
+	 * number of clients.
+	 */
+	@Benchmark
+	public void directoryPage()
+	{
+		server.messageReceived(new NameRequestMessage("user0", "user1", null, 20), sender);
+	}
+}
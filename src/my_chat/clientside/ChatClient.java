@@ -1,15 +1,33 @@
 package my_chat.clientside;
 
+import my_chat.data_transfer.Deflate;
+import my_chat.data_transfer.MessageCodec;
 import my_chat.data_transfer.MessageInput;
 import my_chat.data_transfer.MessageOutput;
+import my_chat.data_transfer.VirtualThreads;
 import my_chat.message_types.*;
 import my_chat.data_transfer.ChatListener;
 import my_chat.serverside.ChatServer;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @author Elisha
@@ -17,18 +35,24 @@ import java.util.regex.Pattern;
 public class ChatClient implements Runnable
 {
 	private String serverAddress;
+	private int port = ChatServer.port;
 	@SuppressWarnings("FieldCanBeLocal")
-	private ObjectInputStream in;
-	private ObjectOutputStream out;
+	private MessageInput in;
+	private MessageOutput out;
+	private Socket socket;
 
 	private String name = "";
+	private MessageCodec codec = MessageCodec.SERIALIZATION;
+	private int compressionMinBytes = Deflate.DEFAULT_MIN_BYTES;
 
 	private final ChatListener listener;
+	private final FileTransfers files;
 
 	public ChatClient(ChatListener listener, String serverAddress)
 	{
 		this.listener = listener;
 		this.serverAddress = serverAddress;
+		this.files = new FileTransfers(this::sendMessage, listener);
 	}
 
 	public void updateServerAddress(String serverAddress)
@@ -36,15 +60,54 @@ public class ChatClient implements Runnable
 		this.serverAddress = serverAddress;
 	}
 
+	/**
+	 * Sets the port of the server, e.g. to connect to one node of a cluster.
+	 * Call this before the client starts.
+	 *
+	 * @param port the port. The default is {@link ChatServer#port}.
+	 */
+	public void setPort(int port)
+	{
+		this.port = port;
+	}
+
+	/**
+	 * Sets the codec used on the wire. It must match the server's codec.
+	 * Call this before the client starts.
+	 *
+	 * @param codec the codec to use. The default is {@link MessageCodec#SERIALIZATION}.
+	 */
+	public void setCodec(MessageCodec codec)
+	{
+		this.codec = codec;
+	}
+
+	/**
+	 * Sets which frames are compressed, see {@link Deflate}. The client says in its login that it takes compressed
+	 * frames, and compresses what it sends if the server says it does too.
+	 * Call this before the client starts.
+	 *
+	 * @param minBytes the smallest payload to compress, or 0 to neither compress nor take compressed frames. The
+	 *                 default is {@link Deflate#DEFAULT_MIN_BYTES}.
+	 */
+	public void setCompression(int minBytes)
+	{
+		this.compressionMinBytes = minBytes;
+	}
+
 	/**
 	 * @param name a new name.
 	 */
 	public void updateName(String name)
 	{
-		synchronized (nameUpdateLock)
+		nameLock.lock();
+		try
 		{
 			this.name = name;
-			nameUpdateLock.notifyAll();
+			nameUpdated.signalAll();
+		} finally
+		{
+			nameLock.unlock();
 		}
 	}
 
@@ -53,14 +116,116 @@ public class ChatClient implements Runnable
 	 */
 	public boolean isValidName(String name)
 	{
-		return Pattern.matches(ChatServer.nameRegexPattern, name);
+		return ChatServer.namePattern.matcher(name).matches();
 	}
 
-	private Object nameUpdateLock = new Object();
+	// locks rather than monitors, so the client does not pin its carrier thread when it runs on a virtual thread
+	private final ReentrantLock nameLock = new ReentrantLock();
+	private final Condition nameUpdated = nameLock.newCondition();
 
-	private boolean running = false;
+	private volatile boolean running = false;
 	private boolean loggedIn = false;
-	private final Object clientRunningLock = new Object();
+	private final ReentrantLock runLock = new ReentrantLock();
+	// orders checking that the client runs against stopping it. Nobody waits for room in the send queue holding it,
+	// so stopping never waits behind a sender
+	private final ReentrantLock sendLock = new ReentrantLock();
+
+	// the send pipeline: callers queue messages, and the writer writes whatever has queued up with a single flush
+	private static final int MAX_WRITE_BATCH = 1024;
+	private static final long STOP_TIMEOUT_MILLIS = 1000;
+	// how often a caller waiting for room in the send queue checks that the connection is still there
+	private static final long ENQUEUE_POLL_MILLIS = 50;
+	// a client goes where it is sent this many times, in case the nodes of a cluster disagree for a moment
+	private static final int MAX_REDIRECTS = 3;
+	// and tries again when the server is busy this many times
+	private static final int MAX_BUSY_RETRIES = 8;
+	private static final long MAX_BUSY_WAIT_MILLIS = 30_000;
+	private int sendQueueCapacity = 4096;
+
+	// who is logged in: the server's name list, kept up to date from the joins and leaves that come after it
+	private final ReentrantLock rosterLock = new ReentrantLock();
+	private HashSet<String> roster;
+	// the sequence number of the last join or leave in the roster
+	private long rosterVersion;
+	// whether the name list was asked for on this connection, and whether it can be, i.e. the client is logged in
+	private boolean rosterRequested, rosterOnline;
+	private final List<CompletableFuture<Set<String>>> rosterWaiters = new ArrayList<>();
+	// the directory queries sent and not yet answered, in the order they were queued, which the server answers them in
+	private final ConcurrentLinkedQueue<CompletableFuture<NameListMessage>> lookups = new ConcurrentLinkedQueue<>();
+	// keeps the queries queued in the order they are added to lookups
+	private final ReentrantLock lookupLock = new ReentrantLock();
+	private volatile SendQueue outgoing;
+
+	/**
+	 * The queue of a connection's writer.
+	 */
+	private static final class SendQueue
+	{
+		final LinkedBlockingQueue<Outgoing> items;
+		// set once the writer is done with the queue, because the connection was closed or broke, or by a caller that
+		// gave up on it: whoever waits for room in the queue stops waiting, and whatever is queued after it fails
+		volatile boolean closed = false;
+
+		SendQueue(int capacity)
+		{
+			items = new LinkedBlockingQueue<>(capacity);
+		}
+	}
+
+	/**
+	 * A queued message and the future of its send. A null message closes the connection.
+	 */
+	private static final class Outgoing
+	{
+		final IClientMessage message;
+		final CompletableFuture<Void> sent = new CompletableFuture<>();
+
+		Outgoing(IClientMessage message)
+		{
+			this.message = message;
+		}
+	}
+
+	/**
+	 * Sets how many messages may wait to be written. A caller that sends while the queue is full waits for room,
+	 * or until the connection is closed. Stopping the client does not wait for it.
+	 * Call this before the client starts.
+	 *
+	 * @param capacity the capacity. The default is 4096.
+	 */
+	public void setSendQueue(int capacity)
+	{
+		this.sendQueueCapacity = capacity;
+	}
+
+	// the rest of the batch the server sent last
+	private Iterator<? extends IMessage> batch = Collections.emptyIterator();
+	private boolean inBatch = false;
+
+	// the newest message the client is sure it has seen everything up to
+	private volatile long lastSeq = 0;
+	// while the server replays what was missed: the last replayed message, and the newest live message
+	private boolean replaying = false;
+	private long replayUpToSeq = 0, liveSeq = 0;
+
+	/**
+	 * @return the sequence number the client resumes from when it logs in again.
+	 */
+	public long getLastSeq()
+	{
+		return lastSeq;
+	}
+
+	/**
+	 * Makes the next login ask the server for every message after seq, such as when a new client continues the
+	 * session of an old one. Call this before the client starts.
+	 *
+	 * @param seq a value of {@link #getLastSeq()}, or 0 to not catch up.
+	 */
+	public void resumeFrom(long seq)
+	{
+		this.lastSeq = seq;
+	}
 
 	/**
 	 * Start the Client.
@@ -73,61 +238,65 @@ public class ChatClient implements Runnable
 	 * }
 	 * </pre>
 	 * where 'client' is an instance of this class.
+	 * Many clients in one JVM can each run on a virtual thread instead, with
+	 * {@link my_chat.data_transfer.VirtualThreads#start}.
 	 */
 	@Override
 	public void run()
 	{
-		synchronized (clientRunningLock)
+		runLock.lock();
+		try
 		{
 			listener.stat("Client starting ...", false);
 
 			try
 			{
-				var socket = new Socket(serverAddress, ChatServer.port);
-				out = new ObjectOutputStream(socket.getOutputStream());
-				in = new ObjectInputStream(socket.getInputStream());
-
-				running = true;
-
+				String host = serverAddress;
+				int hostPort = port;
+				connect(host, hostPort);
 				listener.stat("Client started", false);
 
-				if (name != null && !name.trim().equals(""))
-					sendMessage(new LoginMessage(name, true));
-
-				// log in
-				while (!loggedIn)
+				// a node of a cluster sends the client to the node its name belongs on, and a busy server says when
+				// to come back
+				IServerMessage refusal;
+				int redirects = 0, retries = 0;
+				while ((refusal = logIn()) != null)
 				{
-					Object obj = in.readObject();
-					if (obj instanceof IServerMessage)
+					disconnect();
+					if (refusal instanceof ServerBusyMessage)
 					{
-						IServerMessage sm = (IServerMessage) obj;
-						messageReceived(sm);
-
-						if (sm instanceof LoginResponseMessage)
+						if (++retries > MAX_BUSY_RETRIES)
 						{
-							LoginResponseMessage am = (LoginResponseMessage) sm;
-							if (am.accepted)
-							{
-								loggedIn = true;
-							}
-						} else if (sm instanceof LoginRequestMessage)
-						{
-							synchronized (nameUpdateLock)
-							{
-								nameUpdateLock.wait();
-								sendMessage(new LoginMessage(name, true));
-							}
+							listener.stat("The server is still busy. Exiting.", true);
+							return;
 						}
+						// at least as long as the server asked, doubling each time, and spread out so the clients it
+						// turned away do not all come back at once
+						long wait = Math.min(((ServerBusyMessage) refusal).retryAfterMillis << (retries - 1),
+								MAX_BUSY_WAIT_MILLIS);
+						wait += ThreadLocalRandom.current().nextLong(wait + 1);
+						listener.stat("The server is busy. Trying again in " + wait + " ms", false);
+						Thread.sleep(wait);
 					} else
 					{
-						listener.stat("A non-server send was received. Message dropped.", true);
+						if (++redirects > MAX_REDIRECTS)
+						{
+							listener.stat("Too many redirects. Exiting.", true);
+							return;
+						}
+						String redirect = ((LoginResponseMessage) refusal).redirect;
+						int colon = redirect.lastIndexOf(':');
+						host = redirect.substring(0, colon);
+						hostPort = Integer.parseInt(redirect.substring(colon + 1));
+						listener.stat("Redirected to " + redirect, false);
 					}
+					connect(host, hostPort);
 				}
 
 				// send / receive messages
 				while (running)
 				{
-					Object obj = in.readObject();
+					IMessage obj = readMessage();
 					if (obj instanceof IServerMessage)
 					{
 						IServerMessage sm = (IServerMessage) obj;
@@ -151,30 +320,201 @@ public class ChatClient implements Runnable
 			{
 				stop();
 			}
+		} finally
+		{
+			runLock.unlock();
 		}
 	}
 
+	/**
+	 * Connects to a server and starts the writer.
+	 */
+	private void connect(String host, int port) throws IOException
+	{
+		socket = new Socket(host, port);
+		out = new MessageOutput(new BufferedOutputStream(socket.getOutputStream(), 1 << 16), codec);
+		in = new MessageInput(new BufferedInputStream(socket.getInputStream()), codec);
+		// as the login says
+		in.setDecompression(compressionMinBytes > 0);
+
+		var queue = new SendQueue(sendQueueCapacity);
+		var output = out;
+		outgoing = queue;
+		running = true;
+		resetRoster();
+		// the pages of the last connection never come, and its transfers are over
+		failLookups(new IOException("Disconnected"));
+		files.failAll(new IOException("Disconnected"));
+		VirtualThreads.start(() -> write(queue, output));
+	}
+
+	/**
+	 * Closes the connection before connecting again, after the writer has written what was queued, if the server
+	 * has not closed it already.
+	 */
+	private void disconnect()
+	{
+		var queue = outgoing;
+		var close = new Outgoing(null);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOP_TIMEOUT_MILLIS);
+		if (!enqueue(queue, close, STOP_TIMEOUT_MILLIS))
+		{
+			abandon(queue);
+			return;
+		}
+		try
+		{
+			close.sent.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			abandon(queue);
+		} catch (ExecutionException | TimeoutException e)
+		{
+			abandon(queue);
+		}
+	}
+
+	/**
+	 * Logs in with the client's name, waiting for a new name each time one is not accepted.
+	 *
+	 * @return null once logged in, or else why the server did not take the client: a {@link LoginResponseMessage}
+	 * with the {@link LoginResponseMessage#redirect} to log in at instead, or a {@link ServerBusyMessage}.
+	 */
+	private IServerMessage logIn() throws IOException, ClassNotFoundException, InterruptedException
+	{
+		// the name of the last login that was sent, and whether its response is still due.
+		String triedName = null;
+		boolean loginPending = false;
+
+		nameLock.lock();
+		try
+		{
+			if (name != null && !name.trim().equals(""))
+			{
+				triedName = name;
+				sendMessage(loginMessage());
+				loginPending = true;
+			}
+		} finally
+		{
+			nameLock.unlock();
+		}
+
+		while (!loggedIn)
+		{
+			IMessage obj = readMessage();
+			if (obj instanceof IServerMessage)
+			{
+				IServerMessage sm = (IServerMessage) obj;
+				messageReceived(sm);
+
+				if (sm instanceof LoginRequestMessage)
+				{
+					if (compressionMinBytes > 0 && Deflate.NAME.equals(((LoginRequestMessage) sm).compression))
+						out.setCompressor(new Deflate.Compressor(compressionMinBytes));
+				} else if (sm instanceof LoginResponseMessage)
+				{
+					LoginResponseMessage am = (LoginResponseMessage) sm;
+					loginPending = false;
+					if (am.accepted)
+					{
+						loggedIn = true;
+						loginAccepted(am);
+						rosterOnline();
+					} else if (am.redirect != null)
+					{
+						return am;
+					}
+				} else if (sm instanceof ServerBusyMessage)
+				{
+					return sm;
+				}
+
+				// wait for a new name if there is no login on the way
+				if (!loggedIn && !loginPending)
+				{
+					nameLock.lock();
+					try
+					{
+						while (name == null || name.trim().equals("") || name.equals(triedName))
+							nameUpdated.await();
+						triedName = name;
+						sendMessage(loginMessage());
+						loginPending = true;
+					} finally
+					{
+						nameLock.unlock();
+					}
+				}
+			} else
+			{
+				listener.stat("A non-server send was received. Message dropped.", true);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return a login with the client's name, asking for what it missed and saying which compression it takes.
+	 */
+	private LoginMessage loginMessage()
+	{
+		return new LoginMessage(name, true, lastSeq, compressionMinBytes > 0 ? Deflate.NAME : null);
+	}
+
 	/**
 	 * Stops the client and logs out.
+	 * The messages queued so far are still sent. This waits a short while for them to be written, and then closes
+	 * the connection whether they were or not, e.g. when the server stopped reading.
 	 */
-	public synchronized void stop()
+	public void stop()
 	{
-		listener.stat("Stopping ...", false);
-		if (loggedIn)
+		SendQueue queue = null;
+		boolean logout = false;
+		sendLock.lock();
+		try
 		{
-			sendMessage(new LoginMessage(name, false));
-			loggedIn = false;
+			listener.stat("Stopping ...", false);
+			if (running)
+			{
+				// nothing more is queued from here on
+				running = false;
+				queue = outgoing;
+				logout = loggedIn;
+				loggedIn = false;
+			}
+		} finally
+		{
+			sendLock.unlock();
 		}
 
-		if (out != null)
+		if (queue != null)
+		{
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOP_TIMEOUT_MILLIS);
+			if (logout)
+				enqueue(queue, new Outgoing(new LoginMessage(name, false)), STOP_TIMEOUT_MILLIS);
+			var close = new Outgoing(null);
 			try
 			{
-				out.close();
-			} catch (IOException e)
+				if (!enqueue(queue, close, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())))
+					abandon(queue);
+				else
+					close.sent.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			} catch (InterruptedException e)
 			{
-				e.printStackTrace();
+				Thread.currentThread().interrupt();
+				abandon(queue);
+			} catch (ExecutionException | TimeoutException e)
+			{
+				// the connection is gone or stuck either way
+				abandon(queue);
 			}
-		running = false;
+		}
+		resetRoster();
+		failRosterWaiters(new IOException("Client is not running"));
+		failLookups(new IOException("Client is not running"));
+		files.failAll(new IOException("Client is not running"));
 		listener.stat("Client stopped", false);
 	}
 
@@ -190,10 +530,11 @@ public class ChatClient implements Runnable
 	 * Send a send to all the other users. You can only call this after the client has started.
 	 *
 	 * @param message the send to send.
+	 * @return a future that completes once the message was written to the socket.
 	 */
-	public synchronized void messageAll(String message)
+	public CompletableFuture<Void> messageAll(String message)
 	{
-		sendMessage(new ChatMessage(name, null, message));
+		return sendMessage(new ChatMessage(name, null, message));
 	}
 
 	/**
@@ -201,46 +542,582 @@ public class ChatClient implements Runnable
 	 *
 	 * @param dest    the user to send this send to.
 	 * @param message the send to send.
+	 * @return a future that completes once the message was written to the socket.
+	 */
+	public CompletableFuture<Void> messageOne(String dest, String message)
+	{
+		return sendMessage(new ChatMessage(name, dest, message));
+	}
+
+	/**
+	 * Joins a room. The server answers with a {@link JoinRoomMessage}, to the room's members too.
+	 *
+	 * @param room the room. Room names follow the same rules as user names.
+	 * @return a future that completes once the message was written to the socket.
+	 */
+	public CompletableFuture<Void> joinRoom(String room)
+	{
+		return sendMessage(new JoinRoomMessage(name, room, true));
+	}
+
+	/**
+	 * Leaves a room.
+	 *
+	 * @param room the room.
+	 * @return a future that completes once the message was written to the socket.
+	 */
+	public CompletableFuture<Void> leaveRoom(String room)
+	{
+		return sendMessage(new JoinRoomMessage(name, room, false));
+	}
+
+	/**
+	 * Offers a file to another user, and sends it once they accept it, only as fast as they take it. See
+	 * {@link FileTransfers}.
+	 *
+	 * @param dest the user to send the file to.
+	 * @param file the file.
+	 * @return a future that completes once the whole file was written to the socket, or completes exceptionally if the
+	 * user declines it or leaves, or the client stops first.
+	 */
+	public CompletableFuture<Void> sendFile(String dest, Path file)
+	{
+		return files.send(name, dest, file);
+	}
+
+	/**
+	 * Accepts a file another user offered, which the listener got as a {@link FileOfferMessage}.
+	 *
+	 * @param offer  the offer.
+	 * @param target the file to write it to. It is replaced if it exists.
+	 * @return a future that completes once the whole file was written, or completes exceptionally if it could not be,
+	 * in which case what was written of it is deleted.
+	 */
+	public CompletableFuture<Path> acceptFile(FileOfferMessage offer, Path target)
+	{
+		return files.accept(name, offer, target);
+	}
+
+	/**
+	 * Declines a file another user offered.
+	 *
+	 * @param offer the offer.
+	 */
+	public void declineFile(FileOfferMessage offer)
+	{
+		files.decline(name, offer);
+	}
+
+	/**
+	 * Send a send to everyone in a room. The client must have joined the room.
+	 *
+	 * @param room    the room.
+	 * @param message the send to send.
+	 * @return a future that completes once the message was written to the socket.
 	 */
-	public synchronized void messageOne(String dest, String message)
+	public CompletableFuture<Void> messageRoom(String room, String message)
 	{
-		sendMessage(new ChatMessage(name, dest, message));
+		return sendMessage(new RoomMessage(name, room, message));
 	}
 
 	/**
-	 * Asks the server to send a list of all the users.
+	 * Posts many messages to all the other users at once, in one frame.
+	 *
+	 * @param messages the messages, in order.
+	 * @return a future that completes once the messages were written to the socket.
 	 */
-	public synchronized void listNames()
+	public CompletableFuture<Void> messageAll(List<String> messages)
 	{
-		sendMessage(new NameRequestMessage(name));
+		var batch = new ArrayList<ChatMessage>(messages.size());
+		for (var message : messages)
+		{
+			batch.add(new ChatMessage(name, null, message));
+		}
+		return sendBatch(batch);
 	}
 
 	/**
-	 * Deals with outgoing messages.
+	 * Sends many messages at once, in one frame. The server handles them in order, with no other client's messages
+	 * between them.
+	 *
+	 * @param messages the messages, in order. They cannot be logins or batches.
+	 * @return a future that completes once the messages were written to the socket.
+	 * @throws IllegalArgumentException if one of the messages is a login or a batch.
 	 */
-	private void sendMessage(IClientMessage message)
+	public CompletableFuture<Void> sendBatch(List<? extends IClientMessage> messages)
 	{
-		if (!running)
+		for (var message : messages)
 		{
-			listener.stat("Client is not running!", true);
-			return;
+			if (message instanceof LoginMessage || message instanceof BatchMessage)
+				throw new IllegalArgumentException("Cannot batch a " + message.getClass().getSimpleName());
+		}
+		return sendMessage(new BatchMessage(name, null, new ArrayList<>(messages)));
+	}
+
+	/**
+	 * Lists all the users. The client asks the server for them the first time, and from then on keeps them up to date
+	 * from the joins and leaves it is sent, so it answers without asking again.
+	 *
+	 * @return a future of the names, already complete unless the client still waits for the server's list. It
+	 * completes exceptionally if the client is not running, or stops first.
+	 */
+	public CompletableFuture<Set<String>> listNames()
+	{
+		var names = new CompletableFuture<Set<String>>();
+		boolean request;
+		rosterLock.lock();
+		try
+		{
+			if (!running)
+			{
+				names.completeExceptionally(new IOException("Client is not running"));
+				return names;
+			}
+			if (roster != null)
+			{
+				names.complete(Collections.unmodifiableSet(new HashSet<>(roster)));
+				return names;
+			}
+			rosterWaiters.add(names);
+			request = rosterOnline && !rosterRequested;
+			rosterRequested |= request;
+		} finally
+		{
+			rosterLock.unlock();
 		}
+		if (request)
+			requestRoster();
+		return names;
+	}
+
+	/**
+	 * Looks up the users whose names start with a prefix, a page at a time, in order. The server finds them without
+	 * going through every name, so this suits a typeahead on a busy server, where {@link #listNames()} would fetch
+	 * them all.
+	 *
+	 * @param prefix what the names start with, or null for any name.
+	 * @param after  the {@link NameListMessage#next} of the last page, or null for the first page.
+	 * @param limit  the most names to get. The server may send fewer.
+	 * @return a future of the page, which completes exceptionally if the client stops or loses its connection first.
+	 */
+	public CompletableFuture<NameListMessage> findNames(String prefix, String after, int limit)
+	{
+		if (limit <= 0)
+			throw new IllegalArgumentException("Invalid limit: " + limit);
+		var page = new CompletableFuture<NameListMessage>();
+		CompletableFuture<Void> sent;
+		// queued in the same order as the requests
+		lookupLock.lock();
 		try
 		{
-			out.writeObject(message);
-			out.flush();
-			listener.messageSent(message);
+			lookups.add(page);
+			sent = sendMessage(new NameRequestMessage(name, prefix, after, limit));
+		} finally
+		{
+			lookupLock.unlock();
+		}
+		sent.exceptionally(e -> {
+			// no page comes for it
+			lookups.remove(page);
+			page.completeExceptionally(e);
+			return null;
+		});
+		return page;
+	}
+
+	private void failLookups(Throwable cause)
+	{
+		CompletableFuture<NameListMessage> lookup;
+		while ((lookup = lookups.poll()) != null)
+		{
+			lookup.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Forgets the roster of the last connection. The next one starts without it, as it may have missed joins and leaves.
+	 */
+	private void resetRoster()
+	{
+		rosterLock.lock();
+		try
+		{
+			roster = null;
+			rosterVersion = 0;
+			rosterRequested = false;
+			rosterOnline = false;
+		} finally
+		{
+			rosterLock.unlock();
+		}
+	}
+
+	/**
+	 * Asks for the name list once logged in, if someone is waiting for it.
+	 */
+	private void rosterOnline()
+	{
+		boolean request;
+		rosterLock.lock();
+		try
+		{
+			rosterOnline = true;
+			request = !rosterWaiters.isEmpty() && !rosterRequested;
+			rosterRequested |= request;
+		} finally
+		{
+			rosterLock.unlock();
+		}
+		if (request)
+			requestRoster();
+	}
+
+	private void requestRoster()
+	{
+		sendMessage(new NameRequestMessage(name)).exceptionally(e -> {
+			failRosterWaiters(e);
+			return null;
+		});
+	}
+
+	private void failRosterWaiters(Throwable cause)
+	{
+		List<CompletableFuture<Set<String>>> waiters;
+		rosterLock.lock();
+		try
+		{
+			waiters = new ArrayList<>(rosterWaiters);
+			rosterWaiters.clear();
+		} finally
+		{
+			rosterLock.unlock();
+		}
+		for (var waiter : waiters)
+		{
+			waiter.completeExceptionally(cause);
+		}
+	}
+
+	/**
+	 * Keeps the roster up to date: a name list replaces it, and a join or leave that is newer than it changes it.
+	 */
+	private void updateRoster(IServerMessage message)
+	{
+		Set<String> names = null;
+		List<CompletableFuture<Set<String>>> waiters = null;
+		rosterLock.lock();
+		try
+		{
+			if (message instanceof NameListMessage)
+			{
+				var list = (NameListMessage) message;
+				roster = new HashSet<>(list.getNames());
+				rosterVersion = list.version;
+				if (!rosterWaiters.isEmpty())
+				{
+					names = Collections.unmodifiableSet(new HashSet<>(roster));
+					waiters = new ArrayList<>(rosterWaiters);
+					rosterWaiters.clear();
+				}
+			} else if (roster != null && ((BroadcastMessage) message).seq > rosterVersion)
+			{
+				// a replayed join or leave is already in the list
+				if (message instanceof ClientJoinedMessage)
+					roster.add(((ClientJoinedMessage) message).name);
+				else
+					roster.remove(((ClientLeftMessage) message).name);
+				rosterVersion = ((BroadcastMessage) message).seq;
+			}
+		} finally
+		{
+			rosterLock.unlock();
+		}
+		// outside the lock, as the waiters may go on to do anything
+		if (waiters != null)
+		{
+			for (var waiter : waiters)
+			{
+				waiter.complete(names);
+			}
+		}
+	}
+
+	/**
+	 * Deals with outgoing messages: queues a message for the writer.
+	 *
+	 * @return a future that completes once the message was written to the socket, or completes exceptionally if it
+	 * could not be.
+	 */
+	private CompletableFuture<Void> sendMessage(IClientMessage message)
+	{
+		var item = new Outgoing(message);
+		SendQueue queue;
+		sendLock.lock();
+		try
+		{
+			if (!running)
+			{
+				listener.stat("Client is not running!", true);
+				item.sent.completeExceptionally(new IOException("Client is not running"));
+				return item.sent;
+			}
+			queue = outgoing;
+			if (queue.items.offer(item))
+				return item.sent;
+		} finally
+		{
+			sendLock.unlock();
+		}
+		// the queue is full: wait for room without the lock, so the client can still be stopped
+		enqueue(queue, item, Long.MAX_VALUE);
+		return item.sent;
+	}
+
+	/**
+	 * Queues a message, waiting for room if the queue is full. The wait ends, and the message's future fails, once
+	 * the queue is closed or after the timeout.
+	 *
+	 * @return whether the message was queued.
+	 */
+	private boolean enqueue(SendQueue queue, Outgoing item, long timeoutMillis)
+	{
+		long deadline = timeoutMillis == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		try
+		{
+			while (!queue.items.offer(item, ENQUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS))
+			{
+				if (queue.closed)
+				{
+					item.sent.completeExceptionally(new IOException("The connection was closed"));
+					return false;
+				}
+				if (deadline != Long.MAX_VALUE && deadline - System.nanoTime() <= 0)
+				{
+					item.sent.completeExceptionally(new TimeoutException("The send queue stayed full"));
+					return false;
+				}
+			}
+			// the writer may be done with the queue already, and then nobody takes this out of it
+			if (queue.closed && queue.items.remove(item))
+			{
+				item.sent.completeExceptionally(new IOException("The connection was closed"));
+				return false;
+			}
+			return true;
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			item.sent.completeExceptionally(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Gives up on a connection whose writer did not get to the close: closes the socket under it, which ends a write
+	 * the server does not read, and tells whoever waits for room in its queue to stop waiting.
+	 */
+	private void abandon(SendQueue queue)
+	{
+		queue.closed = true;
+		closeSocket();
+	}
+
+	/**
+	 * The writer: takes whatever has queued up, writes it into the buffer and flushes once, until it is told to
+	 * close the connection. Each connection has its own writer, with that connection's queue and stream.
+	 */
+	private void write(SendQueue queue, MessageOutput out)
+	{
+		var batch = new ArrayList<Outgoing>(MAX_WRITE_BATCH);
+		boolean broken = true;
+		try
+		{
+			while (true)
+			{
+				batch.add(queue.items.take());
+				queue.items.drainTo(batch, MAX_WRITE_BATCH - 1);
+
+				Outgoing close = null;
+				int written = 0;
+				for (var item : batch)
+				{
+					if (item.message == null)
+					{
+						// whatever is queued behind it fails below
+						close = item;
+						break;
+					}
+					out.writeMessage(item.message);
+					written++;
+				}
+				out.flush();
+
+				var sent = batch.subList(0, written);
+				for (var item : sent)
+				{
+					listener.messageSent(item.message);
+					item.sent.complete(null);
+				}
+				sent.clear();
+
+				if (close != null)
+				{
+					batch.remove(0);
+					out.close();
+					broken = false;
+					close.sent.complete(null);
+					break;
+				}
+			}
+		} catch (IOException e)
+		{
+			listener.stat("IOException while sending: " + e.getMessage(), true);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+
+		// nothing more can be sent on this connection. A caller waiting for room in the queue sees it is closed.
+		if (broken && queue == outgoing) // unless the client has connected again since
+			running = false;
+		queue.closed = true;
+		var error = new IOException("The connection was closed");
+		queue.items.drainTo(batch);
+		for (var item : batch)
+		{
+			item.sent.completeExceptionally(error);
+		}
+		if (broken)
+		{
+			try
+			{
+				out.close();
+			} catch (IOException e)
+			{
+				// it is broken already
+			}
+		}
+	}
+
+	private void closeSocket()
+	{
+		try
+		{
+			socket.close();
 		} catch (IOException e)
 		{
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Reads the next message, taking the messages of a batch one by one. The listener's
+	 * {@link ChatListener#endOfBatch()} is called once all the messages of a batch were handled.
+	 */
+	private IMessage readMessage() throws IOException, ClassNotFoundException
+	{
+		if (batch.hasNext())
+			return batch.next();
+		if (inBatch)
+		{
+			inBatch = false;
+			listener.endOfBatch();
+		}
+
+		while (true)
+		{
+			IMessage obj = in.readMessage();
+			if (!(obj instanceof BatchMessage))
+				return obj;
+			batch = ((BatchMessage) obj).messages.iterator();
+			if (batch.hasNext())
+			{
+				inBatch = true;
+				return batch.next();
+			}
+		}
+	}
+
+	/**
+	 * Starts tracking sequence numbers for a new session.
+	 */
+	private void loginAccepted(LoginResponseMessage response)
+	{
+		// the server's history went back, e.g. it restarted without its log
+		if (lastSeq > response.lastSeq)
+			lastSeq = response.lastSeq;
+
+		if (lastSeq > 0)
+		{
+			// the server replays everything up to response.lastSeq and then sends a ReplayEndMessage
+			replaying = true;
+			replayUpToSeq = response.lastSeq;
+			liveSeq = 0;
+		} else
+		{
+			lastSeq = response.lastSeq;
+		}
+	}
+
 	/**
 	 * Deals with incoming messages.
 	 */
 	private void messageReceived(IServerMessage message)
 	{
+		if (message instanceof HeartbeatMessage)
+		{
+			// the server drops clients that do not answer; the listener need not hear of it
+			if (!((HeartbeatMessage) message).reply)
+				sendMessage(new HeartbeatMessage(name, message.getSource(), true));
+			return;
+		}
+		// a file on its way, which the listener need not hear of chunk by chunk
+		if (message instanceof FileAcceptMessage)
+		{
+			files.accepted((FileAcceptMessage) message);
+			return;
+		}
+		if (message instanceof FileChunkMessage)
+		{
+			files.received((FileChunkMessage) message);
+			return;
+		}
+		if (message instanceof InvalidUserMessage)
+			files.gone(((InvalidUserMessage) message).getUser());
+		else if (message instanceof ClientLeftMessage)
+			files.gone(((ClientLeftMessage) message).name);
+
+		long seq = 0;
+		if (message instanceof ChatMessage)
+			seq = ((ChatMessage) message).seq;
+		else if (message instanceof BroadcastMessage)
+			seq = ((BroadcastMessage) message).seq;
+
+		if (message instanceof NameListMessage && ((NameListMessage) message).page)
+		{
+			var lookup = lookups.poll();
+			if (lookup != null)
+				lookup.complete((NameListMessage) message);
+		} else if (message instanceof NameListMessage || message instanceof ClientJoinedMessage
+				|| message instanceof ClientLeftMessage)
+		{
+			updateRoster(message);
+		}
+
+		if (message instanceof ReplayEndMessage)
+		{
+			replaying = false;
+			lastSeq = Math.max(lastSeq, Math.max(((ReplayEndMessage) message).upToSeq, liveSeq));
+		} else if (seq > 0)
+		{
+			// live messages overtake the replay, so they only count once it is over
+			if (replaying && seq > replayUpToSeq)
+				liveSeq = Math.max(liveSeq, seq);
+			else
+				lastSeq = Math.max(lastSeq, seq);
+		}
+
 		listener.messageReceived(message);
 	}
 }
@@ -0,0 +1,366 @@
+package my_chat.clientside;
+
+import my_chat.data_transfer.ChatListener;
+import my_chat.data_transfer.VirtualThreads;
+import my_chat.message_types.FileAcceptMessage;
+import my_chat.message_types.FileChunkMessage;
+import my_chat.message_types.FileOfferMessage;
+import my_chat.message_types.FileTransferMessage;
+import my_chat.message_types.IClientMessage;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * The file transfers of a client, both ways, see {@link FileTransferMessage}.
+ * <p>
+ * A file goes in chunks of {@link #CHUNK_SIZE}, under credit-based flow control: the receiver lets the sender have
+ * {@link #WINDOW} chunks on the way, and gives it more as it writes them to disk. So a transfer never has more than a
+ * window of chunks in the server, however slow the receiver, and chat messages only ever wait behind that much. The
+ * sender also waits for each chunk to be written to the socket before it reads the next, so a chat message queued
+ * meanwhile goes out after at most one chunk of each transfer.
+ * <p>
+ * Transfers belong to a connection: they fail when the client stops or connects again, or when the other end leaves.
+ *
+ * @author Elisha
+ */
+final class FileTransfers
+{
+	static final int CHUNK_SIZE = 32 << 10;
+	static final int WINDOW = 4;
+	// a sender that gets no credit for this long gives up, e.g. because the receiver lost the transfer
+	private static final long CREDIT_TIMEOUT_MILLIS = 60_000;
+
+	private final Function<IClientMessage, CompletableFuture<Void>> send;
+	private final ChatListener listener;
+	private final ConcurrentHashMap<Long, Outgoing> outgoing = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Long, Incoming> incoming = new ConcurrentHashMap<>();
+
+	/**
+	 * @param send     queues a message for the client's writer.
+	 * @param listener the client's listener.
+	 */
+	FileTransfers(Function<IClientMessage, CompletableFuture<Void>> send, ChatListener listener)
+	{
+		this.send = send;
+		this.listener = listener;
+	}
+
+	/**
+	 * Offers a file, and sends it once it is accepted.
+	 *
+	 * @param source the client's name.
+	 * @param dest   the user to send it to.
+	 * @param file   the file.
+	 * @return a future that completes once the whole file was written to the socket.
+	 */
+	CompletableFuture<Void> send(String source, String dest, Path file)
+	{
+		long size;
+		try
+		{
+			size = Files.size(file);
+		} catch (IOException e)
+		{
+			return CompletableFuture.failedFuture(e);
+		}
+
+		Outgoing transfer;
+		long id;
+		do
+		{
+			id = ThreadLocalRandom.current().nextLong();
+			var offer = new FileOfferMessage(source, dest, id, file.getFileName().toString(), size);
+			transfer = new Outgoing(offer, file);
+		} while (outgoing.putIfAbsent(id, transfer) != null);
+
+		var offered = transfer;
+		send.apply(transfer.offer).exceptionally(e -> {
+			fail(offered, e);
+			return null;
+		});
+		return transfer.done;
+	}
+
+	/**
+	 * Accepts a file that was offered, and writes it to a file as it comes.
+	 *
+	 * @param source the client's name.
+	 * @param offer  the offer.
+	 * @param target the file to write. It is replaced if it exists.
+	 * @return a future that completes once the whole file was written.
+	 */
+	CompletableFuture<Path> accept(String source, FileOfferMessage offer, Path target)
+	{
+		if (incoming.containsKey(offer.id))
+			return CompletableFuture.failedFuture(new IllegalStateException("File " + offer.id
+					+ " was already accepted"));
+
+		FileChannel channel;
+		try
+		{
+			channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.WRITE);
+		} catch (IOException e)
+		{
+			decline(source, offer);
+			return CompletableFuture.failedFuture(e);
+		}
+
+		var transfer = new Incoming(offer, target, channel);
+		incoming.put(offer.id, transfer);
+		send.apply(new FileAcceptMessage(source, offer.source, offer.id, true, WINDOW)).exceptionally(e -> {
+			if (incoming.remove(offer.id, transfer))
+				fail(transfer, e);
+			return null;
+		});
+		return transfer.done;
+	}
+
+	/**
+	 * Declines a file that was offered.
+	 *
+	 * @param source the client's name.
+	 * @param offer  the offer.
+	 */
+	void decline(String source, FileOfferMessage offer)
+	{
+		send.apply(new FileAcceptMessage(source, offer.source, offer.id, false, 0));
+	}
+
+	/**
+	 * Deals with the receiver's answer: starts sending, gives the sender more credit, or stops it.
+	 */
+	void accepted(FileAcceptMessage message)
+	{
+		var transfer = outgoing.get(message.id);
+		if (transfer == null || !message.source.equals(transfer.offer.dest))
+			return;
+
+		if (!message.accepted)
+		{
+			fail(transfer, new IOException(message.source + " declined " + transfer.offer.fileName));
+			return;
+		}
+		transfer.credit.release(message.credit);
+		if (!transfer.started)
+		{
+			transfer.started = true;
+			VirtualThreads.start(() -> stream(transfer));
+		}
+	}
+
+	/**
+	 * Writes a chunk of a file this client accepted. Called by the client's reader.
+	 */
+	void received(FileChunkMessage chunk)
+	{
+		var transfer = incoming.get(chunk.id);
+		if (transfer == null || !chunk.source.equals(transfer.offer.source))
+		{
+			// a transfer it gave up on, or never took: the sender should stop
+			send.apply(new FileAcceptMessage(chunk.dest, chunk.source, chunk.id, false, 0));
+			return;
+		}
+
+		try
+		{
+			if (chunk.offset != transfer.received)
+				throw new IOException("Chunk at " + chunk.offset + " of file " + chunk.id + ", expected "
+						+ transfer.received);
+			if (chunk.data.length > transfer.offer.size - transfer.received)
+				throw new IOException("Chunk at " + chunk.offset + " of file " + chunk.id + " goes past its size of "
+						+ transfer.offer.size + " bytes");
+			var data = ByteBuffer.wrap(chunk.data);
+			while (data.hasRemaining())
+			{
+				transfer.channel.write(data, chunk.offset + data.position());
+			}
+			transfer.received += chunk.data.length;
+		} catch (IOException e)
+		{
+			incoming.remove(chunk.id, transfer);
+			send.apply(new FileAcceptMessage(chunk.dest, chunk.source, chunk.id, false, 0));
+			fail(transfer, e);
+			return;
+		}
+
+		if (chunk.last)
+		{
+			incoming.remove(chunk.id, transfer);
+			if (transfer.received == transfer.offer.size)
+			{
+				close(transfer, true);
+				transfer.done.complete(transfer.target);
+			} else
+			{
+				fail(transfer, new EOFException(chunk.source + " stopped sending " + transfer.offer.fileName
+						+ " after " + transfer.received + " of " + transfer.offer.size + " bytes"));
+			}
+		} else if (++transfer.uncredited >= WINDOW / 2)
+		{
+			// credit in batches, so there is not an answer for every chunk
+			send.apply(new FileAcceptMessage(chunk.dest, chunk.source, chunk.id, true, transfer.uncredited));
+			transfer.uncredited = 0;
+		}
+	}
+
+	/**
+	 * Fails the transfers with a user that left or does not exist.
+	 */
+	void gone(String user)
+	{
+		var cause = new IOException("User " + user + " is gone");
+		for (var transfer : outgoing.values())
+		{
+			if (transfer.offer.dest.equals(user))
+				fail(transfer, cause);
+		}
+		for (var transfer : incoming.values())
+		{
+			if (transfer.offer.source.equals(user) && incoming.remove(transfer.offer.id, transfer))
+				fail(transfer, cause);
+		}
+	}
+
+	/**
+	 * Fails every transfer, when the connection they belong to is gone.
+	 */
+	void failAll(Throwable cause)
+	{
+		for (var transfer : outgoing.values())
+		{
+			fail(transfer, cause);
+		}
+		for (var transfer : incoming.values())
+		{
+			if (incoming.remove(transfer.offer.id, transfer))
+				fail(transfer, cause);
+		}
+	}
+
+	/**
+	 * Sends a file, a chunk per credit, on a thread of its own, as reading the file and waiting for credit block.
+	 */
+	private void stream(Outgoing transfer)
+	{
+		var offer = transfer.offer;
+		long offset = 0;
+		try (var channel = FileChannel.open(transfer.file, StandardOpenOption.READ))
+		{
+			boolean last = false;
+			while (!last)
+			{
+				if (!transfer.credit.tryAcquire(CREDIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+					throw new IOException(offer.dest + " stopped taking " + offer.fileName);
+				if (transfer.done.isDone())
+					return;
+
+				var data = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, offer.size - offset));
+				while (data.hasRemaining())
+				{
+					if (channel.read(data, offset + data.position()) < 0)
+						throw new EOFException(offer.fileName + " got shorter while it was sent");
+				}
+				last = offset + data.capacity() == offer.size;
+				send.apply(new FileChunkMessage(offer.source, offer.dest, offer.id, offset, data.array(), last)).get();
+				offset += data.capacity();
+			}
+			outgoing.remove(offer.id, transfer);
+			transfer.done.complete(null);
+		} catch (IOException | ExecutionException | InterruptedException e)
+		{
+			if (!transfer.done.isDone())
+			{
+				// tell the receiver it is not getting the rest
+				send.apply(new FileChunkMessage(offer.source, offer.dest, offer.id, offset, new byte[0], true));
+				fail(transfer, e instanceof ExecutionException ? e.getCause() : e);
+			}
+			if (e instanceof InterruptedException)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private void fail(Outgoing transfer, Throwable cause)
+	{
+		outgoing.remove(transfer.offer.id, transfer);
+		if (transfer.done.completeExceptionally(cause))
+			listener.stat("Sending " + transfer.offer.fileName + " to " + transfer.offer.dest + " failed: "
+					+ cause.getMessage(), true);
+		// wakes the sending thread, which sees it is done
+		transfer.credit.release();
+	}
+
+	private void fail(Incoming transfer, Throwable cause)
+	{
+		close(transfer, false);
+		if (transfer.done.completeExceptionally(cause))
+			listener.stat("Receiving " + transfer.offer.fileName + " from " + transfer.offer.source + " failed: "
+					+ cause.getMessage(), true);
+	}
+
+	/**
+	 * @param complete false to delete what was written of the file.
+	 */
+	private void close(Incoming transfer, boolean complete)
+	{
+		try
+		{
+			transfer.channel.close();
+			if (!complete)
+				Files.deleteIfExists(transfer.target);
+		} catch (IOException e)
+		{
+			listener.stat("Could not close " + transfer.target + ": " + e.getMessage(), true);
+		}
+	}
+
+	private static final class Outgoing
+	{
+		final FileOfferMessage offer;
+		final Path file;
+		final Semaphore credit = new Semaphore(0);
+		final CompletableFuture<Void> done = new CompletableFuture<>();
+		// only the reader sets it
+		boolean started = false;
+
+		Outgoing(FileOfferMessage offer, Path file)
+		{
+			this.offer = offer;
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Only the client's reader touches it once it is accepted.
+	 */
+	private static final class Incoming
+	{
+		final FileOfferMessage offer;
+		final Path target;
+		final FileChannel channel;
+		final CompletableFuture<Path> done = new CompletableFuture<>();
+		long received = 0;
+		// the chunks written since the sender was last given credit
+		int uncredited = 0;
+
+		Incoming(FileOfferMessage offer, Path target, FileChannel channel)
+		{
+			this.offer = offer;
+			this.target = target;
+			this.channel = channel;
+		}
+	}
+}
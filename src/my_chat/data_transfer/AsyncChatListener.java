@@ -0,0 +1,342 @@
+package my_chat.data_transfer;
+
+import my_chat.message_types.IMessage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A listener that hands its events to another listener on a thread of its own, so the threads that route messages
+ * never wait for a slow listener such as a console.
+ * <p>
+ * Events go into a bounded ring buffer of preallocated slots. Publishing claims a slot with a compare-and-set and
+ * never locks or allocates. The delivery thread takes the events in batches, in the order they were published, and
+ * calls {@link ChatListener#endOfBatch()} after each batch.
+ *
+ * @author Elisha
+ */
+public class AsyncChatListener implements ChatListener, AutoCloseable
+{
+	/**
+	 * What publishing does when the buffer is full, i.e. when the listener is slower than the server.
+	 */
+	public enum Overflow
+	{
+		/**
+		 * Drop the event. The listener is told how many were dropped once it catches up.
+		 */
+		DROP,
+		/**
+		 * Wait for room. Note that the server waits too, so a slow listener slows the server down.
+		 */
+		BLOCK
+	}
+
+	private static final int MAX_BATCH = 256;
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private static final int RECEIVED = 0, SENT = 1, STAT = 2;
+
+	/**
+	 * One slot of the ring. A slot is only written by the publisher that claimed it and only read by the delivery
+	 * thread once the publisher released it.
+	 */
+	private static final class Event
+	{
+		int kind;
+		IMessage message;
+		String text;
+		boolean err;
+	}
+
+	private final ChatListener listener;
+	private final Overflow overflow;
+	private final Event[] events;
+	// sequences[i] == p: slot i is free for the publisher at position p; p + 1: it holds the event at position p
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private long head = 0; // only the delivery thread touches this, and once it is gone whoever holds lateLock
+
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread thread;
+	private volatile boolean parked = false;
+	private volatile boolean closed = false;
+	// set by the delivery thread holding lateLock, after it delivered the last of the buffer. From then on publishers
+	// deliver themselves, one at a time and after whatever is left in the buffer, holding it too.
+	private volatile boolean stopped = false;
+	private final ReentrantLock lateLock = new ReentrantLock();
+
+	/**
+	 * Creates the listener and starts its delivery thread.
+	 *
+	 * @param listener the listener to deliver to. Only the delivery thread calls it.
+	 * @param capacity the number of events the buffer holds, rounded up to a power of two.
+	 * @param overflow what to do when the buffer is full.
+	 */
+	public AsyncChatListener(ChatListener listener, int capacity, Overflow overflow)
+	{
+		if (capacity < 1 || capacity > 1 << 30)
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+
+		this.listener = listener;
+		this.overflow = overflow;
+		this.events = new Event[size];
+		this.sequences = new AtomicLongArray(size);
+		this.mask = size - 1;
+		for (int i = 0; i < size; i++)
+		{
+			events[i] = new Event();
+			sequences.set(i, i);
+		}
+
+		thread = new Thread(this::deliver, "Listener");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void messageReceived(IMessage message)
+	{
+		publish(RECEIVED, message, null, false);
+	}
+
+	@Override
+	public void messageSent(IMessage message)
+	{
+		publish(SENT, message, null, false);
+	}
+
+	@Override
+	public void stat(String message, boolean err)
+	{
+		publish(STAT, null, message, err);
+	}
+
+	/**
+	 * @return the number of events dropped because the buffer was full.
+	 */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * Delivers the events published so far and stops the delivery thread. Events published afterwards are delivered
+	 * on the publishing thread, still one at a time and in order.
+	 */
+	@Override
+	public void close()
+	{
+		closed = true;
+		LockSupport.unpark(thread);
+		if (Thread.currentThread() == thread)
+			return;
+		try
+		{
+			thread.join();
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void publish(int kind, IMessage message, String text, boolean err)
+	{
+		if (!stopped && offer(kind, message, text, err))
+		{
+			// the delivery thread may have drained the buffer for the last time just before this went into it
+			if (stopped)
+				deliverLate(null);
+			return;
+		}
+		// nobody is left to deliver it
+		var event = new Event();
+		event.kind = kind;
+		event.message = message;
+		event.text = text;
+		event.err = err;
+		deliverLate(event);
+	}
+
+	/**
+	 * Delivers what is left in the buffer and then the given event, if any, once the delivery thread is gone.
+	 */
+	private void deliverLate(Event event)
+	{
+		lateLock.lock();
+		try
+		{
+			while (drain() > 0)
+				batchDelivered();
+			if (event != null)
+			{
+				deliver(event.kind, event.message, event.text, event.err);
+				batchDelivered();
+			}
+		} finally
+		{
+			lateLock.unlock();
+		}
+	}
+
+	/**
+	 * Puts an event into the buffer, or drops it if the buffer is full and the overflow policy says so.
+	 *
+	 * @return false if the delivery thread stopped while this waited for room, so the event was not published.
+	 */
+	private boolean offer(int kind, IMessage message, String text, boolean err)
+	{
+		long position = tail.get();
+		while (true)
+		{
+			int index = (int) position & mask;
+			long available = sequences.getAcquire(index) - position;
+			if (available == 0)
+			{
+				if (tail.compareAndSet(position, position + 1))
+				{
+					var event = events[index];
+					event.kind = kind;
+					event.message = message;
+					event.text = text;
+					event.err = err;
+					// a volatile write, so it cannot be reordered with the read of parked
+					sequences.set(index, position + 1);
+					if (parked)
+						LockSupport.unpark(thread);
+					return true;
+				}
+				position = tail.get();
+			} else if (available < 0)
+			{
+				// full
+				if (overflow == Overflow.DROP)
+				{
+					dropped.incrementAndGet();
+					return true;
+				}
+				if (stopped)
+					return false;
+				LockSupport.parkNanos(1000);
+				position = tail.get();
+			} else
+			{
+				// another publisher took the slot
+				position = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * The delivery thread.
+	 */
+	private void deliver()
+	{
+		long reportedDropped = 0;
+		while (true)
+		{
+			int delivered = drain();
+
+			long droppedNow = dropped.get();
+			if (droppedNow != reportedDropped)
+			{
+				deliver(STAT, null, "The listener fell behind. " + (droppedNow - reportedDropped)
+						+ " events were dropped.", true);
+				reportedDropped = droppedNow;
+				delivered++;
+			}
+
+			if (delivered > 0)
+			{
+				batchDelivered();
+				continue;
+			}
+
+			if (closed)
+			{
+				// whatever was published while on the way out, and then publishers take over
+				lateLock.lock();
+				try
+				{
+					while (drain() > 0)
+						batchDelivered();
+					stopped = true;
+				} finally
+				{
+					lateLock.unlock();
+				}
+				return;
+			}
+
+			// nothing to do: sleep until a publisher wakes us, checking again first so a wakeup is not missed
+			parked = true;
+			if (sequences.get((int) head & mask) != head + 1 && !closed)
+				LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+			parked = false;
+		}
+	}
+
+	/**
+	 * Delivers up to a batch of events.
+	 *
+	 * @return the number of events delivered.
+	 */
+	private int drain()
+	{
+		int delivered = 0;
+		while (delivered < MAX_BATCH)
+		{
+			int index = (int) head & mask;
+			if (sequences.getAcquire(index) != head + 1)
+				break;
+			var event = events[index];
+			deliver(event.kind, event.message, event.text, event.err);
+			event.message = null;
+			event.text = null;
+			sequences.setRelease(index, head + events.length);
+			head++;
+			delivered++;
+		}
+		return delivered;
+	}
+
+	private void deliver(int kind, IMessage message, String text, boolean err)
+	{
+		try
+		{
+			switch (kind)
+			{
+				case RECEIVED:
+					listener.messageReceived(message);
+					break;
+				case SENT:
+					listener.messageSent(message);
+					break;
+				default:
+					listener.stat(text, err);
+			}
+		} catch (RuntimeException e)
+		{
+			// a broken listener must not stop the delivery thread
+			e.printStackTrace();
+		}
+	}
+
+	private void batchDelivered()
+	{
+		try
+		{
+			listener.endOfBatch();
+		} catch (RuntimeException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
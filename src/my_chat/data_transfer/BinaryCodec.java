@@ -0,0 +1,631 @@
+package my_chat.data_transfer;
+
+import my_chat.message_types.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+/**
+ * A compact binary format for the message types in {@link my_chat.message_types}.
+ * A payload is a one byte tag naming the message class, followed by the fields of that class.
+ * Strings are a varint holding the UTF-8 length plus one (0 for null), followed by the UTF-8 bytes.
+ * Booleans are one byte, and counts and sequence numbers are varints.
+ * <p>
+ * Decoding makes no copy of the payload, and the names in the messages come from a {@link NameCache}, so a chat
+ * message costs the message and its text.
+ * <p>
+ * The messages of a {@link BatchMessage} are frames inside its payload: each is a four byte length followed by its
+ * own payload, exactly as {@link MessageOutput} writes it. So a batch can be put together from frames that are
+ * already encoded; see {@link #batchHeader}.
+ *
+ * @author Elisha
+ */
+public class BinaryCodec implements MessageCodec
+{
+	private static final byte CHAT = 1;
+	private static final byte BROADCAST = 2;
+	private static final byte CLIENT_JOINED = 3;
+	private static final byte CLIENT_LEFT = 4;
+	private static final byte INVALID_USER = 5;
+	private static final byte LOGIN = 6;
+	private static final byte LOGIN_REQUEST = 7;
+	private static final byte LOGIN_RESPONSE = 8;
+	private static final byte NAME_LIST = 9;
+	private static final byte NAME_REQUEST = 10;
+	private static final byte REPLAY_END = 11;
+	private static final byte ROOM = 12;
+	private static final byte JOIN_ROOM = 13;
+	private static final byte BATCH = 14;
+	private static final byte PEER_HELLO = 15;
+	private static final byte SERVER_BUSY = 16;
+	private static final byte HEARTBEAT = 17;
+	private static final byte FILE_OFFER = 18;
+	private static final byte FILE_ACCEPT = 19;
+	private static final byte FILE_CHUNK = 20;
+
+	private final NameCache nameCache = new NameCache();
+
+	@Override
+	public byte[] encode(IMessage message) throws IOException
+	{
+		Class<?> type = message.getClass();
+		// a chunk's data is most of it, and is copied in once instead of growing the buffer around it
+		var out = new Writer(type == FileChunkMessage.class ? 64 + ((FileChunkMessage) message).data.length : 64);
+
+		if (type == ChatMessage.class)
+		{
+			ChatMessage m = (ChatMessage) message;
+			out.writeByte(CHAT);
+			out.writeString(m.source);
+			out.writeString(m.dest);
+			out.writeString(m.message);
+			out.writeVarLong(m.seq);
+		} else if (type == BroadcastMessage.class)
+		{
+			BroadcastMessage m = (BroadcastMessage) message;
+			out.writeByte(BROADCAST);
+			out.writeString(m.message);
+			out.writeVarLong(m.seq);
+		} else if (type == ClientJoinedMessage.class)
+		{
+			ClientJoinedMessage m = (ClientJoinedMessage) message;
+			out.writeByte(CLIENT_JOINED);
+			out.writeString(m.name);
+			out.writeVarLong(m.seq);
+		} else if (type == ClientLeftMessage.class)
+		{
+			ClientLeftMessage m = (ClientLeftMessage) message;
+			out.writeByte(CLIENT_LEFT);
+			out.writeString(m.name);
+			out.writeVarLong(m.seq);
+		} else if (type == InvalidUserMessage.class)
+		{
+			InvalidUserMessage m = (InvalidUserMessage) message;
+			out.writeByte(INVALID_USER);
+			out.writeString(m.getDest());
+			out.writeString(m.getUser());
+		} else if (type == LoginMessage.class)
+		{
+			LoginMessage m = (LoginMessage) message;
+			out.writeByte(LOGIN);
+			out.writeString(m.name);
+			out.writeBoolean(m.login);
+			out.writeVarLong(m.lastSeq);
+			out.writeString(m.compression);
+		} else if (type == LoginRequestMessage.class)
+		{
+			LoginRequestMessage m = (LoginRequestMessage) message;
+			out.writeByte(LOGIN_REQUEST);
+			out.writeString(m.compression);
+		} else if (type == LoginResponseMessage.class)
+		{
+			LoginResponseMessage m = (LoginResponseMessage) message;
+			out.writeByte(LOGIN_RESPONSE);
+			out.writeBoolean(m.accepted);
+			out.writeBoolean(m.nameExists);
+			out.writeString(m.name);
+			out.writeVarLong(m.lastSeq);
+			out.writeString(m.redirect);
+		} else if (type == NameListMessage.class)
+		{
+			NameListMessage m = (NameListMessage) message;
+			out.writeByte(NAME_LIST);
+			out.writeString(m.getDest());
+			out.writeBoolean(m.page);
+			out.writeVarInt(m.getNames().size());
+			for (var name : m.getNames())
+			{
+				out.writeString(name);
+			}
+			out.writeVarLong(m.version);
+			out.writeString(m.next);
+		} else if (type == NameRequestMessage.class)
+		{
+			NameRequestMessage m = (NameRequestMessage) message;
+			out.writeByte(NAME_REQUEST);
+			out.writeString(m.source);
+			out.writeString(m.prefix);
+			out.writeString(m.after);
+			out.writeVarInt(m.limit);
+		} else if (type == ReplayEndMessage.class)
+		{
+			ReplayEndMessage m = (ReplayEndMessage) message;
+			out.writeByte(REPLAY_END);
+			out.writeString(m.dest);
+			out.writeVarLong(m.upToSeq);
+			out.writeVarInt(m.count);
+		} else if (type == RoomMessage.class)
+		{
+			RoomMessage m = (RoomMessage) message;
+			out.writeByte(ROOM);
+			out.writeString(m.source);
+			out.writeString(m.room);
+			out.writeString(m.message);
+		} else if (type == JoinRoomMessage.class)
+		{
+			JoinRoomMessage m = (JoinRoomMessage) message;
+			out.writeByte(JOIN_ROOM);
+			out.writeString(m.name);
+			out.writeString(m.room);
+			out.writeBoolean(m.join);
+		} else if (type == PeerHelloMessage.class)
+		{
+			PeerHelloMessage m = (PeerHelloMessage) message;
+			out.writeByte(PEER_HELLO);
+			out.writeString(m.node);
+			out.writeVarInt(m.port);
+		} else if (type == ServerBusyMessage.class)
+		{
+			ServerBusyMessage m = (ServerBusyMessage) message;
+			out.writeByte(SERVER_BUSY);
+			out.writeVarLong(m.retryAfterMillis);
+			out.writeString(m.reason);
+		} else if (type == HeartbeatMessage.class)
+		{
+			HeartbeatMessage m = (HeartbeatMessage) message;
+			out.writeByte(HEARTBEAT);
+			out.writeString(m.source);
+			out.writeString(m.dest);
+			out.writeBoolean(m.reply);
+		} else if (type == FileOfferMessage.class)
+		{
+			FileOfferMessage m = (FileOfferMessage) message;
+			out.writeByte(FILE_OFFER);
+			out.writeString(m.source);
+			out.writeString(m.dest);
+			out.writeLong(m.id);
+			out.writeString(m.fileName);
+			out.writeVarLong(m.size);
+		} else if (type == FileAcceptMessage.class)
+		{
+			FileAcceptMessage m = (FileAcceptMessage) message;
+			out.writeByte(FILE_ACCEPT);
+			out.writeString(m.source);
+			out.writeString(m.dest);
+			out.writeLong(m.id);
+			out.writeBoolean(m.accepted);
+			out.writeVarInt(m.credit);
+		} else if (type == FileChunkMessage.class)
+		{
+			FileChunkMessage m = (FileChunkMessage) message;
+			out.writeByte(FILE_CHUNK);
+			out.writeString(m.source);
+			out.writeString(m.dest);
+			out.writeLong(m.id);
+			out.writeVarLong(m.offset);
+			out.writeBoolean(m.last);
+			// as it is, with no length: the rest of the payload
+			out.writeBytes(m.data);
+		} else if (type == BatchMessage.class)
+		{
+			BatchMessage m = (BatchMessage) message;
+			writeBatchStart(out, m.source, m.dest, m.messages.size());
+			for (var inner : m.messages)
+			{
+				if (inner instanceof BatchMessage)
+					throw new IOException("Batches do not nest");
+				byte[] payload = MessageOutput.encode(inner, this);
+				out.writeInt(payload.length);
+				out.writeBytes(payload);
+			}
+		} else
+		{
+			throw new IOException("No binary encoding for " + type.getName());
+		}
+
+		return out.toByteArray();
+	}
+
+	@Override
+	public byte[] batchHeader(String source, String dest, int count, int frameBytes) throws IOException
+	{
+		var start = new Writer();
+		writeBatchStart(start, source, dest, count);
+		long length = (long) start.size + frameBytes;
+		if (length > MessageOutput.MAX_FRAME_LENGTH)
+			throw new IOException("Frame too large: " + length + " bytes");
+
+		var out = new Writer();
+		out.writeInt((int) length);
+		out.writeBytes(start.toByteArray());
+		return out.toByteArray();
+	}
+
+	private static void writeBatchStart(Writer out, String source, String dest, int count)
+	{
+		out.writeByte(BATCH);
+		out.writeString(source);
+		out.writeString(dest);
+		out.writeVarInt(count);
+	}
+
+	@Override
+	public IMessage decode(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException
+	{
+		return decode(payload, offset, length, false);
+	}
+
+	/**
+	 * Skips the data of a file chunk: of the 32 KB frame, only the header is read.
+	 */
+	@Override
+	public IMessage decodeToRelay(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException
+	{
+		return decode(payload, offset, length, true);
+	}
+
+	private IMessage decode(byte[] payload, int offset, int length, boolean relay)
+			throws IOException, ClassNotFoundException
+	{
+		var in = new Reader(payload, offset, length, nameCache);
+		IMessage message;
+
+		byte tag = in.readByte();
+		switch (tag)
+		{
+			case CHAT:
+			{
+				var m = new ChatMessage(in.readName(), in.readName(), in.readString());
+				m.seq = in.readVarLong();
+				message = m;
+				break;
+			}
+			case BROADCAST:
+			{
+				var m = new BroadcastMessage(in.readString());
+				m.seq = in.readVarLong();
+				message = m;
+				break;
+			}
+			case CLIENT_JOINED:
+			{
+				var m = new ClientJoinedMessage(in.readName());
+				m.seq = in.readVarLong();
+				message = m;
+				break;
+			}
+			case CLIENT_LEFT:
+			{
+				var m = new ClientLeftMessage(in.readName());
+				m.seq = in.readVarLong();
+				message = m;
+				break;
+			}
+			case INVALID_USER:
+				message = new InvalidUserMessage(in.readName(), in.readName());
+				break;
+			case LOGIN:
+				message = new LoginMessage(in.readName(), in.readBoolean(), in.readVarLong(), in.readString());
+				break;
+			case LOGIN_REQUEST:
+				message = new LoginRequestMessage(in.readString());
+				break;
+			case LOGIN_RESPONSE:
+			{
+				var response = new LoginResponseMessage(in.readBoolean(), in.readBoolean(), in.readString(),
+						in.readVarLong());
+				response.redirect = in.readString();
+				message = response;
+				break;
+			}
+			case NAME_LIST:
+			{
+				String dest = in.readName();
+				boolean page = in.readBoolean();
+				int count = in.readVarInt();
+				if (count < 0)
+					throw new StreamCorruptedException("Invalid name count: " + count);
+				// a page keeps its order
+				int capacity = Math.min(count, length) * 4 / 3 + 1;
+				var names = page ? new LinkedHashSet<String>(capacity) : new HashSet<String>(capacity);
+				for (int i = 0; i < count; i++)
+				{
+					names.add(in.readName());
+				}
+				long version = in.readVarLong();
+				String next = in.readName();
+				message = page ? NameListMessage.page(dest, names, version, next)
+						: new NameListMessage(dest, names, version);
+				break;
+			}
+			case NAME_REQUEST:
+				message = new NameRequestMessage(in.readName(), in.readString(), in.readString(), in.readVarInt());
+				break;
+			case REPLAY_END:
+				message = new ReplayEndMessage(in.readName(), in.readVarLong(), in.readVarInt());
+				break;
+			case ROOM:
+				message = new RoomMessage(in.readName(), in.readName(), in.readString());
+				break;
+			case JOIN_ROOM:
+				message = new JoinRoomMessage(in.readName(), in.readName(), in.readBoolean());
+				break;
+			case PEER_HELLO:
+				message = new PeerHelloMessage(in.readString(), in.readVarInt());
+				break;
+			case SERVER_BUSY:
+				message = new ServerBusyMessage(in.readVarLong(), in.readString());
+				break;
+			case HEARTBEAT:
+				message = new HeartbeatMessage(in.readName(), in.readName(), in.readBoolean());
+				break;
+			case FILE_OFFER:
+				message = new FileOfferMessage(in.readName(), in.readName(), in.readLong(), in.readString(),
+						in.readVarLong());
+				break;
+			case FILE_ACCEPT:
+				message = new FileAcceptMessage(in.readName(), in.readName(), in.readLong(), in.readBoolean(),
+						in.readVarInt());
+				break;
+			case FILE_CHUNK:
+			{
+				String source = in.readName(), dest = in.readName();
+				long id = in.readLong(), at = in.readVarLong();
+				boolean last = in.readBoolean();
+				message = new FileChunkMessage(source, dest, id, at, relay ? in.skipRest() : in.readRest(), last);
+				break;
+			}
+			case BATCH:
+			{
+				String source = in.readName(), dest = in.readName();
+				int count = in.readVarInt();
+				if (count < 0)
+					throw new StreamCorruptedException("Invalid batch count: " + count);
+				// every message takes at least its length and its tag
+				var messages = new ArrayList<IMessage>(Math.min(count, length / (Integer.BYTES + 1)));
+				for (int i = 0; i < count; i++)
+				{
+					int size = in.readInt();
+					in.require(size);
+					// checked before decoding, so a corrupt payload cannot nest batches deeper and deeper
+					if (size > 0 && payload[in.position] == BATCH)
+						throw new StreamCorruptedException("Batches do not nest");
+					messages.add(decode(payload, in.position, size));
+					in.position += size;
+				}
+				message = new BatchMessage(source, dest, messages);
+				break;
+			}
+			default:
+				throw new ClassNotFoundException("Unknown message tag: " + tag);
+		}
+
+		if (in.position != in.end)
+			throw new StreamCorruptedException((in.end - in.position) + " trailing bytes after " + message.getClass()
+					.getSimpleName());
+		return message;
+	}
+
+	/**
+	 * A growable byte array.
+	 */
+	private static class Writer
+	{
+		private byte[] buffer;
+		private int size = 0;
+
+		Writer()
+		{
+			this(64);
+		}
+
+		Writer(int capacity)
+		{
+			buffer = new byte[capacity];
+		}
+
+		private void ensure(int extra)
+		{
+			if (size + extra > buffer.length)
+				buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+		}
+
+		void writeByte(int b)
+		{
+			ensure(1);
+			buffer[size++] = (byte) b;
+		}
+
+		void writeBoolean(boolean b)
+		{
+			writeByte(b ? 1 : 0);
+		}
+
+		void writeInt(int value)
+		{
+			ensure(4);
+			buffer[size++] = (byte) (value >>> 24);
+			buffer[size++] = (byte) (value >>> 16);
+			buffer[size++] = (byte) (value >>> 8);
+			buffer[size++] = (byte) value;
+		}
+
+		void writeBytes(byte[] bytes)
+		{
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, buffer, size, bytes.length);
+			size += bytes.length;
+		}
+
+		void writeLong(long value)
+		{
+			writeInt((int) (value >>> 32));
+			writeInt((int) value);
+		}
+
+		void writeVarInt(int value)
+		{
+			ensure(5);
+			while ((value & ~0x7F) != 0)
+			{
+				buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[size++] = (byte) value;
+		}
+
+		void writeVarLong(long value)
+		{
+			ensure(10);
+			while ((value & ~0x7FL) != 0)
+			{
+				buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			buffer[size++] = (byte) value;
+		}
+
+		void writeString(String s)
+		{
+			if (s == null)
+			{
+				writeVarInt(0);
+				return;
+			}
+			byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+			writeVarInt(utf8.length + 1);
+			ensure(utf8.length);
+			System.arraycopy(utf8, 0, buffer, size, utf8.length);
+			size += utf8.length;
+		}
+
+		byte[] toByteArray()
+		{
+			return Arrays.copyOf(buffer, size);
+		}
+	}
+
+	/**
+	 * A bounds-checked cursor over a payload.
+	 */
+	private static class Reader
+	{
+		private final byte[] buffer;
+		private int position;
+		private final int end;
+		private final NameCache names;
+
+		Reader(byte[] buffer, int offset, int length, NameCache names)
+		{
+			this.buffer = buffer;
+			this.position = offset;
+			this.end = offset + length;
+			this.names = names;
+		}
+
+		private void require(int count) throws EOFException
+		{
+			if (count < 0 || end - position < count)
+				throw new EOFException("Payload ended in the middle of a message");
+		}
+
+		byte readByte() throws EOFException
+		{
+			require(1);
+			return buffer[position++];
+		}
+
+		boolean readBoolean() throws EOFException
+		{
+			return readByte() != 0;
+		}
+
+		int readInt() throws IOException
+		{
+			require(4);
+			int value = (buffer[position] & 0xFF) << 24 | (buffer[position + 1] & 0xFF) << 16
+					| (buffer[position + 2] & 0xFF) << 8 | buffer[position + 3] & 0xFF;
+			position += 4;
+			if (value < 0)
+				throw new StreamCorruptedException("Invalid frame length: " + value);
+			return value;
+		}
+
+		int readVarInt() throws IOException
+		{
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7)
+			{
+				byte b = readByte();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new StreamCorruptedException("Varint is too long");
+		}
+
+		long readLong() throws IOException
+		{
+			require(8);
+			long value = 0;
+			for (int i = 0; i < 8; i++)
+			{
+				value = value << 8 | buffer[position++] & 0xFF;
+			}
+			return value;
+		}
+
+		/**
+		 * @return a copy of the rest of the payload.
+		 */
+		byte[] readRest()
+		{
+			byte[] rest = Arrays.copyOfRange(buffer, position, end);
+			position = end;
+			return rest;
+		}
+
+		/**
+		 * @return null, having skipped the rest of the payload.
+		 */
+		byte[] skipRest()
+		{
+			position = end;
+			return null;
+		}
+
+		long readVarLong() throws IOException
+		{
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7)
+			{
+				byte b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new StreamCorruptedException("Varlong is too long");
+		}
+
+		String readString() throws IOException
+		{
+			int length = readVarInt() - 1;
+			if (length == -1)
+				return null;
+			require(length);
+			String s = new String(buffer, position, length, StandardCharsets.UTF_8);
+			position += length;
+			return s;
+		}
+
+		/**
+		 * Reads a string that is a name, such as a client's or a room's, from the cache.
+		 */
+		String readName() throws IOException
+		{
+			int length = readVarInt() - 1;
+			if (length == -1)
+				return null;
+			require(length);
+			String s = names.get(buffer, position, length);
+			position += length;
+			return s;
+		}
+	}
+}
@@ -12,4 +12,12 @@ public interface ChatListener extends EventListener
 	void messageReceived (IMessage message);
 	void messageSent(IMessage message);
 	void stat(String message, boolean err);
+
+	/**
+	 * Called by {@link AsyncChatListener} after it delivered a batch of events, e.g. to flush buffered output once
+	 * per batch instead of once per event.
+	 */
+	default void endOfBatch()
+	{
+	}
 }
@@ -0,0 +1,219 @@
+package my_chat.data_transfer;
+
+import my_chat.message_types.FileChunkMessage;
+import my_chat.message_types.IMessage;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of single frames, for the few that are big enough to gain from it, such as a pasted log or the
+ * name list of a busy server. Frames under a threshold, which is nearly all of them, are sent as they are.
+ * <p>
+ * A compressed frame has the {@link #COMPRESSED} bit set in its length prefix. Its payload is the length of the
+ * payload it stands for, as an int, followed by that payload deflated. Each frame is compressed on its own, so it can
+ * still be decoded without the frames before it, and a frame compressed once can go to any number of clients. Both
+ * ends start every frame from the same preset dictionary of the strings most frames have, so even frames of a
+ * kilobyte or two shrink. The dictionary is part of the format: changing it needs a new {@link #NAME}.
+ * <p>
+ * Each end of a connection says in its login message whether it takes compressed frames, see
+ * {@link my_chat.message_types.LoginRequestMessage#compression} and
+ * {@link my_chat.message_types.LoginMessage#compression}, and only compresses what it sends to an end that does.
+ *
+ * @author Elisha
+ */
+public final class Deflate
+{
+	/**
+	 * The name the login messages use for this compression.
+	 */
+	public static final String NAME = "deflate";
+	/**
+	 * The smallest payload worth compressing, unless set otherwise.
+	 */
+	public static final int DEFAULT_MIN_BYTES = 1 << 10;
+	/**
+	 * The bit of the length prefix that marks a compressed frame. Lengths never reach it.
+	 */
+	static final int COMPRESSED = 1 << 30;
+	// buffers up to this size are kept for the next frame
+	private static final int MAX_REUSED_BUFFER = 1 << 16;
+	// the most common strings last, as deflate reaches them with the shortest distances
+	private static final byte[] DICTIONARY = ("java.util.ArrayList java.util.HashSet java.lang.String "
+			+ "Ljava/lang/String; my_chat.message_types.BatchMessage my_chat.message_types.NameListMessage "
+			+ "my_chat.message_types.RoomMessage my_chat.message_types.BroadcastMessage sourcet destq messageq "
+			+ "seqJ namest roomq xp sr t <server> <all> has logged in has left that with this from have for "
+			+ "and the to of in is it my_chat.message_types.ChatMessage").getBytes(StandardCharsets.US_ASCII);
+
+	private Deflate()
+	{
+	}
+
+	/**
+	 * @param prefix the length prefix of a frame.
+	 * @return true if the frame is compressed.
+	 */
+	public static boolean isCompressed(int prefix)
+	{
+		return (prefix & COMPRESSED) != 0;
+	}
+
+	/**
+	 * @param message a message.
+	 * @return false for the messages that are never compressed, however big: file chunks, as most files worth
+	 * sending are compressed already, and the server only passes chunks on as they came if they are not compressed.
+	 */
+	public static boolean isCompressible(IMessage message)
+	{
+		return !(message instanceof FileChunkMessage);
+	}
+
+	/**
+	 * @param frame a whole frame, length prefix included.
+	 * @return true if the frame is compressed.
+	 */
+	public static boolean isCompressed(byte[] frame)
+	{
+		return (frame[0] & COMPRESSED >>> 24) != 0;
+	}
+
+	/**
+	 * @param prefix the length prefix of a frame.
+	 * @return the length of the frame's payload as sent, without the {@link #COMPRESSED} bit.
+	 */
+	public static int length(int prefix)
+	{
+		return prefix & ~COMPRESSED;
+	}
+
+	/**
+	 * Compresses the frames one end of a connection sends. It keeps its deflater and its buffer from frame to frame, so
+	 * compressing a frame only allocates the frame. Only one thread may use it at a time.
+	 */
+	public static final class Compressor
+	{
+		private final int minBytes;
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private byte[] buffer = new byte[1 << 10];
+
+		/**
+		 * @param minBytes the smallest payload to compress.
+		 */
+		public Compressor(int minBytes)
+		{
+			this.minBytes = Math.max(1, minBytes);
+		}
+
+		/**
+		 * @param payload an array holding a frame's payload.
+		 * @param offset  where the payload starts in the array.
+		 * @param length  the length of the payload.
+		 * @return the compressed frame, length prefix included, or null if the payload is too small to compress or
+		 * does not get smaller.
+		 */
+		public byte[] compress(byte[] payload, int offset, int length)
+		{
+			if (length < minBytes)
+				return null;
+
+			// the compressed frame must come out smaller than the frame as it is
+			int start = 2 * Integer.BYTES;
+			int end = start + length - Integer.BYTES - 1;
+			byte[] out = end <= buffer.length ? buffer : new byte[end];
+			if (out != buffer && end <= MAX_REUSED_BUFFER)
+				buffer = out;
+
+			deflater.reset();
+			deflater.setDictionary(DICTIONARY);
+			deflater.setInput(payload, offset, length);
+			deflater.finish();
+			int position = start;
+			while (!deflater.finished() && position < end)
+			{
+				position += deflater.deflate(out, position, end - position);
+			}
+			if (!deflater.finished())
+				return null;
+
+			putInt(out, 0, COMPRESSED | position - Integer.BYTES);
+			putInt(out, Integer.BYTES, length);
+			return Arrays.copyOf(out, position);
+		}
+	}
+
+	/**
+	 * Decodes the compressed frames one end of a connection gets. It keeps its inflater and its buffer from frame to
+	 * frame. Only one thread may use it at a time.
+	 */
+	public static final class Decompressor
+	{
+		private final Inflater inflater = new Inflater();
+		private byte[] buffer = new byte[1 << 10];
+
+		/**
+		 * @param codec   the codec of the payload.
+		 * @param frame   an array holding the payload of a compressed frame.
+		 * @param offset  where the payload starts in the array.
+		 * @param length  the length of the payload.
+		 * @return the message in the frame.
+		 * @throws IOException            if the frame is corrupt.
+		 * @throws ClassNotFoundException if the frame does not hold a known message.
+		 */
+		public IMessage decode(MessageCodec codec, byte[] frame, int offset, int length)
+				throws IOException, ClassNotFoundException
+		{
+			if (length < Integer.BYTES)
+				throw new StreamCorruptedException("Invalid compressed frame length: " + length);
+			int size = getInt(frame, offset);
+			if (size < 0 || size > MessageOutput.MAX_FRAME_LENGTH)
+				throw new StreamCorruptedException("Invalid frame length: " + size);
+
+			byte[] payload = size <= buffer.length ? buffer : new byte[size];
+			if (payload != buffer && size <= MAX_REUSED_BUFFER)
+				buffer = payload;
+
+			inflater.reset();
+			inflater.setInput(frame, offset + Integer.BYTES, length - Integer.BYTES);
+			int position = 0;
+			try
+			{
+				while (position < size)
+				{
+					int count = inflater.inflate(payload, position, size - position);
+					if (count == 0)
+					{
+						if (!inflater.needsDictionary())
+							break;
+						inflater.setDictionary(DICTIONARY);
+					}
+					position += count;
+				}
+			} catch (DataFormatException e)
+			{
+				throw new StreamCorruptedException("Corrupt compressed frame: " + e.getMessage());
+			}
+			if (position != size)
+				throw new StreamCorruptedException("Compressed frame holds " + position + " bytes, not " + size);
+			return codec.decode(payload, 0, size);
+		}
+	}
+
+	private static void putInt(byte[] b, int offset, int value)
+	{
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+
+	private static int getInt(byte[] b, int offset)
+	{
+		return (b[offset] & 0xff) << 24 | (b[offset + 1] & 0xff) << 16 | (b[offset + 2] & 0xff) << 8
+				| b[offset + 3] & 0xff;
+	}
+}
@@ -0,0 +1,167 @@
+package my_chat.data_transfer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts latencies in buckets whose width grows with the value, so every value is kept to within about 3% no matter
+ * how large it is, in a fixed amount of memory.
+ * Any number of threads may record at once, and recording never locks or allocates.
+ *
+ * @author Elisha
+ */
+public class LatencyHistogram
+{
+	// values below 2 * HALF get a bucket each; above that every power of two is split into HALF buckets
+	private static final int HALF = 32;
+	private static final int SHIFT_BITS = 5;
+
+	private final AtomicLongArray counts = new AtomicLongArray(index(Long.MAX_VALUE) + 1);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos a latency. Negative values count as 0.
+	 */
+	public void record(long nanos)
+	{
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(index(nanos));
+		count.increment();
+		sum.add(nanos);
+		if (nanos > max.get())
+			max.accumulateAndGet(nanos, Math::max);
+	}
+
+	/**
+	 * @return the number of recorded latencies.
+	 */
+	public long count()
+	{
+		return count.sum();
+	}
+
+	/**
+	 * @return the largest recorded latency, exactly.
+	 */
+	public long max()
+	{
+		return max.get();
+	}
+
+	/**
+	 * @return the mean of the recorded latencies, or 0 if nothing was recorded.
+	 */
+	public double mean()
+	{
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * @param fraction the fraction of the latencies that should be at or below the result, e.g. 0.99.
+	 * @return the latency at that fraction, rounded up to the top of its bucket, or 0 if nothing was recorded.
+	 */
+	public long percentile(double fraction)
+	{
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++)
+			total += counts.get(i);
+		if (total == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++)
+		{
+			seen += counts.get(i);
+			if (seen >= target)
+				return Math.min(highestIn(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * @return the count, mean, p50, p99, p999 and max as they are now. Latencies recorded meanwhile may or may not
+	 * be included.
+	 */
+	public Summary summary()
+	{
+		return new Summary(count(), mean(), percentile(0.5), percentile(0.99), percentile(0.999), max());
+	}
+
+	private static int index(long value)
+	{
+		if (value < 2 * HALF)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SHIFT_BITS;
+		return shift * HALF + (int) (value >>> shift);
+	}
+
+	private static long highestIn(int index)
+	{
+		if (index < 2 * HALF)
+			return index;
+		int shift = index / HALF - 1;
+		long sub = index % HALF + HALF;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * A histogram's figures at one moment, in nanoseconds.
+	 */
+	public static final class Summary
+	{
+		private final long count, p50, p99, p999, max;
+		private final double mean;
+
+		Summary(long count, double mean, long p50, long p99, long p999, long max)
+		{
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p99 = p99;
+			this.p999 = p999;
+			this.max = max;
+		}
+
+		public long getCount()
+		{
+			return count;
+		}
+
+		public double getMean()
+		{
+			return mean;
+		}
+
+		public long getP50()
+		{
+			return p50;
+		}
+
+		public long getP99()
+		{
+			return p99;
+		}
+
+		public long getP999()
+		{
+			return p999;
+		}
+
+		public long getMax()
+		{
+			return max;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%d, mean %.3f ms, p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms", count,
+					mean / 1e6, p50 / 1e6, p99 / 1e6, p999 / 1e6, max / 1e6);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package my_chat.data_transfer;
+
+import my_chat.message_types.IMessage;
+
+import java.io.IOException;
+
+/**
+ * Turns messages into frame payloads and back.
+ * Both ends of a connection must use the same codec.
+ *
+ * @author Elisha
+ */
+public interface MessageCodec
+{
+	/**
+	 * Java serialization. Slow, but works for every {@link IMessage}.
+	 */
+	MessageCodec SERIALIZATION = new SerializationCodec();
+
+	/**
+	 * A compact tagged binary format. See {@link BinaryCodec}.
+	 */
+	MessageCodec BINARY = new BinaryCodec();
+
+	/**
+	 * @param message the message to encode.
+	 * @return the payload, without the frame's length prefix.
+	 * @throws IOException if the message could not be encoded.
+	 */
+	byte[] encode(IMessage message) throws IOException;
+
+	/**
+	 * @param payload an array holding the payload.
+	 * @param offset  where the payload starts in the array.
+	 * @param length  the length of the payload.
+	 * @return the message in the payload.
+	 * @throws IOException            if the payload is corrupt.
+	 * @throws ClassNotFoundException if the payload does not hold a known message.
+	 */
+	IMessage decode(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException;
+
+	/**
+	 * Decodes a message that is passed on in the frame it came in, so the codec may leave out what only its recipient
+	 * reads: the data of a {@link my_chat.message_types.FileChunkMessage}, which is then null. By default this is
+	 * {@link #decode}.
+	 *
+	 * @param payload an array holding the payload.
+	 * @param offset  where the payload starts in the array.
+	 * @param length  the length of the payload.
+	 * @return the message in the payload.
+	 * @throws IOException            if the payload is corrupt.
+	 * @throws ClassNotFoundException if the payload does not hold a known message.
+	 */
+	default IMessage decodeToRelay(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException
+	{
+		return decode(payload, offset, length);
+	}
+
+	/**
+	 * Encodes the start of a {@link my_chat.message_types.BatchMessage} frame whose messages are already encoded as
+	 * frames. The whole batch frame is this header followed by those frames, as they are, so frames that were encoded
+	 * once for many clients can be batched without encoding them again.
+	 *
+	 * @param source     the source of the batch.
+	 * @param dest       the destination of the batch.
+	 * @param count      the number of frames that follow.
+	 * @param frameBytes the size of the frames that follow, length prefixes included.
+	 * @return the batch frame's length prefix and the start of its payload, or null if this codec cannot put a batch
+	 * together from frames, in which case a batch must be encoded with {@link #encode(IMessage)}.
+	 * @throws IOException if the batch is too large for a frame.
+	 */
+	default byte[] batchHeader(String source, String dest, int count, int frameBytes) throws IOException
+	{
+		return null;
+	}
+
+	/**
+	 * @param name "serialization" or "binary", in any case.
+	 * @return the codec with that name.
+	 * @throws IllegalArgumentException if there is no such codec.
+	 */
+	static MessageCodec forName(String name)
+	{
+		switch (name.toLowerCase())
+		{
+			case "serialization":
+				return SERIALIZATION;
+			case "binary":
+				return BINARY;
+			default:
+				throw new IllegalArgumentException("Unknown codec: " + name);
+		}
+	}
+}
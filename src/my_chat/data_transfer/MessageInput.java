@@ -1,55 +1,97 @@
 package my_chat.data_transfer;
 
 
-import my_chat.message_types.ChatMessage;
 import my_chat.message_types.IMessage;
 
 import java.io.*;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.function.Function;
 
 /**
+ * Reads the length-prefixed message frames written by {@link MessageOutput}.
+ * Frames are read into one buffer that is used again for the next frame, as the codecs do not keep the payload.
+ * Compressed frames, see {@link Deflate}, are decompressed as they come, once this end said it takes them, and are
+ * an error until then.
+ *
  * @author Elisha
  */
-public class MessageInput extends ObjectInputStream
+public class MessageInput extends DataInputStream
 {
+	// frames up to this size are read into the reused buffer; larger ones are rare, and get a buffer of their own
+	private static final int MAX_REUSED_BUFFER = 1 << 16;
+
+	private final MessageCodec codec;
+	private byte[] buffer = new byte[1 << 10];
+	private int lastFrameSize = 0;
+	private Deflate.Decompressor decompressor;
+	private volatile boolean decompress = false;
 
 	/**
-	 * Creates an ObjectInputStream that reads from the specified InputStream.
-	 * A serialization stream header is read from the stream and verified.
-	 * This constructor will block until the corresponding ObjectOutputStream
-	 * has written and flushed the header.
-	 *
-	 * <p>The serialization filter is initialized to the value of
-	 * {@linkplain ObjectInputFilter.Config#getSerialFilter() the process-wide filter}.
-	 *
-	 * <p>If a security manager is installed, this constructor will check for
-	 * the "enableSubclassImplementation" SerializablePermission when invoked
-	 * directly or indirectly by the constructor of a subclass which overrides
-	 * the ObjectInputStream.readFields or ObjectInputStream.readUnshared
-	 * methods.
+	 * Creates a MessageInput that reads Java serialization frames from the specified InputStream.
 	 *
 	 * @param in input stream to read from
-	 * @throws StreamCorruptedException if the stream header is incorrect
-	 * @throws IOException              if an I/O error occurs while reading stream header
-	 * @throws SecurityException        if untrusted subclass illegally overrides
-	 *                                  security-sensitive methods
-	 * @throws NullPointerException     if <code>in</code> is <code>null</code>
-	 * @see ObjectInputStream#ObjectInputStream()
-	 * @see ObjectInputStream#readFields()
-	 * @see ObjectOutputStream#ObjectOutputStream(OutputStream)
 	 */
-	public MessageInput(InputStream in) throws IOException
+	public MessageInput(InputStream in)
+	{
+		this(in, MessageCodec.SERIALIZATION);
+	}
+
+	/**
+	 * Creates a MessageInput that reads frames from the specified InputStream.
+	 *
+	 * @param in    input stream to read from
+	 * @param codec the codec that decodes the payloads.
+	 */
+	public MessageInput(InputStream in, MessageCodec codec)
 	{
 		super(in);
+		this.codec = codec;
+	}
+
+	/**
+	 * Takes compressed frames from now on, once this end said it does. See {@link Deflate}.
+	 *
+	 * @param decompress whether to take them.
+	 */
+	public void setDecompression(boolean decompress)
+	{
+		this.decompress = decompress;
 	}
 
+	/**
+	 * Reads one frame, blocking until the whole frame has arrived.
+	 *
+	 * @return the message in the frame.
+	 * @throws IOException            if an I/O error occurs, the frame length is invalid or the frame is compressed
+	 *                                though this end does not take compressed frames.
+	 * @throws ClassNotFoundException if the frame does not hold a known message.
+	 */
 	public IMessage readMessage() throws IOException, ClassNotFoundException
 	{
-		Object obj = readObject();
-		if (obj instanceof IMessage)
-			return (IMessage) obj;
-		else throw new ClassNotFoundException("The object is not a IMessage object");
+		int prefix = readInt();
+		int length = Deflate.length(prefix);
+		if (length < 0 || length > MessageOutput.MAX_FRAME_LENGTH)
+			throw new StreamCorruptedException("Invalid frame length: " + length);
+
+		byte[] payload = length <= buffer.length ? buffer : new byte[length];
+		if (payload != buffer && length <= MAX_REUSED_BUFFER)
+			buffer = payload;
+		readFully(payload, 0, length);
+		lastFrameSize = Integer.BYTES + length;
+		if (Deflate.isCompressed(prefix))
+		{
+			if (!decompress)
+				throw new StreamCorruptedException("A compressed frame, though compression was not agreed on");
+			if (decompressor == null)
+				decompressor = new Deflate.Decompressor();
+			return decompressor.decode(codec, payload, 0, length);
+		}
+		return codec.decode(payload, 0, length);
+	}
+
+	/**
+	 * @return the size of the last frame {@link #readMessage()} read, length prefix included.
+	 */
+	public int getLastFrameSize()
+	{
+		return lastFrameSize;
 	}
 }
@@ -1,50 +1,115 @@
 package my_chat.data_transfer;
 
-import my_chat.message_types.ChatMessage;
 import my_chat.message_types.IMessage;
 
 import java.io.*;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.function.Function;
-import java.util.function.Supplier;
+import java.nio.ByteBuffer;
 
 /**
+ * Writes length-prefixed message frames.
+ * Every frame is an int holding the payload length, followed by the payload.
+ * The payload is a self-contained message encoded by a {@link MessageCodec}, so a frame can be decoded without the
+ * frames before it. That is what lets a non-blocking server cut frames out of a channel.
+ *
  * @author Elisha
  */
-public class MessageOutput extends ObjectOutputStream
+public class MessageOutput extends DataOutputStream
 {
+	/**
+	 * The biggest payload a frame may carry. Anything bigger is treated as a corrupt stream.
+	 */
+	public static final int MAX_FRAME_LENGTH = 1 << 24;
+
+	private final MessageCodec codec;
+	private volatile Deflate.Compressor compressor;
 
 	/**
-	 * Creates an ObjectOutputStream that writes to the specified OutputStream.
-	 * This constructor writes the serialization stream header to the
-	 * underlying stream; callers may wish to flush the stream immediately to
-	 * ensure that constructors for receiving ObjectInputStreams will not block
-	 * when reading the header.
-	 *
-	 * <p>If a security manager is installed, this constructor will check for
-	 * the "enableSubclassImplementation" SerializablePermission when invoked
-	 * directly or indirectly by the constructor of a subclass which overrides
-	 * the ObjectOutputStream.putFields or ObjectOutputStream.writeUnshared
-	 * methods.
+	 * Creates a MessageOutput that writes Java serialization frames to the specified OutputStream.
 	 *
 	 * @param out output stream to write to
-	 * @throws IOException          if an I/O error occurs while writing stream header
-	 * @throws SecurityException    if untrusted subclass illegally overrides
-	 *                              security-sensitive methods
-	 * @throws NullPointerException if <code>out</code> is <code>null</code>
-	 * @see ObjectOutputStream#ObjectOutputStream()
-	 * @see ObjectOutputStream#putFields()
-	 * @see ObjectInputStream#ObjectInputStream(InputStream)
-	 * @since 1.4
 	 */
-	public MessageOutput(OutputStream out) throws IOException
+	public MessageOutput(OutputStream out)
+	{
+		this(out, MessageCodec.SERIALIZATION);
+	}
+
+	/**
+	 * Creates a MessageOutput that writes frames to the specified OutputStream.
+	 *
+	 * @param out   output stream to write to
+	 * @param codec the codec that encodes the payloads.
+	 */
+	public MessageOutput(OutputStream out, MessageCodec codec)
 	{
 		super(out);
+		this.codec = codec;
+	}
+
+	/**
+	 * Compresses the frames written from now on that are big enough, once the other end said it takes compressed
+	 * frames. See {@link Deflate}.
+	 *
+	 * @param compressor the compressor, or null to stop compressing.
+	 */
+	public void setCompressor(Deflate.Compressor compressor)
+	{
+		this.compressor = compressor;
 	}
 
-	public void writeMessage(IMessage message) throws IOException
+	/**
+	 * Writes one frame. This does not flush the stream.
+	 *
+	 * @param message the message to write.
+	 * @return the size of the frame, length prefix included.
+	 * @throws IOException if an I/O error occurs.
+	 */
+	public int writeMessage(IMessage message) throws IOException
+	{
+		byte[] payload = encode(message, codec);
+		var compressor = this.compressor;
+		if (compressor != null && Deflate.isCompressible(message))
+		{
+			byte[] frame = compressor.compress(payload, 0, payload.length);
+			if (frame != null)
+			{
+				write(frame);
+				return frame.length;
+			}
+		}
+		writeInt(payload.length);
+		write(payload);
+		return Integer.BYTES + payload.length;
+	}
+
+	/**
+	 * Encodes a message into a frame payload.
+	 *
+	 * @param message the message to encode.
+	 * @param codec   the codec to encode with.
+	 * @return the payload, without the length prefix.
+	 * @throws IOException if the message could not be encoded, or is too large for a frame.
+	 */
+	public static byte[] encode(IMessage message, MessageCodec codec) throws IOException
+	{
+		byte[] payload = codec.encode(message);
+		if (payload.length > MAX_FRAME_LENGTH)
+			throw new IOException("Frame too large: " + payload.length + " bytes");
+		return payload;
+	}
+
+	/**
+	 * Encodes a message into a whole frame, ready to be written to a channel.
+	 *
+	 * @param message the message to encode.
+	 * @param codec   the codec to encode with.
+	 * @return a buffer holding the length prefix and the payload, positioned at 0.
+	 * @throws IOException if the message could not be encoded, or is too large for a frame.
+	 */
+	public static ByteBuffer frame(IMessage message, MessageCodec codec) throws IOException
 	{
-		writeObject(message);
+		byte[] payload = encode(message, codec);
+		ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + payload.length);
+		frame.putInt(payload.length).put(payload).flip();
+		return frame;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,76 @@
+package my_chat.data_transfer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The strings of the names decoded lately, by their UTF-8 bytes, so that decoding the same few names over and over,
+ * as in every message's source and destination, does not make a new string each time.
+ * <p>
+ * Each name has one slot, picked by its hash, and a name that lands in a taken slot replaces what was there. Threads
+ * share it without locking: an entry never changes once it is made, so a thread sees either a whole entry or the one
+ * before it, and at worst decodes a name again.
+ *
+ * @author Elisha
+ */
+final class NameCache
+{
+	/**
+	 * Longer strings are decoded every time; they are message text rather than names.
+	 */
+	static final int MAX_NAME_BYTES = 64;
+	private static final int SLOTS = 1 << 13;
+
+	private final Entry[] entries = new Entry[SLOTS];
+
+	/**
+	 * @param buffer an array holding the name's UTF-8 bytes.
+	 * @param offset where the name starts in the array.
+	 * @param length the length of the name in bytes.
+	 * @return the name.
+	 */
+	String get(byte[] buffer, int offset, int length)
+	{
+		if (length > MAX_NAME_BYTES)
+			return new String(buffer, offset, length, StandardCharsets.UTF_8);
+
+		int hash = hash(buffer, offset, length);
+		int slot = hash & (SLOTS - 1);
+		var entry = entries[slot];
+		if (entry != null && entry.hash == hash
+				&& Arrays.equals(entry.utf8, 0, entry.utf8.length, buffer, offset, offset + length))
+			return entry.name;
+
+		String name = new String(buffer, offset, length, StandardCharsets.UTF_8);
+		entries[slot] = new Entry(hash, Arrays.copyOfRange(buffer, offset, offset + length), name);
+		return name;
+	}
+
+	/**
+	 * 32-bit FNV-1a.
+	 */
+	private static int hash(byte[] buffer, int offset, int length)
+	{
+		int h = 0x811c9dc5;
+		for (int i = offset; i < offset + length; i++)
+		{
+			h ^= buffer[i] & 0xff;
+			h *= 0x01000193;
+		}
+		return h ^ h >>> 16;
+	}
+
+	private static final class Entry
+	{
+		final int hash;
+		final byte[] utf8;
+		final String name;
+
+		Entry(int hash, byte[] utf8, String name)
+		{
+			this.hash = hash;
+			this.utf8 = utf8;
+			this.name = name;
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package my_chat.data_transfer;
+
+import my_chat.message_types.IMessage;
+
+import java.io.*;
+
+/**
+ * Encodes every payload as a self-contained Java serialization stream.
+ *
+ * @author Elisha
+ */
+public class SerializationCodec implements MessageCodec
+{
+	@Override
+	public byte[] encode(IMessage message) throws IOException
+	{
+		var bytes = new ByteArrayOutputStream(256);
+		try (var objects = new ObjectOutputStream(bytes))
+		{
+			objects.writeObject(message);
+		}
+		return bytes.toByteArray();
+	}
+
+	@Override
+	public IMessage decode(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException
+	{
+		try (var objects = new ObjectInputStream(new ByteArrayInputStream(payload, offset, length)))
+		{
+			Object obj = objects.readObject();
+			if (obj instanceof IMessage)
+				return (IMessage) obj;
+			else throw new ClassNotFoundException("The object is not a IMessage object");
+		}
+	}
+}
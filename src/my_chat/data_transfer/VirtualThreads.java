@@ -0,0 +1,83 @@
+package my_chat.data_transfer;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Virtual threads, for the server and client code that blocks on sockets.
+ * The project is built for Java 11, so the Java 21 methods are looked up by reflection. On an older JVM, or one where
+ * they are disabled, every method falls back to platform threads.
+ *
+ * @author Elisha
+ */
+public final class VirtualThreads
+{
+	private static final Method NEW_EXECUTOR = find(Executors.class, "newVirtualThreadPerTaskExecutor");
+	private static final Method START = find(Thread.class, "startVirtualThread", Runnable.class);
+
+	private VirtualThreads()
+	{
+	}
+
+	/**
+	 * @return true if this JVM has virtual threads.
+	 */
+	public static boolean isSupported()
+	{
+		return NEW_EXECUTOR != null && START != null;
+	}
+
+	/**
+	 * @return an executor that starts a virtual thread for each task, or an unbounded cached thread pool if there are
+	 * no virtual threads.
+	 */
+	public static ExecutorService newExecutor()
+	{
+		if (NEW_EXECUTOR != null)
+		{
+			try
+			{
+				return (ExecutorService) NEW_EXECUTOR.invoke(null);
+			} catch (ReflectiveOperationException | RuntimeException e)
+			{
+				// e.g. a preview JVM without --enable-preview
+			}
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * Runs a task on a new virtual thread, or on a new platform thread if there are no virtual threads.
+	 *
+	 * @param task the task.
+	 * @return the started thread.
+	 */
+	public static Thread start(Runnable task)
+	{
+		if (START != null)
+		{
+			try
+			{
+				return (Thread) START.invoke(null, task);
+			} catch (ReflectiveOperationException | RuntimeException e)
+			{
+				// fall back to a platform thread
+			}
+		}
+		var thread = new Thread(task);
+		thread.start();
+		return thread;
+	}
+
+	private static Method find(Class<?> type, String name, Class<?>... parameters)
+	{
+		try
+		{
+			return type.getMethod(name, parameters);
+		} catch (NoSuchMethodException e)
+		{
+			return null;
+		}
+	}
+}
@@ -1,12 +1,19 @@
 package my_chat.interfaces.command_line.client;
 
 import my_chat.clientside.ChatClient;
+import my_chat.data_transfer.MessageCodec;
+import my_chat.message_types.FileOfferMessage;
 import my_chat.message_types.IMessage;
 import my_chat.message_types.LoginRequestMessage;
 import my_chat.message_types.LoginResponseMessage;
+import my_chat.message_types.NameListMessage;
 import my_chat.data_transfer.ChatListener;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
@@ -21,6 +28,9 @@ public class CommandLineClient implements ChatListener
 			"(25[0-5]|2[0-4][0-9]|1[0-9][0-9]|[1-9]?[0-9])\\b";
 
 	private static boolean hasName = false;
+	private static final int FIND_PAGE = 20;
+	// the files offered so far, numbered from 1 for the accept and decline commands
+	private final List<FileOfferMessage> offers = new ArrayList<>();
 
 	public static void main(String[] args)
 	{
@@ -35,7 +45,27 @@ public class CommandLineClient implements ChatListener
 			return;
 		}
 
-		ChatClient client = new ChatClient(new CommandLineClient(), args[0]);
+		var ui = new CommandLineClient();
+		ChatClient client = new ChatClient(ui, args[0]);
+		for (int i = 1; i < args.length; i++)
+		{
+			if (args[i].startsWith("--codec="))
+			{
+				client.setCodec(MessageCodec.forName(args[i].substring("--codec=".length())));
+			} else if (args[i].startsWith("--port="))
+			{
+				client.setPort(Integer.parseInt(args[i].substring("--port=".length())));
+			} else if (args[i].startsWith("--compress="))
+			{
+				client.setCompression(Integer.parseInt(args[i].substring("--compress=".length())));
+			} else
+			{
+				System.err.println("Unknown argument: " + args[i]);
+				System.err.println("Arguments: <server address> [--codec=serialization|binary] [--port=<port>]"
+						+ " [--compress=<min bytes>|0]");
+				return;
+			}
+		}
 
 		Thread thread = new Thread(client);
 		thread.start();
@@ -72,10 +102,54 @@ public class CommandLineClient implements ChatListener
 				int i = input.indexOf(':');
 				String dest = input.substring(7, i).trim();
 				String message = input.substring(i + 1).trim();
-				client.messageOne(dest, message);
+				if (dest.startsWith("#"))
+					client.messageRoom(dest.substring(1), message);
+				else
+					client.messageOne(dest, message);
+			} else if (input.toLowerCase().startsWith("join"))
+			{
+				client.joinRoom(input.substring("join".length()).trim().replaceFirst("^#", ""));
+			} else if (input.toLowerCase().startsWith("leave"))
+			{
+				client.leaveRoom(input.substring("leave".length()).trim().replaceFirst("^#", ""));
+			} else if (input.toLowerCase().startsWith("find"))
+			{
+				// find <prefix> [<the last name of the page before>]
+				String[] words = input.substring("find".length()).trim().split("\\s+");
+				client.findNames(words[0], words.length > 1 ? words[1] : null, FIND_PAGE)
+						.thenAccept(ui::printPage);
 			} else if (input.toLowerCase().startsWith("list"))
 			{
-				client.listNames();
+				client.listNames().thenAccept(ui::printNames);
+			} else if (input.toLowerCase().startsWith("file"))
+			{
+				// file <user> <path>
+				String[] words = input.substring("file".length()).trim().split("\\s+", 2);
+				if (words.length < 2)
+				{
+					System.err.println("System: Invalid Syntax");
+					continue;
+				}
+				client.sendFile(words[0], Path.of(words[1]))
+						.thenRun(() -> System.out.println("System: Sent " + words[1] + " to " + words[0]));
+			} else if (input.toLowerCase().startsWith("accept") || input.toLowerCase().startsWith("decline"))
+			{
+				// accept <number> [<path>], decline <number>
+				String[] words = input.split("\\s+", 3);
+				var offer = words.length > 1 && words[1].matches("\\d+") ? ui.offer(Integer.parseInt(words[1]))
+						: null;
+				if (offer == null)
+				{
+					System.err.println("System: No such file");
+				} else if (words[0].equalsIgnoreCase("decline"))
+				{
+					client.declineFile(offer);
+				} else
+				{
+					var target = Path.of(words.length > 2 ? words[2] : offer.fileName);
+					client.acceptFile(offer, target)
+							.thenAccept(path -> System.out.println("System: Received " + path));
+				}
 			} else if (input.toLowerCase().startsWith("logout"))
 			{
 				client.stop();
@@ -97,11 +171,23 @@ public class CommandLineClient implements ChatListener
 			{
 				System.out.println("System: Logged in as " + lrm.name);
 				hasName = true;
+			} else if (lrm.redirect != null)
+			{
+				// the client logs in at the other node with the same name
+				System.out.println("System: " + lrm.toString());
 			} else
 			{
 				System.out.println("System: " + lrm.toString());
 				hasName = false;
 			}
+		} else if (message instanceof FileOfferMessage)
+		{
+			offers.add((FileOfferMessage) message);
+			System.out.println("Received: " + message + " (accept " + offers.size() + " [<path>] / decline "
+					+ offers.size() + ")");
+		} else if (message instanceof NameListMessage)
+		{
+			// printed by the list command, which mostly has the names without asking the server
 		} else if (message instanceof LoginRequestMessage)
 		{
 //			hasName = false;
@@ -112,6 +198,26 @@ public class CommandLineClient implements ChatListener
 		}
 	}
 
+	/**
+	 * @param number the number the offer was shown with.
+	 * @return the offer, or null if there is none with that number.
+	 */
+	private synchronized FileOfferMessage offer(int number)
+	{
+		return number >= 1 && number <= offers.size() ? offers.get(number - 1) : null;
+	}
+
+	private synchronized void printNames(Set<String> names)
+	{
+		System.out.println("System: Users: " + String.join(", ", names));
+	}
+
+	private synchronized void printPage(NameListMessage page)
+	{
+		System.out.println("System: Users: " + String.join(", ", page.getNames())
+				+ (page.next == null ? "" : " ... (find <prefix> " + page.next + " for more)"));
+	}
+
 	@Override
 	public synchronized void messageSent(IMessage message)
 	{
@@ -0,0 +1,443 @@
+package my_chat.interfaces.command_line.load;
+
+import my_chat.clientside.ChatClient;
+import my_chat.data_transfer.ChatListener;
+import my_chat.data_transfer.LatencyHistogram;
+import my_chat.data_transfer.MessageCodec;
+import my_chat.data_transfer.VirtualThreads;
+import my_chat.message_types.ChatMessage;
+import my_chat.message_types.IMessage;
+import my_chat.message_types.InvalidUserMessage;
+import my_chat.message_types.LoginResponseMessage;
+import my_chat.serverside.ChatServer;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A headless client that logs in many sessions with generated names and sends them {@link ChatMessage}s at a fixed
+ * rate, to measure a server's throughput and end-to-end latency.
+ * <p>
+ * Every message carries the time it was due to be sent, and the session that receives it records how long ago that
+ * was. Measuring from the due time rather than from the actual send means that when the generator falls behind
+ * because the server pushes back, the wait shows up in the latencies instead of being hidden. The clock is only
+ * compared within this process, so the server should be on loopback, or in this process with {@code --embedded}.
+ * <p>
+ * Messages sent during the warmup are delivered but not counted.
+ *
+ * @author Elisha
+ */
+public class LoadGenerator
+{
+	private static final String usage = "Arguments: [--server=<address>] [--port=<port>[,<port>...]]" +
+			" [--embedded=threads|selector|virtual]" +
+			" [--codec=serialization|binary] [--sessions=<count>] [--rate=<messages per second>]" +
+			" [--mode=unicast|broadcast] [--size=<characters>] [--senders=<threads>] [--warmup=<seconds>]" +
+			" [--duration=<seconds>] [--prefix=<name prefix>]";
+
+	private static final long CONNECT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+	private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	private final String serverAddress;
+	// the sessions take turns, e.g. to spread over the nodes of a cluster
+	private final int[] ports;
+	private final MessageCodec codec;
+	private final boolean broadcast;
+	private final String padding;
+
+	private final Session[] sessions;
+	private final CountDownLatch loggedIn;
+
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong invalidUsers = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	// messages due in [measureFrom, measureUntil) are counted
+	private volatile long measureFrom = Long.MAX_VALUE, measureUntil = Long.MAX_VALUE;
+	// the sessions report their connections closing as errors
+	private volatile boolean stopping = false;
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		String serverAddress = "localhost";
+		int[] ports = {ChatServer.port};
+		ChatServer.Engine embedded = null;
+		MessageCodec codec = MessageCodec.SERIALIZATION;
+		int sessions = 1000;
+		int rate = 1000;
+		boolean broadcast = false;
+		int size = 64;
+		int senders = 1;
+		int warmup = 5;
+		int duration = 30;
+		String prefix = "load";
+		for (String arg : args)
+		{
+			if (arg.startsWith("--server="))
+			{
+				serverAddress = arg.substring("--server=".length());
+			} else if (arg.startsWith("--port="))
+			{
+				String[] list = arg.substring("--port=".length()).split(",");
+				ports = new int[list.length];
+				for (int i = 0; i < list.length; i++)
+					ports[i] = Integer.parseInt(list[i].trim());
+			} else if (arg.startsWith("--embedded"))
+			{
+				String name = arg.startsWith("--embedded=") ? arg.substring("--embedded=".length()) : "selector";
+				if (name.equalsIgnoreCase("threads"))
+					embedded = ChatServer.Engine.THREAD_PER_CLIENT;
+				else if (name.equalsIgnoreCase("selector"))
+					embedded = ChatServer.Engine.SELECTOR;
+				else if (name.equalsIgnoreCase("virtual"))
+					embedded = ChatServer.Engine.VIRTUAL_THREADS;
+				else
+				{
+					System.err.println("Unknown engine: " + name);
+					System.err.println(usage);
+					return;
+				}
+			} else if (arg.startsWith("--codec="))
+			{
+				codec = MessageCodec.forName(arg.substring("--codec=".length()));
+			} else if (arg.startsWith("--sessions="))
+			{
+				sessions = Integer.parseInt(arg.substring("--sessions=".length()));
+			} else if (arg.startsWith("--rate="))
+			{
+				rate = Integer.parseInt(arg.substring("--rate=".length()));
+			} else if (arg.equalsIgnoreCase("--mode=unicast"))
+			{
+				broadcast = false;
+			} else if (arg.equalsIgnoreCase("--mode=broadcast"))
+			{
+				broadcast = true;
+			} else if (arg.startsWith("--size="))
+			{
+				size = Integer.parseInt(arg.substring("--size=".length()));
+			} else if (arg.startsWith("--senders="))
+			{
+				senders = Integer.parseInt(arg.substring("--senders=".length()));
+			} else if (arg.startsWith("--warmup="))
+			{
+				warmup = Integer.parseInt(arg.substring("--warmup=".length()));
+			} else if (arg.startsWith("--duration="))
+			{
+				duration = Integer.parseInt(arg.substring("--duration=".length()));
+			} else if (arg.startsWith("--prefix="))
+			{
+				prefix = arg.substring("--prefix=".length());
+			} else
+			{
+				System.err.println("Unknown argument: " + arg);
+				System.err.println(usage);
+				return;
+			}
+		}
+		if (sessions < 1 || rate < 1 || senders < 1 || senders > sessions || warmup < 0 || duration < 1)
+		{
+			System.err.println("There must be at least one session, sender and message per second, no more senders " +
+					"than sessions, and a duration of at least a second.");
+			return;
+		}
+
+		ChatServer server = null;
+		var serverListener = new Quiet();
+		if (embedded != null)
+		{
+			serverAddress = "localhost";
+			int threads = embedded == ChatServer.Engine.SELECTOR ? Runtime.getRuntime().availableProcessors()
+					: sessions + 16;
+			server = new ChatServer(serverListener, threads, embedded);
+			server.setCodec(codec);
+			server.setPort(ports[0]);
+			ports = new int[]{ports[0]};
+			new Thread(server, "Embedded server").start();
+		}
+
+		var generator = new LoadGenerator(serverAddress, ports, codec, sessions, broadcast, size, prefix);
+		try
+		{
+			if (generator.connect())
+			{
+				generator.run(rate, senders, TimeUnit.SECONDS.toNanos(warmup), TimeUnit.SECONDS.toNanos(duration));
+				if (server != null)
+					System.out.println("Server:     " + server.getMetrics().snapshot());
+			}
+		} finally
+		{
+			serverListener.stopping = true;
+			generator.stop();
+			if (server != null)
+				server.stop();
+		}
+	}
+
+	private LoadGenerator(String serverAddress, int[] ports, MessageCodec codec, int sessions, boolean broadcast,
+						  int size, String prefix)
+	{
+		this.serverAddress = serverAddress;
+		this.ports = ports;
+		this.codec = codec;
+		this.broadcast = broadcast;
+		this.padding = "x".repeat(Math.max(0, size - 20));
+		this.sessions = new Session[sessions];
+		for (int i = 0; i < sessions; i++)
+			this.sessions[i] = new Session(prefix + i);
+		this.loggedIn = new CountDownLatch(sessions);
+	}
+
+	/**
+	 * Starts every session, each on a virtual thread if there are any, and waits for them to log in.
+	 *
+	 * @return true if they all logged in.
+	 */
+	private boolean connect() throws InterruptedException
+	{
+		for (int port : ports)
+		{
+			if (!waitForServer(port))
+			{
+				System.err.println("Could not reach a server at " + serverAddress + ":" + port);
+				return false;
+			}
+		}
+		if (!VirtualThreads.isSupported())
+			System.out.println("Info: This JVM has no virtual threads. Each session gets a platform thread.");
+
+		long start = System.nanoTime();
+		for (int i = 0; i < sessions.length; i++)
+		{
+			var session = sessions[i];
+			session.client.setPort(ports[i % ports.length]);
+			session.client.setCodec(codec);
+			session.client.updateName(session.name);
+			VirtualThreads.start(session.client);
+		}
+		if (!loggedIn.await(CONNECT_TIMEOUT_NANOS, TimeUnit.NANOSECONDS))
+		{
+			System.err.println("Only " + (sessions.length - loggedIn.getCount()) + " of " + sessions.length +
+					" sessions logged in.");
+			return false;
+		}
+		System.out.println("Info: " + sessions.length + " sessions logged in after "
+				+ (System.nanoTime() - start) / 1_000_000 + " ms");
+		return true;
+	}
+
+	/**
+	 * @return true once the server accepts connections on the port, or false if it does not within the connect
+	 * timeout.
+	 */
+	private boolean waitForServer(int port) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + CONNECT_TIMEOUT_NANOS;
+		while (true)
+		{
+			try
+			{
+				new Socket(serverAddress, port).close();
+				return true;
+			} catch (IOException e)
+			{
+				if (System.nanoTime() > deadline)
+					return false;
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	/**
+	 * Sends the load, waits for it to be delivered, and prints the results.
+	 */
+	private void run(int rate, int senders, long warmupNanos, long durationNanos) throws InterruptedException
+	{
+		long start = System.nanoTime();
+		measureFrom = start + warmupNanos;
+		measureUntil = measureFrom + durationNanos;
+		System.out.println("Info: Sending " + rate + " " + (broadcast ? "broadcasts" : "unicasts") + " per second for "
+				+ TimeUnit.NANOSECONDS.toSeconds(warmupNanos) + " s of warmup and "
+				+ TimeUnit.NANOSECONDS.toSeconds(durationNanos) + " s of measurement");
+
+		// each sender paces its own share of the rate, from its own share of the sessions
+		var threads = new Thread[senders];
+		for (int i = 0; i < senders; i++)
+		{
+			int first = i;
+			long interval = TimeUnit.SECONDS.toNanos(senders) / rate;
+			threads[i] = new Thread(() -> send(first, senders, start + first * interval / senders, interval),
+					"Sender-" + i);
+			threads[i].start();
+		}
+		for (var thread : threads)
+			thread.join();
+
+		long expected = sent.get() * (broadcast ? sessions.length : 1);
+		long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+		while (delivered.get() + invalidUsers.get() < expected && System.nanoTime() < deadline)
+			Thread.sleep(10);
+
+		report(expected, durationNanos);
+	}
+
+	/**
+	 * Sends from every {@code step}th session, starting with {@code first}, one message every {@code interval} nanos.
+	 * A sender that falls behind sends back to back until it catches up.
+	 */
+	private void send(int first, int step, long start, long interval)
+	{
+		var random = ThreadLocalRandom.current();
+		int index = first;
+		for (long due = start; due < measureUntil; due += interval)
+		{
+			long wait;
+			while ((wait = due - System.nanoTime()) > 0)
+				LockSupport.parkNanos(wait);
+
+			var session = sessions[index];
+			String text = due + " " + padding;
+			if (broadcast)
+			{
+				session.client.messageAll(text);
+			} else
+			{
+				// anyone but the sender, unless it is alone
+				int dest = sessions.length == 1 ? 0 : random.nextInt(sessions.length - 1);
+				if (sessions.length > 1 && dest >= index)
+					dest++;
+				session.client.messageOne(sessions[dest].name, text);
+			}
+			if (due >= measureFrom)
+				sent.incrementAndGet();
+
+			index += step;
+			if (index >= sessions.length)
+				index = first;
+		}
+	}
+
+	private void report(long expected, long durationNanos)
+	{
+		double seconds = durationNanos / 1e9;
+		System.out.println();
+		System.out.println("Sessions:   " + sessions.length + " (" + (broadcast ? "broadcast" : "unicast") + ", "
+				+ (codec == MessageCodec.BINARY ? "binary" : "serialization") + ")");
+		System.out.printf("Sent:       %d (%.0f/s)%n", sent.get(), sent.get() / seconds);
+		System.out.printf("Delivered:  %d of %d (%.0f/s)%n", delivered.get(), expected, delivered.get() / seconds);
+		if (invalidUsers.get() > 0)
+			System.out.println("Rejected:   " + invalidUsers.get() + " (destination not logged in)");
+		if (errors.get() > 0)
+			System.out.println("Errors:     " + errors.get());
+		System.out.printf("Latency:    p50 %s, p99 %s, p999 %s, max %s%n", millis(latencies.percentile(0.5)),
+				millis(latencies.percentile(0.99)), millis(latencies.percentile(0.999)), millis(latencies.max()));
+	}
+
+	private static String millis(long nanos)
+	{
+		return String.format("%.3f ms", nanos / 1e6);
+	}
+
+	private void stop()
+	{
+		stopping = true;
+		for (var session : sessions)
+			if (session.client.isRunning())
+				session.client.stop();
+	}
+
+	/**
+	 * One logged in client, and what it receives.
+	 */
+	private class Session implements ChatListener
+	{
+		final String name;
+		final ChatClient client;
+
+		Session(String name)
+		{
+			this.name = name;
+			this.client = new ChatClient(this, serverAddress);
+		}
+
+		@Override
+		public void messageReceived(IMessage message)
+		{
+			if (message instanceof ChatMessage)
+			{
+				long now = System.nanoTime();
+				String text = ((ChatMessage) message).message;
+				int space = text.indexOf(' ');
+				long due;
+				try
+				{
+					due = Long.parseLong(space < 0 ? text : text.substring(0, space));
+				} catch (NumberFormatException e)
+				{
+					return; // not ours
+				}
+				if (due >= measureFrom && due < measureUntil)
+				{
+					latencies.record(now - due);
+					delivered.incrementAndGet();
+				}
+			} else if (message instanceof InvalidUserMessage)
+			{
+				invalidUsers.incrementAndGet();
+			} else if (message instanceof LoginResponseMessage)
+			{
+				var response = (LoginResponseMessage) message;
+				if (response.accepted)
+					loggedIn.countDown();
+				else if (response.redirect == null) // the client follows redirects itself
+					System.err.println(name + ": " + response);
+			}
+		}
+
+		@Override
+		public void messageSent(IMessage message)
+		{
+		}
+
+		@Override
+		public void stat(String message, boolean err)
+		{
+			if (err && !stopping)
+			{
+				errors.incrementAndGet();
+				System.err.println(name + ": " + message);
+			}
+		}
+	}
+
+	/**
+	 * A listener for the embedded server that only prints errors, until the sessions log out.
+	 */
+	private static class Quiet implements ChatListener
+	{
+		volatile boolean stopping = false;
+
+		@Override
+		public void messageReceived(IMessage message)
+		{
+		}
+
+		@Override
+		public void messageSent(IMessage message)
+		{
+		}
+
+		@Override
+		public void stat(String message, boolean err)
+		{
+			if (err && !stopping)
+				System.err.println("Server: " + message);
+		}
+	}
+}
@@ -1,9 +1,21 @@
 package my_chat.interfaces.command_line.server;
 
+import my_chat.data_transfer.AsyncChatListener;
+import my_chat.data_transfer.Deflate;
+import my_chat.data_transfer.MessageCodec;
 import my_chat.message_types.IMessage;
 import my_chat.data_transfer.ChatListener;
 import my_chat.serverside.ChatServer;
+import my_chat.serverside.OverflowPolicy;
 
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
 
 /**
@@ -11,9 +23,150 @@ import java.util.Scanner;
  */
 public class CommandLineServer implements ChatListener
 {
+	private final PrintStream out;
+
+	/**
+	 * @param buffered true to flush the output once per batch of events instead of once per line, when the server
+	 *                 calls the listener from its own thread.
+	 */
+	private CommandLineServer(boolean buffered)
+	{
+		out = buffered ? new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16),
+				false) : System.out;
+	}
+
 	public static void main(String[] args)
 	{
-		ChatServer server = new ChatServer(new CommandLineServer(), 100);
+		ChatServer.Engine engine = ChatServer.Engine.THREAD_PER_CLIENT;
+		MessageCodec codec = MessageCodec.SERIALIZATION;
+		int queueCapacity = 4096;
+		OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+		int historyCapacity = 10_000;
+		String logDirectory = null;
+		int listenerBuffer = 65536;
+		AsyncChatListener.Overflow listenerOverflow = AsyncChatListener.Overflow.DROP;
+		int batch = 64;
+		int port = ChatServer.port;
+		String node = null;
+		int relayPort = 0;
+		var peers = new LinkedHashMap<String, InetSocketAddress>();
+		int maxHandshakes = 1024;
+		double loginRate = 0;
+		int loginBurst = 1;
+		long handshakeTimeout = 10_000;
+		long idle = 30_000;
+		long heartbeatTimeout = 10_000;
+		int compressMinBytes = Deflate.DEFAULT_MIN_BYTES;
+		for (String arg : args)
+		{
+			if (arg.equalsIgnoreCase("selector"))
+			{
+				engine = ChatServer.Engine.SELECTOR;
+			} else if (arg.equalsIgnoreCase("virtual"))
+			{
+				engine = ChatServer.Engine.VIRTUAL_THREADS;
+			} else if (arg.startsWith("--codec="))
+			{
+				codec = MessageCodec.forName(arg.substring("--codec=".length()));
+			} else if (arg.startsWith("--queue="))
+			{
+				queueCapacity = Integer.parseInt(arg.substring("--queue=".length()));
+			} else if (arg.startsWith("--history="))
+			{
+				historyCapacity = Integer.parseInt(arg.substring("--history=".length()));
+			} else if (arg.startsWith("--log="))
+			{
+				logDirectory = arg.substring("--log=".length());
+			} else if (arg.startsWith("--listener-buffer="))
+			{
+				listenerBuffer = Integer.parseInt(arg.substring("--listener-buffer=".length()));
+			} else if (arg.startsWith("--listener-overflow="))
+			{
+				listenerOverflow = AsyncChatListener.Overflow.valueOf(
+						arg.substring("--listener-overflow=".length()).toUpperCase());
+			} else if (arg.startsWith("--port="))
+			{
+				port = Integer.parseInt(arg.substring("--port=".length()));
+			} else if (arg.startsWith("--node="))
+			{
+				node = arg.substring("--node=".length());
+			} else if (arg.startsWith("--relay-port="))
+			{
+				relayPort = Integer.parseInt(arg.substring("--relay-port=".length()));
+			} else if (arg.startsWith("--peers="))
+			{
+				if (!parsePeers(arg.substring("--peers=".length()), peers))
+					return;
+			} else if (arg.startsWith("--batch="))
+			{
+				batch = Integer.parseInt(arg.substring("--batch=".length()));
+			} else if (arg.startsWith("--max-handshakes="))
+			{
+				maxHandshakes = Integer.parseInt(arg.substring("--max-handshakes=".length()));
+			} else if (arg.startsWith("--login-rate="))
+			{
+				// <per second>[/<burst>]
+				String[] rate = arg.substring("--login-rate=".length()).split("/");
+				loginRate = Double.parseDouble(rate[0]);
+				loginBurst = rate.length > 1 ? Integer.parseInt(rate[1]) : Math.max(1, (int) Math.ceil(loginRate));
+			} else if (arg.startsWith("--handshake-timeout="))
+			{
+				handshakeTimeout = Long.parseLong(arg.substring("--handshake-timeout=".length()));
+			} else if (arg.startsWith("--heartbeat="))
+			{
+				// <idle ms>[/<timeout ms>]
+				String[] heartbeat = arg.substring("--heartbeat=".length()).split("/");
+				idle = Long.parseLong(heartbeat[0]);
+				if (heartbeat.length > 1)
+					heartbeatTimeout = Long.parseLong(heartbeat[1]);
+			} else if (arg.startsWith("--compress="))
+			{
+				compressMinBytes = Integer.parseInt(arg.substring("--compress=".length()));
+			} else if (arg.startsWith("--overflow="))
+			{
+				overflowPolicy = OverflowPolicy.valueOf(arg.substring("--overflow=".length()).toUpperCase());
+			} else
+			{
+				System.err.println("Unknown argument: " + arg);
+				System.err.println("Arguments: [selector|virtual] [--codec=serialization|binary] [--queue=<capacity>]" +
+						" [--overflow=drop_oldest|disconnect|block] [--history=<capacity>]" +
+						" [--log=<directory>] [--listener-buffer=<events>] [--listener-overflow=drop|block]" +
+						" [--batch=<messages>] [--port=<port>]" +
+						" [--max-handshakes=<connections>] [--login-rate=<per second>[/<burst>]]" +
+						" [--handshake-timeout=<ms>] [--heartbeat=<idle ms>[/<timeout ms>]]" +
+						" [--compress=<min bytes>|0]" +
+						" [--node=<name> --relay-port=<port> --peers=<name>@<host>:<port>,...]");
+				return;
+			}
+		}
+		if (node != null && relayPort == 0)
+		{
+			System.err.println("A node of a cluster needs a --relay-port.");
+			return;
+		}
+
+		ChatServer server;
+		var listener = new CommandLineServer(listenerBuffer > 0);
+		if (engine == ChatServer.Engine.SELECTOR)
+		{
+			server = new ChatServer(listener, Runtime.getRuntime().availableProcessors(), engine);
+		} else
+		{
+			server = new ChatServer(listener, 100, engine);
+		}
+		server.setCodec(codec);
+		server.setListenerBuffer(listenerBuffer, listenerOverflow);
+		server.setOutboundQueue(queueCapacity, overflowPolicy, 1000);
+		server.setBatching(batch);
+		server.setHistory(historyCapacity, 0);
+		server.setPort(port);
+		server.setAdmission(maxHandshakes, loginRate, loginBurst, handshakeTimeout);
+		server.setHeartbeat(idle, heartbeatTimeout);
+		server.setCompression(compressMinBytes);
+		if (node != null)
+			server.setCluster(node, relayPort, peers);
+		if (logDirectory != null)
+			server.setMessageLog(Paths.get(logDirectory), 64 << 20, 16, 100);
 
 		Thread thread = new Thread(server);
 		thread.start();
@@ -32,20 +185,69 @@ public class CommandLineServer implements ChatListener
 				int i = input.indexOf(':');
 				String message = input.substring(i + 1).trim();
 				server.broadcast(message);
+			} else if (input.toLowerCase().startsWith("queues"))
+			{
+				for (var depth : server.getQueueDepths().entrySet())
+				{
+					System.out.println("Info: " + depth.getKey() + ": " + depth.getValue() + " queued");
+				}
+			} else if (input.toLowerCase().startsWith("clients"))
+			{
+				for (var stats : server.getSessionStats().entrySet())
+				{
+					System.out.println("Info: " + stats.getKey() + ": " + stats.getValue());
+				}
+			} else if (input.toLowerCase().startsWith("metrics"))
+			{
+				System.out.println("Info: " + server.getMetrics().snapshot());
+			} else if (input.toLowerCase().startsWith("peers"))
+			{
+				for (var peer : server.getPeers().entrySet())
+				{
+					System.out.println("Info: " + peer.getKey() + ": " + peer.getValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parses peers such as {@code b@localhost:60102,c@10.0.0.3:60103}.
+	 *
+	 * @return false if they could not be parsed. The error was printed.
+	 */
+	private static boolean parsePeers(String list, Map<String, InetSocketAddress> peers)
+	{
+		for (String peer : list.split(","))
+		{
+			int at = peer.indexOf('@'), colon = peer.lastIndexOf(':');
+			if (at <= 0 || colon < at)
+			{
+				System.err.println("A peer must look like <name>@<host>:<port>: " + peer);
+				return false;
+			}
+			try
+			{
+				int port = Integer.parseInt(peer.substring(colon + 1));
+				peers.put(peer.substring(0, at), new InetSocketAddress(peer.substring(at + 1, colon), port));
+			} catch (IllegalArgumentException e)
+			{
+				System.err.println("Invalid peer address: " + peer);
+				return false;
 			}
 		}
+		return true;
 	}
 
 	@Override
 	public void messageReceived(IMessage message)
 	{
-		System.out.println("Received: " + message.toString());
+		out.println("Received: " + message.toString());
 	}
 
 	@Override
 	public void messageSent(IMessage message)
 	{
-		System.out.println("Sent: " + message.toString());
+		out.println("Sent: " + message.toString());
 	}
 
 	@Override
@@ -56,7 +258,13 @@ public class CommandLineServer implements ChatListener
 			System.err.println(message);
 		} else
 		{
-			System.out.println("Info: " + message);
+			out.println("Info: " + message);
 		}
 	}
+
+	@Override
+	public void endOfBatch()
+	{
+		out.flush();
+	}
 }
@@ -0,0 +1,54 @@
+package my_chat.message_types;
+
+import java.util.List;
+
+/**
+ * Many messages in one frame. The receiver handles them one by one, in order, as if they had come in frames of their
+ * own.
+ * Clients send batches of chat, room and name messages to post many at once; logins cannot be batched. The server
+ * sends batches when a client catches up on missed messages, and when messages queue up for a client faster than it
+ * reads them. Batches do not nest.
+ *
+ * @author Elisha
+ */
+public class BatchMessage implements IServerMessage, IClientMessage
+{
+	public String source, dest;
+	public List<? extends IMessage> messages;
+
+	/**
+	 * @param source   the client that sent the batch, or null for the server.
+	 * @param dest     the client the batch is for, or null for the server.
+	 * @param messages the messages, in order. The list is not copied, and must be serializable, e.g. an
+	 *                 {@link java.util.ArrayList}.
+	 */
+	public BatchMessage(String source, String dest, List<? extends IMessage> messages)
+	{
+		if (source == null)
+		{
+			source = "<server>";
+		}
+
+		this.source = source;
+		this.dest = dest;
+		this.messages = messages;
+	}
+
+	@Override
+	public String toString()
+	{
+		return source + " sent a batch of " + messages.size() + " messages";
+	}
+
+	@Override
+	public String getSource()
+	{
+		return source;
+	}
+
+	@Override
+	public String getDest()
+	{
+		return dest;
+	}
+}
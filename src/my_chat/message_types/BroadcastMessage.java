@@ -3,9 +3,13 @@ package my_chat.message_types;
 /**
  * @author Elisha
  */
-public class BroadcastMessage implements IMessage
+public class BroadcastMessage implements IServerMessage
 {
 	public String message;
+	/**
+	 * The message's place in the server's history, or 0 if the server did not send it yet.
+	 */
+	public long seq;
 
 	public BroadcastMessage(String message)
 	{
@@ -6,6 +6,10 @@ package my_chat.message_types;
 public class ChatMessage implements IServerMessage,IClientMessage
 {
 	public String source,dest,message;
+	/**
+	 * The message's place in the server's history, or 0 if the server did not send it yet.
+	 */
+	public long seq;
 
 	public ChatMessage(String source, String dest, String message)
 	{
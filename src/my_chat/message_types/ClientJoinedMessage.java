@@ -5,8 +5,11 @@ package my_chat.message_types;
  */
 public class ClientJoinedMessage extends BroadcastMessage
 {
+	public String name;
+
 	public ClientJoinedMessage(String name)
 	{
 		super(name + " has logged in");
+		this.name = name;
 	}
 }
@@ -5,8 +5,11 @@ package my_chat.message_types;
  */
 public class ClientLeftMessage extends BroadcastMessage
 {
+	public String name;
+
 	public ClientLeftMessage(String name)
 	{
 		super(name + " has left");
+		this.name = name;
 	}
 }
@@ -0,0 +1,33 @@
+package my_chat.message_types;
+
+/**
+ * The receiver's answer to a {@link FileOfferMessage}, and from then on its flow control: each one lets the sender send
+ * {@link #credit} more chunks. Declining stops the transfer, at any point.
+ *
+ * @author Elisha
+ */
+public class FileAcceptMessage extends FileTransferMessage
+{
+	/**
+	 * False if the receiver declined the file, or gave up on it.
+	 */
+	public boolean accepted;
+	/**
+	 * How many more {@link FileChunkMessage}s the sender may send.
+	 */
+	public int credit;
+
+	public FileAcceptMessage(String source, String dest, long id, boolean accepted, int credit)
+	{
+		super(source, dest, id);
+		this.accepted = accepted;
+		this.credit = credit;
+	}
+
+	@Override
+	public String toString()
+	{
+		return accepted ? source + " takes " + credit + " more chunks of file " + id
+				: source + " declined file " + id;
+	}
+}
@@ -0,0 +1,42 @@
+package my_chat.message_types;
+
+/**
+ * A part of a file, in order.
+ *
+ * @author Elisha
+ */
+public class FileChunkMessage extends FileTransferMessage
+{
+	/**
+	 * Where in the file the chunk goes.
+	 */
+	public long offset;
+	/**
+	 * The chunk's data. Null in a chunk the server only decoded to pass on in its {@link #frame}.
+	 */
+	public byte[] data;
+	/**
+	 * True for the last chunk. If the file is not complete with it, the sender gave up on the transfer.
+	 */
+	public boolean last;
+	/**
+	 * The whole frame the chunk came in, if the server kept it to pass the chunk on as it is instead of encoding it
+	 * again. Only the selector engine, which reads frames before it decodes them, keeps it. It is not sent.
+	 */
+	public transient byte[] frame;
+
+	public FileChunkMessage(String source, String dest, long id, long offset, byte[] data, boolean last)
+	{
+		super(source, dest, id);
+		this.offset = offset;
+		this.data = data;
+		this.last = last;
+	}
+
+	@Override
+	public String toString()
+	{
+		return source + " sends " + dest + (data == null ? " a chunk" : " " + data.length + " bytes") + " of file " + id
+				+ " at " + offset + (last ? " (last)" : "");
+	}
+}
@@ -0,0 +1,28 @@
+package my_chat.message_types;
+
+/**
+ * Offers a file to another client, which accepts or declines it with a {@link FileAcceptMessage}.
+ *
+ * @author Elisha
+ */
+public class FileOfferMessage extends FileTransferMessage
+{
+	/**
+	 * The file's name, without its directory.
+	 */
+	public String fileName;
+	public long size;
+
+	public FileOfferMessage(String source, String dest, long id, String fileName, long size)
+	{
+		super(source, dest, id);
+		this.fileName = fileName;
+		this.size = size;
+	}
+
+	@Override
+	public String toString()
+	{
+		return source + " offers " + dest + " the file " + fileName + " (" + size + " bytes)";
+	}
+}
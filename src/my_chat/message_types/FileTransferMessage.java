@@ -0,0 +1,39 @@
+package my_chat.message_types;
+
+/**
+ * A message of a file transfer between two clients. The sender offers a file with a {@link FileOfferMessage}, the
+ * receiver accepts or declines it with a {@link FileAcceptMessage}, and the file then goes in
+ * {@link FileChunkMessage}s, only as many at a time as the receiver allows, so a file does not crowd out the chat on
+ * either connection or pile up in the server.
+ * <p>
+ * The server only passes them on: they are not numbered, kept or replayed, and they cannot be sent to everyone.
+ *
+ * @author Elisha
+ */
+public abstract class FileTransferMessage implements IServerMessage,IClientMessage
+{
+	public String source,dest;
+	/**
+	 * The transfer's id, which the sender picks at random.
+	 */
+	public long id;
+
+	protected FileTransferMessage(String source, String dest, long id)
+	{
+		this.source = source;
+		this.dest = dest;
+		this.id = id;
+	}
+
+	@Override
+	public String getSource()
+	{
+		return source;
+	}
+
+	@Override
+	public String getDest()
+	{
+		return dest;
+	}
+}
@@ -0,0 +1,41 @@
+package my_chat.message_types;
+
+/**
+ * Checks that the other end of a connection is still there. The server pings a client that has been quiet for a
+ * while, and the client answers with a reply; a client that does not answer in time is dropped.
+ *
+ * @author Elisha
+ */
+public class HeartbeatMessage implements IServerMessage,IClientMessage
+{
+	public String source,dest;
+	/**
+	 * False for a ping, true for the answer to one.
+	 */
+	public boolean reply;
+
+	public HeartbeatMessage(String source, String dest, boolean reply)
+	{
+		this.source = source;
+		this.dest = dest;
+		this.reply = reply;
+	}
+
+	@Override
+	public String toString()
+	{
+		return reply ? source + " is still here" : source + " is checking that " + dest + " is still here";
+	}
+
+	@Override
+	public String getSource()
+	{
+		return source;
+	}
+
+	@Override
+	public String getDest()
+	{
+		return dest;
+	}
+}
@@ -13,6 +13,14 @@ public class InvalidUserMessage implements IServerMessage
 		this.user = user;
 	}
 
+	/**
+	 * @return the user that does not exist.
+	 */
+	public String getUser()
+	{
+		return user;
+	}
+
 	@Override
 	public String getSource()
 	{
@@ -0,0 +1,48 @@
+package my_chat.message_types;
+
+/**
+ * A client joining or leaving a room.
+ * Clients send it to join or leave, and the server passes it on to the room's members, the client included. A client
+ * that posts to a room it is not in gets one with join == false back.
+ *
+ * @author Elisha
+ */
+public class JoinRoomMessage implements IServerMessage, IClientMessage
+{
+	public String name, room;
+	public boolean join;
+
+	public JoinRoomMessage(String name, String room, boolean join)
+	{
+		this.name = name;
+		this.room = room;
+		this.join = join;
+	}
+
+	@Override
+	public String toString()
+	{
+		if (join)
+		{
+			return name + " has joined #" + room;
+		} else
+		{
+			return name + " has left #" + room;
+		}
+	}
+
+	@Override
+	public String getSource()
+	{
+		return name;
+	}
+
+	/**
+	 * @return the room.
+	 */
+	@Override
+	public String getDest()
+	{
+		return room;
+	}
+}
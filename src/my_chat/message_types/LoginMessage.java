@@ -7,11 +7,33 @@ public class LoginMessage implements IClientMessage
 {
 	public String name;
 	public boolean login;
+	/**
+	 * The sequence number of the last message the client saw, so that the server sends the messages it missed.
+	 * 0 means the client does not want to catch up.
+	 */
+	public long lastSeq;
+	/**
+	 * The compression the client takes, see {@link my_chat.data_transfer.Deflate#NAME}, or null if it only takes frames
+	 * as they are.
+	 */
+	public String compression;
 
 	public LoginMessage(String name, boolean login)
+	{
+		this(name, login, 0);
+	}
+
+	public LoginMessage(String name, boolean login, long lastSeq)
+	{
+		this(name, login, lastSeq, null);
+	}
+
+	public LoginMessage(String name, boolean login, long lastSeq, String compression)
 	{
 		this.name = name;
 		this.login = login;
+		this.lastSeq = lastSeq;
+		this.compression = compression;
 	}
 
 	@Override
@@ -5,6 +5,22 @@ package my_chat.message_types;
  */
 public class LoginRequestMessage implements IServerMessage
 {
+	/**
+	 * The compression the server takes, see {@link my_chat.data_transfer.Deflate#NAME}, or null if it only takes frames
+	 * as they are.
+	 */
+	public String compression;
+
+	public LoginRequestMessage()
+	{
+		this(null);
+	}
+
+	public LoginRequestMessage(String compression)
+	{
+		this.compression = compression;
+	}
+
 	@Override
 	public String toString()
 	{
@@ -8,12 +8,40 @@ public class LoginResponseMessage implements IServerMessage
 	public boolean accepted;
 	public boolean nameExists;
 	public String name;
+	/**
+	 * The sequence number of the server's newest message when the client logged in.
+	 * Anything after it is sent to the client live.
+	 */
+	public long lastSeq;
+	/**
+	 * When the server is a node of a cluster, and the client's name belongs on another node: the address of that node,
+	 * as host:port. The client should log in there instead. Null otherwise.
+	 */
+	public String redirect;
 
 	public LoginResponseMessage(boolean accepted, boolean nameExists, String name)
+	{
+		this(accepted, nameExists, name, 0);
+	}
+
+	public LoginResponseMessage(boolean accepted, boolean nameExists, String name, long lastSeq)
 	{
 		this.accepted = accepted;
 		this.nameExists = nameExists;
 		this.name = name;
+		this.lastSeq = lastSeq;
+	}
+
+	/**
+	 * Turns a login away to the node the name belongs on.
+	 *
+	 * @param name     the name the client asked for.
+	 * @param redirect the address of the node, as host:port.
+	 */
+	public LoginResponseMessage(String name, String redirect)
+	{
+		this(false, false, name, 0);
+		this.redirect = redirect;
 	}
 
 	@Override
@@ -24,7 +52,10 @@ public class LoginResponseMessage implements IServerMessage
 			return "Login accepted as " + name;
 		} else
 		{
-			if (nameExists)
+			if (redirect != null)
+			{
+				return "Login was not accepted as " + name + ". Log in at " + redirect + " instead";
+			} else if (nameExists)
 			{
 				return "Login was not accepted as " + name + ". That name already exists";
 			}else
@@ -10,17 +10,49 @@ public class NameListMessage implements IServerMessage
 	String dest;
 
 	HashSet<String> names;
+	/**
+	 * The sequence number of the last {@link ClientJoinedMessage} or {@link ClientLeftMessage} the names include. The
+	 * joins and leaves after it bring them up to date.
+	 */
+	public long version;
+	/**
+	 * True if this is a page of a directory query, see {@link NameRequestMessage#limit}, rather than every name. The
+	 * names of a page are in order.
+	 */
+	public boolean page;
+	/**
+	 * The cursor of the next page: the last name of this one, or null if there are no more.
+	 */
+	public String next;
 
 	public NameListMessage(String dest, HashSet<String> names)
+	{
+		this(dest, names, 0);
+	}
+
+	public NameListMessage(String dest, HashSet<String> names, long version)
 	{
 		this.dest = dest;
 		this.names = names;
+		this.version = version;
+	}
+
+	/**
+	 * @param names the names in order, e.g. a {@link java.util.LinkedHashSet}.
+	 * @return a page of a directory query.
+	 */
+	public static NameListMessage page(String dest, HashSet<String> names, long version, String next)
+	{
+		var message = new NameListMessage(dest, names, version);
+		message.page = true;
+		message.next = next;
+		return message;
 	}
 
 	@Override
 	public String toString()
 	{
-		StringBuilder sb = new StringBuilder("All clients: ");
+		StringBuilder sb = new StringBuilder(page ? "Clients: " : "All clients: ");
 
 		for (var name : names)
 		{
@@ -28,9 +60,16 @@ public class NameListMessage implements IServerMessage
 			sb.append(' ');
 		}
 
+		if (next != null)
+			sb.append("(more after ").append(next).append(')');
 		return sb.toString();
 	}
 
+	public HashSet<String> getNames()
+	{
+		return names;
+	}
+
 	@Override
 	public String getSource()
 	{
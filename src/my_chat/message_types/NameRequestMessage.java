@@ -6,15 +6,44 @@ package my_chat.message_types;
 public class NameRequestMessage implements IClientMessage
 {
 	public String source;
+	/**
+	 * A directory query: only the names that start with this, or null for any name.
+	 */
+	public String prefix;
+	/**
+	 * A directory query: the cursor, i.e. the {@link NameListMessage#next} of the last page, or null for the first page.
+	 */
+	public String after;
+	/**
+	 * The most names to send back, which makes this a directory query answered with a page, or 0 for every name.
+	 */
+	public int limit;
 
+	/**
+	 * Asks for every name.
+	 */
 	public NameRequestMessage(String source)
 	{
 		this.source = source;
 	}
 
+	/**
+	 * Asks for a page of the names that start with a prefix, in order.
+	 */
+	public NameRequestMessage(String source, String prefix, String after, int limit)
+	{
+		this.source = source;
+		this.prefix = prefix;
+		this.after = after;
+		this.limit = limit;
+	}
+
 	@Override
 	public String toString()
 	{
+		if (limit > 0)
+			return source + " is looking up " + limit + " clients named " + (prefix == null ? "" : prefix) + "*"
+					+ (after == null ? "" : " after " + after);
 		return source + " is requesting a list of all clients";
 	}
 
@@ -0,0 +1,37 @@
+package my_chat.message_types;
+
+/**
+ * The first message a server sends on a connection to another server of its cluster. It names the node the messages
+ * that follow come from, and the port its clients connect to, so other nodes can send clients there.
+ *
+ * @author Elisha
+ */
+public class PeerHelloMessage implements IMessage
+{
+	public String node;
+	public int port;
+
+	public PeerHelloMessage(String node, int port)
+	{
+		this.node = node;
+		this.port = port;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Node " + node + " is connecting";
+	}
+
+	@Override
+	public String getSource()
+	{
+		return node;
+	}
+
+	@Override
+	public String getDest()
+	{
+		return null;
+	}
+}
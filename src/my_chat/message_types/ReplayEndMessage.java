@@ -0,0 +1,41 @@
+package my_chat.message_types;
+
+/**
+ * Tells a client that logged in with a {@link LoginMessage#lastSeq} that it has been sent every message it missed.
+ *
+ * @author Elisha
+ */
+public class ReplayEndMessage implements IServerMessage
+{
+	public String dest;
+	/**
+	 * The sequence number the replay went up to. It is the {@link LoginResponseMessage#lastSeq} of the login.
+	 */
+	public long upToSeq;
+	public int count;
+
+	public ReplayEndMessage(String dest, long upToSeq, int count)
+	{
+		this.dest = dest;
+		this.upToSeq = upToSeq;
+		this.count = count;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Caught up on " + count + " missed messages";
+	}
+
+	@Override
+	public String getSource()
+	{
+		return "<server>";
+	}
+
+	@Override
+	public String getDest()
+	{
+		return dest;
+	}
+}
@@ -0,0 +1,46 @@
+package my_chat.message_types;
+
+/**
+ * A message to everyone in a room. Clients post it, and the server passes it on to the room's members.
+ * Room messages are live only: they are not kept in the history, so they are not replayed and have no sequence
+ * number.
+ *
+ * @author Elisha
+ */
+public class RoomMessage implements IServerMessage, IClientMessage
+{
+	public String source, room, message;
+
+	public RoomMessage(String source, String room, String message)
+	{
+		if (source == null)
+		{
+			source = "<server>";
+		}
+
+		this.source = source;
+		this.room = room;
+		this.message = message;
+	}
+
+	@Override
+	public String toString()
+	{
+		return source + " to #" + room + ": " + message;
+	}
+
+	@Override
+	public String getSource()
+	{
+		return source;
+	}
+
+	/**
+	 * @return the room.
+	 */
+	@Override
+	public String getDest()
+	{
+		return room;
+	}
+}
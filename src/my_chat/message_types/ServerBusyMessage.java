@@ -0,0 +1,40 @@
+package my_chat.message_types;
+
+/**
+ * Tells a connecting client that the server will not take it on now, and when to try again. The server closes the
+ * connection after sending it.
+ *
+ * @author Elisha
+ */
+public class ServerBusyMessage implements IServerMessage
+{
+	/**
+	 * How long the client should wait before it connects again, in milliseconds.
+	 */
+	public long retryAfterMillis;
+	public String reason;
+
+	public ServerBusyMessage(long retryAfterMillis, String reason)
+	{
+		this.retryAfterMillis = retryAfterMillis;
+		this.reason = reason;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Server is busy (" + reason + "). Try again in " + retryAfterMillis + " ms";
+	}
+
+	@Override
+	public String getSource()
+	{
+		return "<server>";
+	}
+
+	@Override
+	public String getDest()
+	{
+		return "<new_client>";
+	}
+}
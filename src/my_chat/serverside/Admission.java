@@ -0,0 +1,153 @@
+package my_chat.serverside;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which connections a server takes on while they log in, so a storm of connections, such as every client
+ * reconnecting after a restart, cannot crowd out the clients that are logged in.
+ * <p>
+ * A connection is in its handshake from being accepted until its login is accepted or it closes. Only so many
+ * connections may be in their handshake at once, and each address may only try to log in so often: every login
+ * costs a token from the address's bucket, which refills at a steady rate up to a burst. A connection that comes when
+ * either runs out is told the server is busy, and when to try again, and is closed.
+ * <p>
+ * It never locks, so the accepting thread and the engine threads check it without waiting for each other.
+ *
+ * @author Elisha
+ */
+final class Admission
+{
+	/**
+	 * When to try again after finding every handshake slot taken, roughly the time a handshake takes.
+	 */
+	static final long HANDSHAKES_RETRY_MILLIS = 1000;
+	// how often buckets that have refilled are forgotten
+	private static final long SWEEP_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	private final int maxHandshakes;
+	// the time one token takes to come back, or 0 if logins are not limited
+	private final long tokenNanos;
+	// how far ahead of now a bucket's time may get: a full bucket's worth of tokens
+	private final long burstNanos;
+	private final long handshakeTimeoutMillis;
+
+	private final AtomicInteger handshakes = new AtomicInteger();
+	private final ConcurrentHashMap<InetAddress, AtomicLong> buckets = new ConcurrentHashMap<>();
+	private final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + SWEEP_NANOS);
+
+	/**
+	 * @param maxHandshakes          the most connections in their handshake at once, or 0 for no limit.
+	 * @param loginsPerSecond        the rate each address may log in at, or 0 for no limit.
+	 * @param loginBurst             the logins an address may make at once before the rate applies.
+	 * @param handshakeTimeoutMillis how long a connection may take to log in, or 0 for no limit.
+	 */
+	Admission(int maxHandshakes, double loginsPerSecond, int loginBurst, long handshakeTimeoutMillis)
+	{
+		this.maxHandshakes = maxHandshakes;
+		this.tokenNanos = loginsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / loginsPerSecond) : 0;
+		this.burstNanos = tokenNanos * Math.max(1, loginBurst);
+		this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+	}
+
+	/**
+	 * Checks that a new connection's address has a login left. The token is taken when it logs in.
+	 *
+	 * @param address the address the connection came from.
+	 * @return 0 if it has, or else how many milliseconds the connection should wait before trying again.
+	 */
+	long connect(InetAddress address)
+	{
+		long now = System.nanoTime();
+		sweep(now);
+		return waitFor(address, now, false);
+	}
+
+	/**
+	 * Starts the handshake of a new connection, if there is room for it. A connection that was let in must end its
+	 * handshake with {@link #handshakeEnded()}.
+	 *
+	 * @return true if the connection was let in, false if it should try again in {@link #HANDSHAKES_RETRY_MILLIS}.
+	 */
+	boolean startHandshake()
+	{
+		if (handshakes.incrementAndGet() > maxHandshakes && maxHandshakes > 0)
+		{
+			handshakes.decrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Ends the handshake of a connection that {@link #startHandshake()} let in, when it logged in or closed.
+	 */
+	void handshakeEnded()
+	{
+		handshakes.decrementAndGet();
+	}
+
+	/**
+	 * Takes a token for a login attempt.
+	 *
+	 * @param address the address the connection came from.
+	 * @return 0 if the login may go on, or else how many milliseconds the client should wait before trying again.
+	 */
+	long login(InetAddress address)
+	{
+		return waitFor(address, System.nanoTime(), true);
+	}
+
+	/**
+	 * @return how long a connection may take to log in, in milliseconds, or 0 for no limit.
+	 */
+	long handshakeTimeoutMillis()
+	{
+		return handshakeTimeoutMillis;
+	}
+
+	/**
+	 * @return the number of connections in their handshake.
+	 */
+	int handshakes()
+	{
+		return handshakes.get();
+	}
+
+	/**
+	 * The bucket is kept as one time: when it will be full again. Taking a token pushes that time a token's worth
+	 * later, and the bucket is empty once it is more than a burst's worth ahead of now.
+	 *
+	 * @param take true to take a token, false only to check that there is one.
+	 * @return 0 if there is a token, or else the milliseconds until there is one.
+	 */
+	private long waitFor(InetAddress address, long now, boolean take)
+	{
+		if (tokenNanos == 0 || address == null)
+			return 0;
+		var bucket = buckets.computeIfAbsent(address, a -> new AtomicLong(now));
+		while (true)
+		{
+			long full = bucket.get();
+			long next = Math.max(full, now) + tokenNanos;
+			if (next - now > burstNanos)
+				return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next - now - burstNanos));
+			if (!take || bucket.compareAndSet(full, next))
+				return 0;
+		}
+	}
+
+	/**
+	 * Forgets the buckets that are full again, now and then, so addresses that stopped connecting do not pile up.
+	 */
+	private void sweep(long now)
+	{
+		long due = nextSweep.get();
+		if (tokenNanos == 0 || now - due < 0 || !nextSweep.compareAndSet(due, now + SWEEP_NANOS))
+			return;
+		buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+	}
+}
@@ -1,17 +1,31 @@
 package my_chat.serverside;
 
+import my_chat.data_transfer.AsyncChatListener;
 import my_chat.data_transfer.ChatListener;
+import my_chat.data_transfer.Deflate;
+import my_chat.data_transfer.MessageCodec;
 import my_chat.data_transfer.MessageInput;
 import my_chat.data_transfer.MessageOutput;
+import my_chat.data_transfer.VirtualThreads;
 import my_chat.message_types.*;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 
 /**
@@ -21,414 +35,1754 @@ import java.util.regex.Pattern;
  */
 public class ChatServer implements Runnable
 {
+	/**
+	 * The port a server listens on unless it is given another one.
+	 */
 	public static final int port = 59101;
 
 	public static final String nameRegexPattern = "\\w+";
+	/**
+	 * {@link #nameRegexPattern}, compiled once.
+	 */
+	public static final Pattern namePattern = Pattern.compile(nameRegexPattern);
+
+	private static final int REPLAY_BATCH = 256;
+	// the most frames a blocking writer takes from a client's queue at once when it does not batch them
+	private static final int DRAIN_FRAMES = 64;
+	// the heartbeat wheel turns once in about 50 seconds, so the default idle time takes no extra turns
+	private static final long HEARTBEAT_TICK_MILLIS = 100;
+	private static final int HEARTBEAT_SLOTS = 512;
+
+	/**
+	 * The I/O model the server uses to serve its clients.
+	 */
+	public enum Engine
+	{
+		/**
+		 * Every client gets a blocking {@link Handler} on a pool thread for its whole session.
+		 */
+		THREAD_PER_CLIENT,
+		/**
+		 * Non-blocking channels multiplexed on a few {@link java.nio.channels.Selector} event loops.
+		 */
+		SELECTOR,
+		/**
+		 * Like {@link #THREAD_PER_CLIENT}, but every {@link Handler} and writer runs on its own virtual thread, so
+		 * there is no cap on the number of clients. Falls back to platform threads on a JVM before Java 21.
+		 */
+		VIRTUAL_THREADS
+	}
 
-	private final Map<String, ObjectOutputStream> clients = new HashMap<>();
-	public final List<IMessage> allMessages = new LinkedList<>();
+	private final ClientRegistry clients = new ClientRegistry();
+	// guarded by the sequencer
+	private final RoomRegistry rooms = new RoomRegistry();
+	private final Presence presence = new Presence();
+	final ServerMetrics metrics = new ServerMetrics(clients::size);
+	private ObjectName metricsName;
+	// the sequencer: messages are numbered and queued to their recipients under it, so every client gets them in
+	// sequence order. Not a monitor, so virtual threads can wait on it without pinning their carrier thread.
+	private final ReentrantLock lock = new ReentrantLock();
+	private MessageHistory history = new MessageHistory(10_000, 0);
+	private final ReentrantLock recordLock = new ReentrantLock();
+	private MessageLog log;
+	private Path logDirectory;
+	private int logSegmentBytes;
+	private int logRetainSegments;
+	private long logSyncIntervalMillis;
 	private ExecutorService pool;
+	private ExecutorService writerPool;
+	private ExecutorService replayPool;
+	private SelectorEngine selectorEngine;
+	private volatile ServerSocket serverSocket;
+	private int listenPort = port;
+	private String nodeName;
+	private int relayPort;
+	private Map<String, InetSocketAddress> peers;
+	private volatile Cluster cluster;
 
 	private final int numberOfThreads;
-	private final ChatListener listener;
+	private final Engine engine;
+	// the listener the server calls: the given one, or an AsyncChatListener in front of it while the server runs
+	private volatile ChatListener listener;
+	private final ChatListener givenListener;
+	private AsyncChatListener asyncListener;
+	private int listenerCapacity = 65536;
+	private AsyncChatListener.Overflow listenerOverflow = AsyncChatListener.Overflow.DROP;
+	private MessageCodec codec = MessageCodec.SERIALIZATION;
+	private int compressionMinBytes = Deflate.DEFAULT_MIN_BYTES;
+	private int queueCapacity = 4096;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.DISCONNECT;
+	private long blockTimeoutMillis = 1000;
+	// under BLOCK: the full queues the message handled on this thread went to, whose sender is then held back
+	private final ThreadLocal<Set<ClientConnection>> congested = new ThreadLocal<>();
+	private int batchLimit = 64;
+	Admission admission = new Admission(1024, 0, 1, 10_000);
+	private long idleMillis = 30_000;
+	private long heartbeatTimeoutMillis = 10_000;
+	private volatile TimingWheel heartbeats;
+	private final ConcurrentHashMap<ClientConnection, IdleCheck> idleChecks = new ConcurrentHashMap<>();
 
 	/**
-	 * Construct a server.
+	 * Construct a server that uses a thread per client.
 	 *
 	 * @param listener        a listener that is called when messages are sent / received
 	 * @param numberOfThreads the maximum number of online clients this server can hold.
 	 */
 	public ChatServer(ChatListener listener, int numberOfThreads)
+	{
+		this(listener, numberOfThreads, Engine.THREAD_PER_CLIENT);
+	}
+
+	/**
+	 * Construct a server.
+	 *
+	 * @param listener        a listener that is called when messages are sent / received
+	 * @param numberOfThreads with {@link Engine#THREAD_PER_CLIENT}, the maximum number of online clients this server
+	 *                        can hold. With {@link Engine#SELECTOR}, the number of event loop threads. Not used with
+	 *                        {@link Engine#VIRTUAL_THREADS}.
+	 * @param engine          the I/O model to use.
+	 */
+	public ChatServer(ChatListener listener, int numberOfThreads, Engine engine)
 	{
 		this.numberOfThreads = numberOfThreads;
+		this.engine = engine;
 		this.listener = listener;
+		this.givenListener = listener;
+	}
+
+	/**
+	 * Sets the port the server listens for clients on.
+	 * Call this before the server starts.
+	 *
+	 * @param port the port. The default is {@link #port}.
+	 */
+	public void setPort(int port)
+	{
+		this.listenPort = port;
+	}
+
+	/**
+	 * @return the port the server listens for clients on.
+	 */
+	public int getPort()
+	{
+		return listenPort;
+	}
+
+	/**
+	 * Makes the server a node of a cluster, so its clients can talk to the clients of the other nodes. See
+	 * {@link Cluster}. Every node must use the same codec.
+	 * Call this before the server starts.
+	 *
+	 * @param nodeName  the name of this node. It must be unique in the cluster.
+	 * @param relayPort the port this node listens for the other nodes on.
+	 * @param peers     the relay addresses of the other nodes, by node name.
+	 */
+	public void setCluster(String nodeName, int relayPort, Map<String, InetSocketAddress> peers)
+	{
+		this.nodeName = nodeName;
+		this.relayPort = relayPort;
+		this.peers = new LinkedHashMap<>(peers);
+	}
+
+	/**
+	 * Sets the codec used on the wire. The clients must use the same codec.
+	 * Call this before the server starts.
+	 *
+	 * @param codec the codec to use. The default is {@link MessageCodec#SERIALIZATION}.
+	 */
+	public void setCodec(MessageCodec codec)
+	{
+		this.codec = codec;
+	}
+
+	/**
+	 * Sets which frames are compressed, see {@link Deflate}. The server says it takes compressed frames when it asks a
+	 * client to log in, and compresses the frames it sends to the clients that say so in their login. Frames are
+	 * compressed once however many clients get them.
+	 * Call this before the server starts.
+	 *
+	 * @param minBytes the smallest payload to compress, or 0 to neither compress nor take compressed frames. The
+	 *                 default is {@link Deflate#DEFAULT_MIN_BYTES}.
+	 */
+	public void setCompression(int minBytes)
+	{
+		this.compressionMinBytes = minBytes;
+	}
+
+	/**
+	 * Configures the outbound queue every client gets.
+	 * Call this before the server starts.
+	 *
+	 * @param capacity           the maximum number of messages waiting for one client. The default is 4096.
+	 * @param policy             what to do when a client's queue is full. The default is
+	 *                           {@link OverflowPolicy#DISCONNECT}.
+	 * @param blockTimeoutMillis how long {@link OverflowPolicy#BLOCK} holds back a sender, waiting for room, before it
+	 *                           disconnects the slow client.
+	 */
+	public void setOutboundQueue(int capacity, OverflowPolicy policy, long blockTimeoutMillis)
+	{
+		this.queueCapacity = capacity;
+		this.overflowPolicy = policy;
+		this.blockTimeoutMillis = blockTimeoutMillis;
+	}
+
+	/**
+	 * Configures how many of the messages waiting for a client may be written to it as one {@link BatchMessage}.
+	 * Only messages that are already waiting are batched, so batching never holds a message back. It needs a codec that
+	 * can put a batch together from encoded frames, i.e. {@link MessageCodec#BINARY}; with other codecs every message
+	 * is written in its own frame.
+	 * Call this before the server starts.
+	 *
+	 * @param maxMessages the most messages in a batch, or 1 to write every message in its own frame. The default is
+	 *                    64.
+	 */
+	public void setBatching(int maxMessages)
+	{
+		this.batchLimit = maxMessages;
+	}
+
+	/**
+	 * Configures how the server takes on connections while they log in. See {@link Admission}. A connection that is
+	 * turned away gets a {@link ServerBusyMessage} saying when to try again, and is closed. The clients that are logged
+	 * in are not affected.
+	 * Call this before the server starts.
+	 *
+	 * @param maxHandshakes          the most connections logging in at once, or 0 for no limit. The default is 1024.
+	 * @param loginsPerSecond        the rate each remote address may log in at, or 0 for no limit. The default is no
+	 *                               limit.
+	 * @param loginBurst             the logins an address may make at once before the rate applies.
+	 * @param handshakeTimeoutMillis how long a connection may take to log in before it is closed, or 0 for no limit.
+	 *                               The default is 10 seconds.
+	 */
+	public void setAdmission(int maxHandshakes, double loginsPerSecond, int loginBurst, long handshakeTimeoutMillis)
+	{
+		this.admission = new Admission(maxHandshakes, loginsPerSecond, loginBurst, handshakeTimeoutMillis);
+	}
+
+	/**
+	 * Configures how the server finds clients that went away without closing their connection, e.g. when their
+	 * machine or network went down. A client that sends nothing for the idle time is sent a {@link HeartbeatMessage},
+	 * and a client that does not answer it in time is dropped, so its name, its thread and its buffers are freed.
+	 * {@link my_chat.clientside.ChatClient} answers on its own.
+	 * Call this before the server starts.
+	 *
+	 * @param idleMillis    how long a client may be quiet before it is checked, or 0 to never check. It is checked
+	 *                      between one and two idle times after its last message. The default is 30 seconds.
+	 * @param timeoutMillis how long a client has to answer. The default is 10 seconds.
+	 */
+	public void setHeartbeat(long idleMillis, long timeoutMillis)
+	{
+		this.idleMillis = idleMillis;
+		this.heartbeatTimeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Configures how the listener is called. By default the server's threads only put the events in a buffer, and
+	 * the listener is called on a thread of its own, so a slow listener does not hold up the clients.
+	 * Call this before the server starts.
+	 *
+	 * @param capacity the number of events that can wait for the listener, or 0 to call the listener on the server's
+	 *                 threads as the events happen. The default is 65536.
+	 * @param overflow what to do when the buffer is full. The default is {@link AsyncChatListener.Overflow#DROP}.
+	 */
+	public void setListenerBuffer(int capacity, AsyncChatListener.Overflow overflow)
+	{
+		this.listenerCapacity = capacity;
+		this.listenerOverflow = overflow;
+	}
+
+	/**
+	 * Replaces the message history with an empty one.
+	 * Call this before the server starts.
+	 *
+	 * @param capacity     the maximum number of messages to keep. The default is 10,000.
+	 * @param maxAgeMillis messages older than this are dropped. 0, the default, means no age limit.
+	 */
+	public void setHistory(int capacity, long maxAgeMillis)
+	{
+		this.history = new MessageHistory(capacity, maxAgeMillis);
+	}
+
+	/**
+	 * Makes the server keep its history in a {@link MessageLog}, and rebuild the history from it when it starts.
+	 * Call this before the server starts.
+	 *
+	 * @param directory          the directory of the log's segment files.
+	 * @param segmentBytes       the size of a segment file.
+	 * @param retainSegments     the maximum number of segment files to keep.
+	 * @param syncIntervalMillis how often the log is forced to disk; see {@link MessageLog#MessageLog}.
+	 */
+	public void setMessageLog(Path directory, int segmentBytes, int retainSegments, long syncIntervalMillis)
+	{
+		this.logDirectory = directory;
+		this.logSegmentBytes = segmentBytes;
+		this.logRetainSegments = retainSegments;
+		this.logSyncIntervalMillis = syncIntervalMillis;
+	}
+
+	/**
+	 * @return the messages this server has sent.
+	 */
+	public MessageHistory getHistory()
+	{
+		return history;
+	}
+
+	OutboundQueue newOutboundQueue()
+	{
+		return new OutboundQueue(queueCapacity, overflowPolicy, metrics);
+	}
+
+	/**
+	 * @param capacity the most frames the writer takes from the queue at once if it does not batch them.
+	 * @return the frame batch for the writer of one client.
+	 */
+	FrameBatch newFrameBatch(int capacity)
+	{
+		if (batchLimit > 1)
+			return new FrameBatch(batchLimit, true, codec);
+		return new FrameBatch(capacity, false, codec);
+	}
+
+	/**
+	 * @return the message asking a new connection to log in.
+	 */
+	LoginRequestMessage loginRequest()
+	{
+		return new LoginRequestMessage(takesCompressed() ? Deflate.NAME : null);
+	}
+
+	/**
+	 * @return whether the server takes compressed frames, as it says when it asks a client to log in.
+	 */
+	boolean takesCompressed()
+	{
+		return compressionMinBytes > 0;
+	}
+
+	/**
+	 * @param login a login message.
+	 * @return a compressor for the frames sent to the client, or null if either end does not compress.
+	 */
+	Deflate.Compressor compressorFor(IClientMessage login)
+	{
+		if (compressionMinBytes > 0 && login instanceof LoginMessage
+				&& Deflate.NAME.equals(((LoginMessage) login).compression))
+			return new Deflate.Compressor(compressionMinBytes);
+		return null;
+	}
+
+	/**
+	 * @param message a message.
+	 * @return a frame of the message in the server's codec, for one client.
+	 */
+	Frame frame(IMessage message)
+	{
+		if (message instanceof FileChunkMessage && ((FileChunkMessage) message).frame != null)
+			return new Frame(message, ((FileChunkMessage) message).frame);
+		return new Frame(message, codec);
+	}
+
+	private boolean runnning = true;
+	private final Object serverRunningLock = new Object();
+
+	/**
+	 * Start the Server.
+	 * You should run this from a separate thread.
+	 * Because this class implements Runnable, you can run:
+	 * <pre>
+	 * {@code
+	 * Thread thread = new Thread(server);
+	 * thread.start();
+	 * }
+	 * </pre>
+	 * where 'server' is an instance of this class.
+	 */
+	@Override
+	public void run()
+	{
+		synchronized (serverRunningLock)
+		{
+			runnning = true;
+			if (listenerCapacity > 0)
+			{
+				asyncListener = new AsyncChatListener(givenListener, listenerCapacity, listenerOverflow);
+				listener = asyncListener;
+			}
+			listener.stat("Server is running...", false);
+
+			replayPool = Executors.newCachedThreadPool();
+			if (idleMillis > 0)
+				heartbeats = new TimingWheel("Heartbeats", HEARTBEAT_TICK_MILLIS, HEARTBEAT_SLOTS);
+			registerMetrics();
+
+			try
+			{
+				if (logDirectory != null)
+					openLog();
+				if (nodeName != null)
+				{
+					var cluster = new Cluster(this, listener, nodeName, relayPort, peers, codec);
+					cluster.start();
+					this.cluster = cluster;
+				}
+
+				if (engine == Engine.SELECTOR)
+				{
+					selectorEngine = new SelectorEngine(this, listener, listenPort, numberOfThreads, codec);
+					selectorEngine.run();
+				} else if (engine == Engine.VIRTUAL_THREADS)
+				{
+					if (!VirtualThreads.isSupported())
+						listener.stat("This JVM has no virtual threads. Using platform threads.", true);
+					runThreadPerClient(VirtualThreads.newExecutor(), VirtualThreads.newExecutor());
+				} else
+				{
+					runThreadPerClient(Executors.newFixedThreadPool(numberOfThreads), Executors.newCachedThreadPool());
+				}
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			} finally
+			{
+				stop();
+
+			}
+		}
+	}
+
+	/**
+	 * Publishes the metrics over JMX. A server runs without them if that fails, e.g. when another server in this JVM
+	 * already has the name.
+	 */
+	private void registerMetrics()
+	{
+		try
+		{
+			var name = new ObjectName("my_chat:type=ChatServer,port=" + listenPort);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+			metricsName = name;
+		} catch (JMException e)
+		{
+			listener.stat("Could not register the metrics MBean: " + e.getMessage(), true);
+		}
+	}
+
+	/**
+	 * Opens the message log and rebuilds as much of the history from it as the history can hold.
+	 */
+	private void openLog() throws IOException
+	{
+		long start = System.nanoTime();
+		log = new MessageLog(logDirectory, logSegmentBytes, logRetainSegments, logSyncIntervalMillis);
+		long fromSeq = Math.max(1, log.lastSeq() - history.capacity() + 1);
+		long count = log.replay(fromSeq, history::restore);
+		listener.stat("Recovered " + count + " messages from " + logDirectory + " in "
+				+ (System.nanoTime() - start) / 1_000_000 + " ms", false);
+	}
+
+	/**
+	 * Accepts clients and runs a {@link Handler} for each of them on the pool.
+	 *
+	 * @param pool       runs the handlers.
+	 * @param writerPool runs the writes to the clients.
+	 */
+	private void runThreadPerClient(ExecutorService pool, ExecutorService writerPool) throws IOException
+	{
+		this.pool = pool;
+		this.writerPool = writerPool;
+
+		try (var serverSocket = new ServerSocket(listenPort, SelectorEngine.ACCEPT_BACKLOG))
+		{
+			this.serverSocket = serverSocket;
+			while (runnning)
+			{
+				Socket socket;
+				try
+				{
+					socket = serverSocket.accept();
+				} catch (IOException e)
+				{
+					if (serverSocket.isClosed())
+						return; // stopped
+					// most likely out of file descriptors; back off instead of spinning
+					listener.stat("Could not accept a client: " + e.getMessage(), true);
+					SelectorEngine.pause(SelectorEngine.ACCEPT_RETRY_MILLIS);
+					continue;
+				}
+				if (admit(socket))
+				{
+					pool.execute(new Handler(socket));
+				} else
+				{
+					try
+					{
+						socket.close();
+					} catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts the handshake of a connection an engine just accepted, or tells the client the server is busy.
+	 *
+	 * @param socket the connection, in blocking mode.
+	 * @return true if the connection was let in, in which case its engine must call
+	 * {@link Admission#handshakeEnded()} once it logs in or closes. False if it was turned away; close it.
+	 */
+	boolean admit(Socket socket)
+	{
+		var address = socket.getInetAddress();
+		long wait = admission.connect(address);
+		if (wait > 0)
+		{
+			busy(socket, new ServerBusyMessage(wait, "too many logins from " + address.getHostAddress()));
+			return false;
+		} else if (!admission.startHandshake())
+		{
+			busy(socket, new ServerBusyMessage(Admission.HANDSHAKES_RETRY_MILLIS, "too many clients logging in"));
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes a {@link ServerBusyMessage} straight to a connection nothing else writes to yet. A new connection's
+	 * socket buffer is empty, so this does not wait on the client.
+	 */
+	private void busy(Socket socket, ServerBusyMessage message)
+	{
+		metrics.busy();
+		try
+		{
+			var out = new MessageOutput(socket.getOutputStream(), codec);
+			out.writeMessage(message);
+			out.flush();
+		} catch (IOException e)
+		{
+			// it is being turned away either way
+		}
+	}
+
+	/**
+	 * Takes a token for a login attempt, or tells the client the server is busy and closes the connection once that
+	 * is written.
+	 *
+	 * @param address    the address the connection came from.
+	 * @param connection the connection.
+	 * @return true if the login may go on.
+	 */
+	boolean loginAllowed(InetAddress address, ClientConnection connection)
+	{
+		long wait = admission.login(address);
+		if (wait == 0)
+			return true;
+
+		metrics.busy();
+		try
+		{
+			connection.send(frame(new ServerBusyMessage(wait, "too many logins from " + address.getHostAddress())));
+		} catch (IOException e)
+		{
+			// it is being turned away either way
+		}
+		connection.closeAfterFlush();
+		return false;
+	}
+
+	/**
+	 * Counts and reports a connection that did not log in in time. The engine closes it.
+	 */
+	void handshakeTimedOut()
+	{
+		metrics.handshakeTimedOut();
+		listener.stat("A client did not log in within " + admission.handshakeTimeoutMillis()
+				+ " ms. Connection dropped.", true);
+	}
+
+	/**
+	 * Stop the server.
+	 */
+	public void stop()
+	{
+		lock.lock();
+		try
+		{
+			listener.stat("Server stopping ...", false);
+
+			if (selectorEngine != null)
+				selectorEngine.stop();
+			if (serverSocket != null)
+			{
+				// wakes the accepting thread
+				try
+				{
+					serverSocket.close();
+				} catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+			if (cluster != null)
+			{
+				cluster.stop();
+				cluster = null;
+			}
+			if (heartbeats != null)
+			{
+				heartbeats.stop();
+				heartbeats = null;
+			}
+			idleChecks.clear();
+			closeAndClearClients();
+			rooms.clear();
+			presence.clear();
+			history.clear();
+			if (metricsName != null)
+			{
+				try
+				{
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+				} catch (JMException e)
+				{
+					listener.stat("Could not unregister the metrics MBean: " + e.getMessage(), true);
+				}
+				metricsName = null;
+			}
+			if (log != null)
+			{
+				log.close();
+				log = null;
+			}
+			try
+			{
+				if (pool != null)
+				{
+					pool.shutdown();
+					pool.awaitTermination(1000, TimeUnit.MILLISECONDS);
+				}
+				if (writerPool != null)
+					writerPool.shutdown();
+				if (replayPool != null)
+					replayPool.shutdownNow();
+			} catch (InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+			runnning = false;
+
+			listener.stat("Server stopped", false);
+			if (asyncListener != null)
+			{
+				// delivers what is still buffered; later events are delivered as they happen
+				asyncListener.close();
+			}
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if the server is running.
+	 */
+	public boolean isRunning()
+	{
+		return runnning;
+	}
+
+
+	/**
+	 * @return the number of messages waiting to be written to each client, by client name.
+	 */
+	public Map<String, Integer> getQueueDepths()
+	{
+		var depths = new TreeMap<String, Integer>();
+		for (var client : clients.entries())
+		{
+			depths.put(client.getKey(), client.getValue().queueDepth());
+		}
+		return depths;
+	}
+
+	/**
+	 * @return the state of the connection to each of the other nodes of the cluster, by node name. Empty if the
+	 * server is not in a cluster.
+	 */
+	public Map<String, String> getPeers()
+	{
+		var cluster = this.cluster;
+		return cluster == null ? Collections.emptyMap() : cluster.status();
+	}
+
+	/**
+	 * @return the server's metrics. They are also registered with the platform MBean server while the server runs,
+	 * as {@code my_chat:type=ChatServer,port=<port>}.
+	 */
+	public ServerMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * @return the traffic counters of each client, by client name.
+	 */
+	public Map<String, SessionStats> getSessionStats()
+	{
+		var stats = new TreeMap<String, SessionStats>();
+		for (var client : clients.entries())
+		{
+			stats.put(client.getKey(), client.getValue().stats());
+		}
+		return stats;
+	}
+
+	/**
+	 * Send a send from the server to all the clients.
+	 *
+	 * @param message the send to send.
+	 */
+	public void broadcast(String message)
+	{
+		if (!runnning)
+		{
+			listener.stat("Server has not started yet!", true);
+		} else
+		{
+			sendMessage(new BroadcastMessage(message));
+		}
+	}
+
+	/**
+	 * Closes all the connections in 'clients' and the clears it.
+	 */
+	private void closeAndClearClients()
+	{
+		for (var connection : clients.clear())
+		{
+			connection.close();
+		}
+	}
+
+	/**
+	 * A class for handling the clients
+	 */
+	private class Handler implements Runnable, ClientConnection
+	{
+		private volatile String name;
+		private Socket socket;
+		private MessageInput in;
+		private MessageOutput out;
+		private final OutboundQueue queue = newOutboundQueue();
+		private final FrameBatch pending = newFrameBatch(DRAIN_FRAMES);
+		private final SessionStats stats = new SessionStats();
+		private boolean handshaking = true;
+		// the writer closes the connection once the queue is written
+		private volatile boolean closing = false;
+
+		Handler(Socket socket)
+		{
+			this.socket = socket;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				out = new MessageOutput(new BufferedOutputStream(socket.getOutputStream()), codec);
+				in = new MessageInput(new BufferedInputStream(socket.getInputStream()), codec);
+				in.setDecompression(takesCompressed());
+
+				IMessage loginRequestMessage = loginRequest();
+
+				send(frame(loginRequestMessage));
+
+				listener.messageSent(loginRequestMessage);
+
+				// get login info
+				long timeout = admission.handshakeTimeoutMillis();
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+				boolean loginAccepted = false;
+				while (!loginAccepted)
+				{
+					if (timeout > 0)
+					{
+						long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+						if (left <= 0)
+							throw new SocketTimeoutException();
+						socket.setSoTimeout((int) Math.min(left, Integer.MAX_VALUE));
+					}
+					IMessage obj = in.readMessage();
+					stats.received(in.getLastFrameSize());
+					metrics.received(obj, in.getLastFrameSize());
+					if (obj instanceof IClientMessage)
+					{
+						IClientMessage message = (IClientMessage) obj;
+						if (message instanceof LoginMessage && !loginAllowed(socket.getInetAddress(), this))
+							return;
+						messageReceived(message, this);
+						if (message instanceof LoginMessage)
+						{
+							pending.compress(compressorFor(message));
+							loginAccepted = clientConnected(message, this);
+
+							if (loginAccepted)
+							{
+								name = message.getSource();
+							}
+						} else
+						{
+							loginRequestMessage = loginRequest();
+
+							send(frame(loginRequestMessage));
+
+							listener.messageSent(loginRequestMessage);
+						}
+					} else
+					{
+						listener.stat("A non-client send was received. Message dropped.", true);
+					}
+
+				}
+				endHandshake();
+				socket.setSoTimeout(0);
+
+				// receive messages from the client.
+				boolean logout = false;
+				while (!logout)
+				{
+					IMessage obj = in.readMessage();
+					stats.received(in.getLastFrameSize());
+					metrics.received(obj, in.getLastFrameSize());
+					if (obj instanceof IClientMessage)
+					{
+						IClientMessage message = (IClientMessage) obj;
+						if (message instanceof LoginMessage)
+						{
+							logout = clientLogout(message, this);
+						} else
+						{
+							messageReceived(message, this);
+						}
+					} else
+					{
+						listener.stat("A non-client send was received. Message dropped.", true);
+					}
+				}
+
+			} catch (SocketTimeoutException e)
+			{
+				handshakeTimedOut();
+			} catch (IOException e)
+			{
+				listener.stat("IOException. Thread dropped. Name: " + (name == null ? "'null'" : name), true);
+				clientDisconnected(name, this);
+			} catch (ClassNotFoundException e)
+			{
+				listener.stat("Problem reading from stream. Thread dropped. Name: " + (name == null ? "'null'" : name)
+						, true);
+				clientDisconnected(name, this);
+			} finally
+			{
+				if (name != null)
+				{
+					clientDisconnected(name, this);
+				}
+
+				endHandshake();
+				if (!closing)
+					close();
+			}
+		}
+
+		private void endHandshake()
+		{
+			if (handshaking)
+			{
+				handshaking = false;
+				admission.handshakeEnded();
+			}
+		}
+
+		@Override
+		public void send(Frame frame) throws IOException
+		{
+			if (socket.isClosed())
+				throw new IOException("Connection is closed");
+			if (!queue.offer(frame))
+			{
+				close();
+				throw new IOException("Outbound queue overflowed. Client dropped. Name: " + (name == null ? "'null'" :
+						name));
+			}
+			if (queue.claimDrain())
+				writerPool.execute(this::drain);
+		}
+
+		/**
+		 * Writes the queued messages, batching them if the server does, and flushing once the queue is empty.
+		 */
+		private void drain()
+		{
+			try
+			{
+				do
+				{
+					while (pending.poll(queue) > 0)
+					{
+						byte[] header = pending.header(name);
+						if (header != null)
+						{
+							out.write(header);
+							stats.sentOverhead(header.length);
+							metrics.sentOverhead(header.length);
+						}
+						for (int i = 0; i < pending.size(); i++)
+						{
+							byte[] bytes = pending.bytes[i];
+							out.write(bytes);
+							stats.sent(bytes.length);
+							metrics.sent(pending.frames[i], bytes.length);
+						}
+					}
+					out.flush();
+				} while (queue.releaseDrain());
+				if (closing)
+					close();
+			} catch (IOException e)
+			{
+				listener.stat("IOException while writing. Name: " + (name == null ? "'null'" : name), true);
+				close();
+			}
+		}
+
+		@Override
+		public void closeAfterFlush()
+		{
+			// set before claiming, so either this claim or the writer that holds the claim sees it
+			closing = true;
+			if (queue.claimDrain())
+				writerPool.execute(this::drain);
+		}
+
+		@Override
+		public int queueDepth()
+		{
+			return queue.size();
+		}
+
+		@Override
+		public boolean isFull()
+		{
+			return queue.isFull();
+		}
+
+		@Override
+		public void whenRoom(Runnable task)
+		{
+			queue.whenRoom(task);
+		}
+
+		@Override
+		public void whenBelow(int depth, Runnable task)
+		{
+			queue.whenBelow(depth, task);
+		}
+
+		@Override
+		public SessionStats stats()
+		{
+			return stats;
+		}
+
+		@Override
+		public boolean isClosed()
+		{
+			return socket.isClosed();
+		}
+
+		@Override
+		public void close()
+		{
+			try
+			{
+				socket.close();
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Deals with the client's request to log in.
+	 *
+	 * @param loginMessage the client's send asking to log in.
+	 * @param out          the connection to the client.
+	 * @return true if the login is valid and false otherwise.
+	 */
+	boolean clientConnected(IClientMessage loginMessage, ClientConnection out)
+	{
+		String name = loginMessage.getSource();
+		boolean accepted = false, nameExists = false;
+		long lastSeq = 0;
+		String redirect = null;
+
+		if (name == null || clients.contains(name) || isRemote(name))
+		{
+			nameExists = true;
+		} else if (isValidName(name) && (redirect = redirectFor(name)) == null)
+		{
+			// registering, reading the last sequence number and queueing the response under the sequencer means every
+			// message after lastSeq reaches the client live, after the response, and no message before it does
+			lock.lock();
+			try
+			{
+				if (clients.register(name, out))
+				{
+					lastSeq = history.lastSeq();
+					out.send(frame(new LoginResponseMessage(true, false, name, lastSeq)));
+					accepted = true;
+					metrics.login(true);
+				} else
+				{
+					nameExists = true;
+				}
+			} catch (IOException e)
+			{
+				listener.stat("Problem writing to new login: " + name + ". login is rejected.", true);
+				clients.unregister(name, out);
+				metrics.login(false);
+				return false;
+			} finally
+			{
+				lock.unlock();
+			}
+		}
+
+		if (!accepted)
+		{
+			metrics.login(false);
+			try
+			{
+				out.send(frame(redirect != null ? new LoginResponseMessage(name, redirect)
+						: new LoginResponseMessage(false, nameExists, name, 0)));
+			} catch (IOException e)
+			{
+				listener.stat("Problem writing to new login: " + name + ". login is rejected.", true);
+			}
+			return false;
+		}
+
+		var heartbeats = this.heartbeats;
+		if (heartbeats != null)
+		{
+			var check = new IdleCheck(name, out);
+			idleChecks.put(out, check);
+			check.schedule(heartbeats, idleMillis);
+		}
+		sendMessage(new ClientJoinedMessage(name));
+
+		long resumeFrom = ((LoginMessage) loginMessage).lastSeq;
+		if (resumeFrom > 0)
+			replay(name, out, resumeFrom, lastSeq);
+
+		return true;
+	}
+
+
+	/**
+	 * Sends a client that logged in again the chat messages and broadcasts it missed, in {@link BatchMessage}s, on the
+	 * replay pool. It does not hold the server's lock, and it lets the client's queue drain between the batches, so
+	 * live messages always have room.
+	 *
+	 * @param name     the client's name.
+	 * @param out      the connection to the client.
+	 * @param afterSeq the last message the client saw.
+	 * @param upToSeq  the last message before the client was registered. Everything after it is sent live.
+	 */
+	private void replay(String name, ClientConnection out, long afterSeq, long upToSeq)
+	{
+		replayPool.execute(new Replay(name, out, afterSeq, upToSeq, replayPool));
+	}
+
+	/**
+	 * A replay in progress. It never waits for the client: when more than half its queue is waiting, the replay gives
+	 * up its thread, and the client's writer puts it back on the replay pool once it has drained that far.
+	 */
+	private final class Replay implements Runnable
+	{
+		private final String name;
+		private final ClientConnection out;
+		private final long upToSeq;
+		private final ExecutorService pool;
+		private long seq;
+		private int count = 0;
+
+		Replay(String name, ClientConnection out, long afterSeq, long upToSeq, ExecutorService pool)
+		{
+			this.name = name;
+			this.out = out;
+			this.seq = afterSeq;
+			this.upToSeq = upToSeq;
+			this.pool = pool;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (true)
+				{
+					if (out.queueDepth() > queueCapacity / 2 && !out.isClosed())
+					{
+						out.whenBelow(queueCapacity / 2 + 1, this::resume);
+						return;
+					}
+
+					var entries = history.sinceFor(name, seq, upToSeq, REPLAY_BATCH);
+					if (entries.isEmpty())
+						break;
+					var missed = new ArrayList<IMessage>(entries.size());
+					for (var entry : entries)
+					{
+						seq = entry.seq;
+						if (isReplayed(entry.message))
+							missed.add(entry.message);
+					}
+					sendAll(name, out, missed);
+					count += missed.size();
+				}
+
+				IMessage end = new ReplayEndMessage(name, upToSeq, count);
+				out.send(frame(end));
+				listener.messageSent(end);
+			} catch (IOException e)
+			{
+				listener.stat("Replay to " + name + " stopped after " + count + " messages: " + e.getMessage(), true);
+			}
+		}
+
+		/**
+		 * Called by the client's writer: goes on with the replay on the pool.
+		 */
+		private void resume()
+		{
+			try
+			{
+				pool.execute(this);
+			} catch (RejectedExecutionException e)
+			{
+				// the server stopped
+			}
+		}
+	}
+
+	/**
+	 * Queues messages for one client, as one batch if there is more than one and they fit in a frame.
+	 */
+	private void sendAll(String name, ClientConnection out, List<IMessage> messages) throws IOException
+	{
+		if (messages.size() > 1)
+		{
+			Frame batch = frame(new BatchMessage(null, name, messages));
+			boolean fits = true;
+			try
+			{
+				batch.encode();
+			} catch (IOException e)
+			{
+				// too large for one frame: one by one instead
+				fits = false;
+			}
+			if (fits)
+			{
+				out.send(batch);
+				return;
+			}
+		}
+		for (var message : messages)
+		{
+			out.send(frame(message));
+		}
+	}
+
+	/**
+	 * @return true for the chat messages and broadcasts a client gets when it logs in again. Joins and leaves are not
+	 * replayed, since they say nothing about who is logged in now.
+	 */
+	private static boolean isReplayed(IMessage message)
+	{
+		return message instanceof ChatMessage || (message instanceof BroadcastMessage
+				&& !(message instanceof ClientJoinedMessage) && !(message instanceof ClientLeftMessage));
+	}
+
+	/**
+	 * Checks if the name the client gave is valid.
+	 *
+	 * @param name the name the client gave.
+	 */
+	boolean isValidName(String name)
+	{
+		return namePattern.matcher(name).matches();
+	}
+
+	/**
+	 * Deals with incoming messages.
+	 * Under {@link OverflowPolicy#BLOCK}, a client that sent to full queues is held back once the message is routed,
+	 * outside the sequencer, see {@link ClientConnection#holdBack}.
+	 *
+	 * @param message    the incoming send.
+	 * @param connection the connection it came on.
+	 */
+	void messageReceived(IClientMessage message, ClientConnection connection)
+	{
+		// the engine counted it, which is all a heartbeat is for
+		if (message instanceof HeartbeatMessage)
+			return;
+
+		listener.messageReceived(message);
+		if (overflowPolicy != OverflowPolicy.BLOCK)
+		{
+			handle(message, connection);
+			return;
+		}
+
+		var full = new LinkedHashSet<ClientConnection>();
+		congested.set(full);
+		try
+		{
+			handle(message, connection);
+		} finally
+		{
+			congested.remove();
+		}
+		if (!full.isEmpty())
+			connection.holdBack(full, blockTimeoutMillis);
+	}
+
+	/**
+	 * Does what a message asks for.
+	 *
+	 * @param connection the connection it came on.
+	 */
+	private void handle(IClientMessage message, ClientConnection connection)
+	{
+		if (message instanceof BatchMessage)
+		{
+			batchReceived((BatchMessage) message, connection);
+		} else if (message instanceof NameRequestMessage)
+		{
+			var request = (NameRequestMessage) message;
+			if (request.limit > 0)
+				// looked up outside the sequencer, which only queues the page
+				sendMessage(presence.page(message.getSource(), request.prefix, request.after, request.limit));
+			else
+				sendNameList(message.getSource());
+		} else if (message instanceof JoinRoomMessage)
+		{
+			joinOrLeaveRoom((JoinRoomMessage) message, connection);
+		} else if (message instanceof RoomMessage)
+		{
+			postToRoom((RoomMessage) message, connection);
+		} else if (message instanceof FileTransferMessage && isBroadcast(message.getDest()))
+		{
+			listener.stat(message.getSource() + " tried to send a file to everyone. Message dropped.", true);
+		} else if (message instanceof IServerMessage)
+		{
+			if (!isBroadcast(message.getDest()))
+			{
+				if (!clients.contains(message.getDest()) && !isRemote(message.getDest()))
+				{
+					sendMessage(new InvalidUserMessage(message.getSource(), message.getDest()));
+					return;
+				}
+			}
+			sendMessage(message);
+		}
+	}
+
+	/**
+	 * Handles the messages of a batch in order under the sequencer, so they are numbered one after another and no
+	 * other client's messages come between them. The listener only hears of the batch. Logins and nested batches are
+	 * dropped.
+	 */
+	private void batchReceived(BatchMessage batch, ClientConnection connection)
+	{
+		lock.lock();
+		try
+		{
+			for (var message : batch.messages)
+			{
+				if (message instanceof IClientMessage && !(message instanceof LoginMessage)
+						&& !(message instanceof BatchMessage))
+				{
+					handle((IClientMessage) message, connection);
+				} else
+				{
+					listener.stat("A batch from " + batch.source + " held a " + message.getClass().getSimpleName()
+							+ ". Message dropped.", true);
+				}
+			}
+		} finally
+		{
+			lock.unlock();
+		}
 	}
 
-	private boolean runnning = true;
-	private final Object serverRunningLock = new Object();
-
 	/**
-	 * Start the Server.
-	 * You should run this from a separate thread.
-	 * Because this class implements Runnable, you can run:
-	 * <pre>
-	 * {@code
-	 * Thread thread = new Thread(server);
-	 * thread.start();
-	 * }
-	 * </pre>
-	 * where 'server' is an instance of this class.
+	 * Adds a client to a room or takes it out, and tells the room's members. A client that asks for what already is,
+	 * or for a room with an invalid name, only gets told where it stands. A client can only ask for itself.
+	 *
+	 * @param connection the connection the message came on.
 	 */
-	@Override
-	public void run()
+	private void joinOrLeaveRoom(JoinRoomMessage message, ClientConnection connection)
 	{
-		synchronized (serverRunningLock)
+		String name = message.name, room = message.room;
+		if (!isLoggedInAs(name, connection))
 		{
-			runnning = true;
-			listener.stat("Server is running...", false);
-
-			pool = Executors.newFixedThreadPool(numberOfThreads);
+			listener.stat("A room request for " + name + " came from another client. Message dropped.", true);
+			return;
+		}
 
-			try (var listener = new ServerSocket(port))
+		lock.lock();
+		try
+		{
+			if (room == null || !isValidName(room))
 			{
-				while (runnning)
-				{
-					pool.execute(new Handler(listener.accept()));
-				}
-			} catch (IOException e)
+				sendMessageTo(frame(new JoinRoomMessage(name, room, false)), name, connection);
+			} else if (message.join)
 			{
-				e.printStackTrace();
-			} finally
+				if (rooms.join(room, name, connection))
+					sendMessage(new JoinRoomMessage(name, room, true));
+				else
+					sendMessageTo(frame(new JoinRoomMessage(name, room, true)), name, connection);
+			} else
 			{
-				stop();
-
+				var left = new JoinRoomMessage(name, room, false);
+				if (rooms.leave(room, name, connection))
+					sendMessage(left);
+				// the client is no longer a member, so it is told on its own
+				sendMessageTo(frame(left), name, connection);
 			}
+		} finally
+		{
+			lock.unlock();
 		}
 	}
 
 	/**
-	 * Stop the server.
+	 * Passes a room message on to the room's members, if its source is one of them and sent it.
+	 *
+	 * @param connection the connection the message came on.
 	 */
-	public synchronized void stop()
+	private void postToRoom(RoomMessage message, ClientConnection connection)
 	{
-		listener.stat("Server stopping ...", false);
+		String source = message.source;
+		if (!isLoggedInAs(source, connection))
+		{
+			listener.stat("A room message from " + source + " came from another client. Message dropped.", true);
+			return;
+		}
 
-		closeAndClearClients();
-		allMessages.clear();
+		lock.lock();
 		try
 		{
-			pool.awaitTermination(1000, TimeUnit.MILLISECONDS);
-		} catch (InterruptedException e)
+			if (rooms.isMember(message.room, source))
+				sendMessage(message);
+			else
+				sendMessageTo(frame(new JoinRoomMessage(source, message.room, false)), source, connection);
+		} finally
 		{
-			e.printStackTrace();
+			lock.unlock();
 		}
-		runnning = false;
-
-		listener.stat("Server stopped", false);
 	}
 
 	/**
-	 * @return true if the server is running.
+	 * @param name       the name a message says it comes from.
+	 * @param connection the connection it came on.
+	 * @return true if the connection is the one the name is logged in on.
 	 */
-	public boolean isRunning()
+	private boolean isLoggedInAs(String name, ClientConnection connection)
 	{
-		return runnning;
+		return name != null && clients.get(name) == connection;
 	}
 
-
 	/**
-	 * Send a send from the server to all the clients.
-	 *
-	 * @param message the send to send.
+	 * @param message a message.
+	 * @return true if the message is numbered and kept in the history. Room messages are live only, and name lists
+	 * and file transfers are only for one client at one time.
 	 */
-	public void broadcast(String message)
+	private static boolean isKept(IMessage message)
 	{
-		if (!runnning)
-		{
-			listener.stat("Server has not started yet!", true);
-		} else
-		{
-			sendMessage(new BroadcastMessage(message));
-		}
+		return !isForRoom(message) && !(message instanceof NameListMessage)
+				&& !(message instanceof FileTransferMessage);
 	}
 
 	/**
-	 * Closes all the streams in 'clients' and the clears it.
+	 * @param message a message.
+	 * @return true if the message goes to the members of a room.
 	 */
-	private void closeAndClearClients()
+	private static boolean isForRoom(IMessage message)
 	{
-		for (var stream : clients.values())
-		{
-			try
-			{
-				stream.close();
-			} catch (IOException e)
-			{
-				listener.stat("Stream " + stream + " was already closed", true);
-			}
-		}
-		clients.clear();
+		return message instanceof RoomMessage || message instanceof JoinRoomMessage;
 	}
 
 	/**
-	 * A class for handling the clients
+	 * Sends a send to whoever needs to receive it, on this node and on the others.
+	 *
+	 * @param message the send to send.
+	 * @return true if the send was sent, and false otherwise (i.e. if there was an error).
 	 */
-	private class Handler implements Runnable
+	private boolean sendMessage(IMessage message)
 	{
-		private String name;
-		private Socket socket;
-		private ObjectInputStream in;
-		private ObjectOutputStream out;
-
-		Handler(Socket socket)
-		{
-			this.socket = socket;
-		}
+		return sendMessage(message, true);
+	}
 
-		@Override
-		public void run()
+	/**
+	 * Sends a send to whoever needs to receive it.
+	 *
+	 * @param message the send to send.
+	 * @param relay   false to only send it to this node's clients, e.g. when another node forwarded it.
+	 * @return true if the send was sent, and false otherwise (i.e. if there was an error).
+	 */
+	private boolean sendMessage(IMessage message, boolean relay)
+	{
+		var cluster = relay ? this.cluster : null;
+		long waiting = System.nanoTime();
+		lock.lock();
+		long start = System.nanoTime();
+		metrics.lockWait(start - waiting);
+		try
 		{
-			try
-			{
-				out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
-				in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+			boolean sent = true;
 
-				IMessage loginRequestMessage = new LoginRequestMessage();
+			if (isKept(message))
+				record(message);
+			if (message instanceof ClientJoinedMessage || message instanceof ClientLeftMessage)
+				presence.apply((BroadcastMessage) message);
+			listener.messageSent(message);
 
-				out.writeObject(loginRequestMessage);
-				out.flush();
-
-				listener.messageSent(loginRequestMessage);
-
-				// get login info
-				boolean loginAccepted = false;
-				while (!loginAccepted)
+			Frame frame = frame(message);
+			if (isForRoom(message))
+			{
+				// only the room's members, however many clients there are
+				var members = rooms.members(message.getDest());
+				if (members.size() > 1 || cluster != null)
 				{
-					Object obj = in.readObject();
-					if (obj instanceof IClientMessage)
+					try
 					{
-						IClientMessage message = (IClientMessage) obj;
-						messageReceived(message);
-						if (message instanceof LoginMessage)
-						{
-							loginAccepted = clientConnected(message, out);
-
-							if (loginAccepted)
-							{
-								name = message.getSource();
-							}
-						} else
-						{
-							loginRequestMessage = new LoginRequestMessage();
-
-							out.writeObject(loginRequestMessage);
-							out.flush();
-
-							listener.messageSent(loginRequestMessage);
-						}
-					} else
+						frame.encode();
+					} catch (IOException e)
 					{
-						listener.stat("A non-client send was received. Message dropped.", true);
+						listener.stat("problem encoding the send + " + message + ": " + e.getMessage(), true);
+						return false;
 					}
-
 				}
-
-				// receive messages from the client.
-				boolean logout = false;
-				while (!logout)
+				for (var member : members.entrySet())
 				{
-					Object obj = in.readObject();
-					if (obj instanceof IClientMessage)
-					{
-						IClientMessage message = (IClientMessage) obj;
-						if (message instanceof LoginMessage)
-						{
-							logout = clientLogout(message);
-						} else
-						{
-							messageReceived(message);
-						}
-					} else
+					if (!sendMessageTo(frame, member.getKey(), member.getValue()))
 					{
-						listener.stat("A non-client send was received. Message dropped.", true);
+						sent = false;
 					}
 				}
-
-			} catch (IOException e)
-			{
-				listener.stat("IOException. Thread dropped. Name: " + (name == null ? "'null'" : name), true);
-				clientDisconnected(name);
-			} catch (ClassNotFoundException e)
-			{
-				listener.stat("Problem reading from stream. Thread dropped. Name: " + (name == null ? "'null'" : name)
-						, true);
-				clientDisconnected(name);
-			} finally
+				// the other nodes send it to their own members
+				if (cluster != null)
+					cluster.forwardToAll(frame);
+			} else if (isBroadcast(message.getDest()))
 			{
-				if (name != null)
-				{
-					clientDisconnected(name);
-				} else if (out != null)
-				{
-					//TODO remove out stream
-				}
-
+				// encoded once here, and the same bytes are written to every client
 				try
 				{
-					socket.close();
+					frame.encode();
 				} catch (IOException e)
 				{
-					e.printStackTrace();
+					listener.stat("problem encoding the send + " + message + ": " + e.getMessage(), true);
+					return false;
+				}
+				for (var client : clients.entries())
+				{
+					if (!sendMessageTo(frame, client.getKey(), client.getValue()))
+					{
+						sent = false;
+					}
 				}
+				if (cluster != null)
+					cluster.forwardToAll(frame);
+			} else
+			{
+				// encoded by the client's writer, outside the sequencer
+				String dest = message.getDest();
+				var connection = clients.get(dest);
+				if (connection == null && cluster != null)
+					sent = cluster.forwardTo(dest, frame);
+				else
+					sent = sendMessageTo(frame, dest, connection);
 			}
+
+			return sent;
+		} finally
+		{
+			metrics.fanOut(System.nanoTime() - start);
+			lock.unlock();
 		}
 	}
 
 	/**
-	 * Deals with the client's request to log in.
+	 * Delivers a message another node of the cluster forwarded to this node's clients.
 	 *
-	 * @param loginMessage the client's send asking to log in.
-	 * @param out          the output stream to the client.
-	 * @return true if the login is valid and false otherwise.
+	 * @param message the message.
 	 */
-	private synchronized boolean clientConnected(IClientMessage loginMessage, ObjectOutputStream out)
+	void relayed(IMessage message)
 	{
-		boolean accepted, nameExists;
+		sendMessage(message, false);
+	}
 
-		if (loginMessage.getSource() == null || clients.containsKey(loginMessage.getSource()))
-		{
-			accepted = false;
-			nameExists = true;
-		} else
-		{
-			if (isValidName(loginMessage.getSource()))
-			{
-				clients.put(loginMessage.getSource(), out);
-				accepted = true;
-				nameExists = false;
-			} else
-			{
-				accepted = false;
-				nameExists = false;
-			}
-		}
+	/**
+	 * @param name a client's name.
+	 * @return true if the client is logged in on this node.
+	 */
+	boolean isLocal(String name)
+	{
+		return clients.contains(name);
+	}
 
-		try
-		{
-			out.writeObject(new LoginResponseMessage(accepted, nameExists, loginMessage.getSource()));
-		} catch (IOException e)
-		{
-			listener.stat("Problem writing to new login: " + loginMessage.getSource() + ". login is rejected.", true);
-			accepted = false;
-			clients.remove(loginMessage.getSource());
-		}
+	/**
+	 * @return a copy of the names of the clients logged in on this node.
+	 */
+	HashSet<String> localNames()
+	{
+		return clients.names();
+	}
 
-		if (accepted)
-		{
-			sendMessage(new ClientJoinedMessage(loginMessage.getSource()));
-		}
+	/**
+	 * @param name a valid client name.
+	 * @return the address of the node of the cluster the name belongs on, as host:port, or null if it belongs on this
+	 * node or the server is not in a cluster.
+	 */
+	private String redirectFor(String name)
+	{
+		var cluster = this.cluster;
+		return cluster == null ? null : cluster.redirectFor(name);
+	}
 
-		return accepted;
+	/**
+	 * @param name a client's name.
+	 * @return true if the client is logged in on another node of the cluster.
+	 */
+	private boolean isRemote(String name)
+	{
+		var cluster = this.cluster;
+		return cluster != null && cluster.isRemote(name);
 	}
 
 	/**
-	 * Checks if the name the client gave is valid.
+	 * Sends a client the names of everyone logged in on every node. The list is made under the sequencer, with the
+	 * version of the last join or leave in it, so it reaches the client after every join and leave it already
+	 * counts and before every one it does not.
 	 *
-	 * @param name the name the client gave.
+	 * @param dest the client.
 	 */
-	private boolean isValidName(String name)
+	private void sendNameList(String dest)
 	{
-		return Pattern.matches(nameRegexPattern, name);
+		lock.lock();
+		try
+		{
+			sendMessage(new NameListMessage(dest, presence.snapshot(), presence.version()));
+		} finally
+		{
+			lock.unlock();
+		}
 	}
 
 	/**
-	 * Deals with incoming messages.
-	 *
-	 * @param message the incoming send.
+	 * Watches a logged in client for going quiet. Rather than noting the time of every message the client sends, it
+	 * looks at the client's message count when its timer fires: if the count moved, the client is alive and the timer
+	 * is set again, and if not, the client is pinged, and dropped if it does not answer.
+	 * Only the heartbeat wheel's thread runs it.
 	 */
-	private void messageReceived(IClientMessage message)
+	private final class IdleCheck implements Runnable
 	{
+		private final String name;
+		private final ClientConnection connection;
+		private long messagesIn;
+		private boolean pinged = false;
+		private volatile TimingWheel.Timer timer;
+		private volatile boolean cancelled = false;
 
-		allMessages.add(message);
-		listener.messageReceived(message);
+		IdleCheck(String name, ClientConnection connection)
+		{
+			this.name = name;
+			this.connection = connection;
+			this.messagesIn = connection.stats().getMessagesIn();
+		}
 
-		if (message instanceof NameRequestMessage)
+		void schedule(TimingWheel heartbeats, long delayMillis)
 		{
-			sendMessage(new NameListMessage(message.getSource(), new HashSet<>(clients.keySet())));
-		} else if (message instanceof IServerMessage)
+			timer = heartbeats.schedule(delayMillis, this);
+		}
+
+		void cancel()
+		{
+			cancelled = true;
+			var timer = this.timer;
+			if (timer != null)
+				timer.cancel();
+		}
+
+		@Override
+		public void run()
 		{
-			if (message.getDest() != null)
+			var heartbeats = ChatServer.this.heartbeats;
+			if (cancelled || connection.isClosed() || heartbeats == null)
+				return;
+
+			long count = connection.stats().getMessagesIn();
+			if (count != messagesIn)
+			{
+				messagesIn = count;
+				pinged = false;
+				schedule(heartbeats, idleMillis);
+			} else if (!pinged)
 			{
-				if (!clients.containsKey(message.getDest()))
+				try
 				{
-					sendMessage(new InvalidUserMessage(message.getSource(), message.getDest()));
-					return;
+					connection.send(frame(new HeartbeatMessage("<server>", name, false)));
+				} catch (IOException e)
+				{
+					return; // the engine drops it
 				}
+				pinged = true;
+				schedule(heartbeats, heartbeatTimeoutMillis);
+			} else
+			{
+				idleChecks.remove(connection, this);
+				metrics.idleEvicted();
+				listener.stat(name + " did not answer a heartbeat within " + heartbeatTimeoutMillis
+						+ " ms. Client dropped.", true);
+				connection.drop();
 			}
-			sendMessage(message);
 		}
 	}
 
 	/**
-	 * Sends a send to whoever needs to receive it.
-	 *
-	 * @param message the send to send.
-	 * @return true if the send was sent, and false otherwise (i.e. if there was an error).
+	 * Adds a message to the history, and to the log if there is one.
 	 */
-	private synchronized boolean sendMessage(IMessage message)
+	private void record(IMessage message)
 	{
-		boolean sent = true;
-
-		allMessages.add(message);
-		listener.messageSent(message);
-
-		if (message.getDest() == null)
+		// the log must get the entries in the order the history numbered them
+		recordLock.lock();
+		try
 		{
-			for (var name : clients.keySet())
+			var entry = history.add(message);
+			if (message instanceof ChatMessage)
+				((ChatMessage) message).seq = entry.seq;
+			else if (message instanceof BroadcastMessage)
+				((BroadcastMessage) message).seq = entry.seq;
+
+			if (log != null)
 			{
-				if (!sendMessageTo(message, name))
+				try
+				{
+					log.append(entry);
+				} catch (IOException e)
 				{
-					sent = false;
+					listener.stat("Could not log message " + entry.seq + ": " + e.getMessage(), true);
 				}
 			}
-		} else
+		} finally
 		{
-			sent = sendMessageTo(message, message.getDest());
-
+			recordLock.unlock();
 		}
+	}
 
-		return sent;
+	/**
+	 * @param dest the destination of a send.
+	 * @return true if the send should go to all the clients.
+	 */
+	private static boolean isBroadcast(String dest)
+	{
+		return dest == null || dest.equals("<all>");
 	}
 
 	/**
 	 * Send a send to a specific client.
 	 *
-	 * @param message the send to send.
-	 * @param dest    the source of the destination client.
+	 * @param frame      the send to send.
+	 * @param dest       the source of the destination client.
+	 * @param connection the destination client's connection, or null if it is not logged in.
 	 * @return true if the send was sent, and false otherwise (i.e. if there was an error).
 	 */
-	private boolean sendMessageTo(IMessage message, String dest)
+	private boolean sendMessageTo(Frame frame, String dest, ClientConnection connection)
 	{
-		if (dest != null && clients.containsKey(dest))
+		if (connection == null)
+			return false;
+		try
 		{
-			try
-			{
-				var out = clients.get(message.getDest());
-				out.writeObject(message);
-				out.flush();
-
-			} catch (IOException e)
-			{
-				listener.stat("problem sending the send + " + message + " to " + message.getDest(), true);
-				return false;
-			}
-			return true;
+			connection.send(frame);
+		} catch (IOException e)
+		{
+			listener.stat("problem sending the send + " + frame.message + " to " + dest, true);
+			return false;
 		}
-		return false;
+		if (overflowPolicy == OverflowPolicy.BLOCK)
+		{
+			var full = congested.get();
+			if (full != null && connection.isFull())
+				full.add(connection);
+		}
+		return true;
 	}
 
 	/**
 	 * Deals with a client Logging out.
 	 *
 	 * @param logoutMessage The client's send asking to log out.
+	 * @param connection    the client's connection.
 	 * @return false iff there was an error and the clietn was not disconnected.
 	 */
-	private synchronized boolean clientLogout(IClientMessage logoutMessage)
+	boolean clientLogout(IClientMessage logoutMessage, ClientConnection connection)
 	{
-		messageReceived(logoutMessage);
-		return clientDisconnected(logoutMessage.getSource());
+		messageReceived(logoutMessage, connection);
+		return clientDisconnected(logoutMessage.getSource(), connection);
 	}
 
 	/**
 	 * Deals with a client disconncting without logging out first.
+	 * Only the connection the name is registered to can free it, so a late call from an old connection does not log
+	 * out a new client that took the name.
 	 *
-	 * @param name the source of the client.
+	 * @param name       the source of the client.
+	 * @param connection the client's connection.
 	 * @return true if the disconnection was successful.
 	 */
-	private synchronized boolean clientDisconnected(String name)
+	boolean clientDisconnected(String name, ClientConnection connection)
 	{
-		clients.remove(name);
-		sendMessage(new ClientLeftMessage(name));
+		var check = idleChecks.remove(connection);
+		if (check != null)
+			check.cancel();
+		if (name != null && clients.unregister(name, connection))
+		{
+			lock.lock();
+			try
+			{
+				for (var room : rooms.leaveAll(name, connection))
+				{
+					sendMessage(new JoinRoomMessage(name, room, false));
+				}
+			} finally
+			{
+				lock.unlock();
+			}
+			sendMessage(new ClientLeftMessage(name));
+		}
 		return true;
 	}
 }
@@ -0,0 +1,124 @@
+package my_chat.serverside;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server's handle to one connected client, independent of the engine that serves it.
+ *
+ * @author Elisha
+ */
+interface ClientConnection
+{
+	/**
+	 * Queues a frame for the client. This does not wait for the frame to be written.
+	 *
+	 * @param frame the frame to send.
+	 * @throws IOException if the connection is closed, or if the client's outbound queue overflowed, in which case the
+	 *                     client is dropped.
+	 */
+	void send(Frame frame) throws IOException;
+
+	/**
+	 * @return the number of messages waiting to be written to the client.
+	 */
+	int queueDepth();
+
+	/**
+	 * @return true if the client's outbound queue is full, see {@link OverflowPolicy#BLOCK}.
+	 */
+	default boolean isFull()
+	{
+		return false;
+	}
+
+	/**
+	 * Runs a task once the client's outbound queue has room, right away if it has. The task runs on the thread that
+	 * writes to the client, so it must be short. If the client is dropped first, it never runs.
+	 *
+	 * @param task the task.
+	 */
+	default void whenRoom(Runnable task)
+	{
+		task.run();
+	}
+
+	/**
+	 * Runs a task once fewer than a number of messages wait to be written to the client, right away if they do. The
+	 * task runs on the thread that writes to the client, so it must be short. If the client is dropped first, it
+	 * never runs.
+	 *
+	 * @param depth the number of messages.
+	 * @param task  the task.
+	 */
+	default void whenBelow(int depth, Runnable task)
+	{
+		task.run();
+	}
+
+	/**
+	 * Holds back this client, the sender of a message that went to full queues, under {@link OverflowPolicy#BLOCK}:
+	 * nothing more is read from it until those queues have room, or the timeout passes and the clients whose queues
+	 * are still full are dropped. Called by the thread that reads from this client, once the message is routed.
+	 * <p>
+	 * By default the calling thread waits, which only holds back this client when it has a reader thread of its own.
+	 *
+	 * @param full          the clients whose queues are full.
+	 * @param timeoutMillis how long to wait for room.
+	 */
+	default void holdBack(Collection<ClientConnection> full, long timeoutMillis)
+	{
+		var room = new CountDownLatch(full.size());
+		for (var connection : full)
+		{
+			connection.whenRoom(room::countDown);
+		}
+		try
+		{
+			room.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		for (var connection : full)
+		{
+			if (connection.isFull())
+				connection.drop();
+		}
+	}
+
+	/**
+	 * @return the traffic counters of this connection.
+	 */
+	SessionStats stats();
+
+	/**
+	 * Closes the connection. Closing a closed connection does nothing.
+	 */
+	void close();
+
+	/**
+	 * Closes the connection once what is queued for it was written, e.g. after telling the client why it is turned
+	 * away. Nothing should be sent after this.
+	 */
+	default void closeAfterFlush()
+	{
+		close();
+	}
+
+	/**
+	 * Drops a client that went away without closing its connection, as if it had disconnected: the connection is
+	 * closed and the client is logged out. It does not wait for either.
+	 */
+	default void drop()
+	{
+		close();
+	}
+
+	/**
+	 * @return true if the connection was closed.
+	 */
+	boolean isClosed();
+}
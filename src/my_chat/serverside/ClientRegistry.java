@@ -0,0 +1,97 @@
+package my_chat.serverside;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The logged in clients, by name.
+ * Lookups do not lock. A name is taken with a single compare-and-set, so two clients racing for the same name cannot
+ * both get it, and a connection only ever removes its own registration.
+ *
+ * @author Elisha
+ */
+class ClientRegistry
+{
+	private final ConcurrentHashMap<String, ClientConnection> clients = new ConcurrentHashMap<>();
+	private final Map<String, ClientConnection> view = Collections.unmodifiableMap(clients);
+
+	/**
+	 * @param name       the client's name.
+	 * @param connection the client's connection.
+	 * @return true if the name was free and is now the connection's, false if it is taken.
+	 */
+	boolean register(String name, ClientConnection connection)
+	{
+		return clients.putIfAbsent(name, connection) == null;
+	}
+
+	/**
+	 * @param name       the client's name.
+	 * @param connection the client's connection.
+	 * @return true if the name was registered to this connection and is now free.
+	 */
+	boolean unregister(String name, ClientConnection connection)
+	{
+		return clients.remove(name, connection);
+	}
+
+	/**
+	 * @param name a name.
+	 * @return the connection of the client with that name, or null if there is none.
+	 */
+	ClientConnection get(String name)
+	{
+		return clients.get(name);
+	}
+
+	/**
+	 * @param name a name.
+	 * @return true if a client with that name is logged in.
+	 */
+	boolean contains(String name)
+	{
+		return clients.containsKey(name);
+	}
+
+	/**
+	 * @return a copy of the names of the logged in clients.
+	 */
+	HashSet<String> names()
+	{
+		return new HashSet<>(clients.keySet());
+	}
+
+	/**
+	 * @return a read-only view of the clients, by name. Iterating it does not lock, and clients that log in or out
+	 * meanwhile may or may not be seen.
+	 */
+	Set<Map.Entry<String, ClientConnection>> entries()
+	{
+		return view.entrySet();
+	}
+
+	/**
+	 * @return the number of logged in clients.
+	 */
+	int size()
+	{
+		return clients.size();
+	}
+
+	/**
+	 * Unregisters every client.
+	 *
+	 * @return the connections that were registered.
+	 */
+	List<ClientConnection> clear()
+	{
+		var connections = new ArrayList<ClientConnection>(clients.size());
+		for (var name : clients.keySet())
+		{
+			var connection = clients.remove(name);
+			if (connection != null)
+				connections.add(connection);
+		}
+		return connections;
+	}
+}
@@ -0,0 +1,523 @@
+package my_chat.serverside;
+
+import my_chat.data_transfer.ChatListener;
+import my_chat.data_transfer.MessageCodec;
+import my_chat.data_transfer.MessageInput;
+import my_chat.data_transfer.MessageOutput;
+import my_chat.data_transfer.VirtualThreads;
+import my_chat.message_types.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connects a server to the other nodes of its cluster, so that clients logged in on different nodes can talk.
+ * <p>
+ * Every node listens for its peers on a relay port, and connects to each peer it was given. A connection carries
+ * messages one way: a node writes to a peer over the connection it made, and reads from the peer over the connection
+ * the peer made. A connection starts with a {@link PeerHelloMessage} and the clients logged in on the writing node, as
+ * {@link ClientJoinedMessage}s. After that it carries the messages the writing node forwards, in the order the node
+ * sequenced them.
+ * <p>
+ * A message that goes to everyone or to a room is forwarded to every peer, and a message to one client only to the
+ * node the client is logged in on. A node delivers what it is forwarded to its own clients only, so nothing is
+ * forwarded twice. Every node numbers and keeps the messages it delivers in its own history.
+ * <p>
+ * The nodes learn where the clients are from the joins and leaves they forward to each other. When the connection
+ * from a peer breaks, its clients are taken to have left until it connects again. Messages to a peer that cannot be
+ * reached are dropped.
+ * <p>
+ * Each client name belongs on one node, picked by a {@link HashRing} of this node and the peers connected to it. A
+ * client that tries to log in on another node is sent to that node, so a message to a client goes to the node its
+ * name hashes to, with no need to ask around. When a node joins or leaves, about 1/N of the names move; clients that
+ * logged in before that stay where they are until they log in again, and are still reached through the joins their
+ * node forwarded.
+ *
+ * @author Elisha
+ */
+class Cluster
+{
+	private static final long RETRY_MILLIS = 1000;
+	private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+	// the most messages waiting for one peer
+	private static final int LINK_QUEUE = 65536;
+	private static final int WRITE_BATCH = 1024;
+	// the most clients in one batch of joins
+	private static final int PRESENCE_BATCH = 1024;
+
+	private final ChatServer server;
+	private final ChatListener listener;
+	private final String node;
+	private final int relayPort;
+	private final MessageCodec codec;
+	// by node name; not changed after construction
+	private final Map<String, Link> links = new LinkedHashMap<>();
+	// the clients logged in on other nodes, and the connection that announced each of them
+	private final ConcurrentHashMap<String, Inbound> remote = new ConcurrentHashMap<>();
+	private final Set<Inbound> inbound = ConcurrentHashMap.newKeySet();
+	// the peers that are connected to this node, and are on the ring with it
+	private final ConcurrentHashMap<String, Inbound> members = new ConcurrentHashMap<>();
+	private final ReentrantLock ringLock = new ReentrantLock();
+	private volatile HashRing ring;
+
+	private ServerSocket acceptor;
+	private volatile boolean running = false;
+
+	/**
+	 * @param server    the server on this node.
+	 * @param listener  the server's listener.
+	 * @param node      the name of this node. It must be unique in the cluster.
+	 * @param relayPort the port this node listens for its peers on.
+	 * @param peers     the relay addresses of the other nodes, by node name.
+	 * @param codec     the codec used between the nodes. Every node must use the same one.
+	 */
+	Cluster(ChatServer server, ChatListener listener, String node, int relayPort, Map<String, InetSocketAddress> peers,
+			MessageCodec codec)
+	{
+		this.server = server;
+		this.listener = listener;
+		this.node = node;
+		this.relayPort = relayPort;
+		this.codec = codec;
+		for (var peer : peers.entrySet())
+		{
+			if (!peer.getKey().equals(node))
+				links.put(peer.getKey(), new Link(peer.getKey(), peer.getValue()));
+		}
+		ring = new HashRing(List.of(node));
+	}
+
+	/**
+	 * Starts listening for the peers, and connecting to them.
+	 *
+	 * @throws IOException if the relay port could not be bound.
+	 */
+	void start() throws IOException
+	{
+		acceptor = new ServerSocket(relayPort, SelectorEngine.ACCEPT_BACKLOG);
+		running = true;
+		listener.stat("Node " + node + " is relaying on port " + relayPort + " to " + links.size() + " peers", false);
+		VirtualThreads.start(this::accept);
+		for (var link : links.values())
+		{
+			link.thread = VirtualThreads.start(link);
+		}
+	}
+
+	/**
+	 * Closes every connection to the peers. The clients on other nodes are forgotten.
+	 */
+	void stop()
+	{
+		running = false;
+		try
+		{
+			if (acceptor != null)
+				acceptor.close();
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		for (var link : links.values())
+		{
+			link.close();
+		}
+		for (var connection : inbound)
+		{
+			connection.close();
+		}
+		remote.clear();
+		members.clear();
+		updateRing();
+	}
+
+	/**
+	 * @param name a client's name.
+	 * @return true if the client is logged in on another node.
+	 */
+	boolean isRemote(String name)
+	{
+		return remote.containsKey(name);
+	}
+
+	/**
+	 * @param name a valid client name.
+	 * @return the address of the node the name belongs on, as host:port, or null if it belongs on this node.
+	 */
+	String redirectFor(String name)
+	{
+		String owner = ring.nodeFor(name);
+		var member = owner == null || owner.equals(node) ? null : members.get(owner);
+		if (member == null)
+			return null; // it left since the ring was built
+		return links.get(owner).address.getHostString() + ":" + member.port;
+	}
+
+	/**
+	 * @return the state of the connection to each peer, by node name.
+	 */
+	Map<String, String> status()
+	{
+		var status = new TreeMap<String, String>();
+		for (var link : links.values())
+		{
+			status.put(link.node, link.toString());
+		}
+		return status;
+	}
+
+	/**
+	 * Forwards a message to every peer. Call this under the server's sequencer, so every peer gets the messages in
+	 * the order this node sequenced them.
+	 *
+	 * @param frame the message.
+	 */
+	void forwardToAll(Frame frame)
+	{
+		if (!encode(frame))
+			return;
+		for (var link : links.values())
+		{
+			link.send(frame);
+		}
+	}
+
+	/**
+	 * Forwards a message to the node a client is logged in on. Call this under the server's sequencer.
+	 *
+	 * @param name  the client's name.
+	 * @param frame the message.
+	 * @return true if the message was queued for that node, false if the client is not on another node, or the node
+	 * cannot be reached.
+	 */
+	boolean forwardTo(String name, Frame frame)
+	{
+		String owner = ring.nodeFor(name);
+		var from = remote.get(name);
+		// logged in before the ring last changed
+		if (from != null && !from.node.equals(owner))
+			owner = from.node;
+		var link = owner == null ? null : links.get(owner);
+		if (link == null || !encode(frame))
+			return false;
+		return link.send(frame);
+	}
+
+	/**
+	 * Builds the ring again from this node and the peers connected to it.
+	 */
+	private void updateRing()
+	{
+		ringLock.lock();
+		try
+		{
+			var nodes = new ArrayList<>(members.keySet());
+			nodes.add(node);
+			ring = new HashRing(nodes);
+		} finally
+		{
+			ringLock.unlock();
+		}
+	}
+
+	/**
+	 * Encodes a frame before it is queued to the peers, whose writers may all ask for its bytes at once.
+	 */
+	private boolean encode(Frame frame)
+	{
+		try
+		{
+			frame.encode();
+			return true;
+		} catch (IOException e)
+		{
+			listener.stat("problem encoding the send + " + frame.message + ": " + e.getMessage(), true);
+			return false;
+		}
+	}
+
+	/**
+	 * Accepts the connections of the peers.
+	 */
+	private void accept()
+	{
+		while (running)
+		{
+			Socket socket;
+			try
+			{
+				socket = acceptor.accept();
+			} catch (IOException e)
+			{
+				if (acceptor.isClosed())
+					return; // stopped
+				listener.stat("Could not accept a node: " + e.getMessage(), true);
+				SelectorEngine.pause(SelectorEngine.ACCEPT_RETRY_MILLIS);
+				continue;
+			}
+			var connection = new Inbound(socket);
+			inbound.add(connection);
+			if (!running)
+				connection.close();
+			VirtualThreads.start(connection);
+		}
+	}
+
+	/**
+	 * The connection this node makes to one peer, and the messages waiting to be written to it. It connects again
+	 * whenever it is broken, for as long as the node runs.
+	 */
+	private class Link implements Runnable
+	{
+		final String node;
+		private final InetSocketAddress address;
+		private final LinkedBlockingQueue<Frame> queue = new LinkedBlockingQueue<>(LINK_QUEUE);
+		private final AtomicLong dropped = new AtomicLong();
+		private volatile boolean connected = false;
+		private volatile Socket socket;
+		private volatile Thread thread;
+
+		Link(String node, InetSocketAddress address)
+		{
+			this.node = node;
+			this.address = address;
+		}
+
+		/**
+		 * @return false if the message was dropped, because the peer is not connected or too far behind.
+		 */
+		boolean send(Frame frame)
+		{
+			if (connected && queue.offer(frame))
+				return true;
+			dropped.incrementAndGet();
+			return false;
+		}
+
+		@Override
+		public void run()
+		{
+			boolean reported = false;
+			long reportedDropped = 0;
+			var batch = new ArrayList<Frame>(WRITE_BATCH);
+			while (running)
+			{
+				try (var socket = new Socket())
+				{
+					this.socket = socket;
+					if (!running)
+						return;
+					socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+					socket.setTcpNoDelay(true);
+					var out = new MessageOutput(new BufferedOutputStream(socket.getOutputStream(), 1 << 16), codec);
+
+					// whatever is queued from now on was sent after the clients were listed
+					queue.clear();
+					connected = true;
+					out.writeMessage(new PeerHelloMessage(Cluster.this.node, server.getPort()));
+					writeClients(out);
+					out.flush();
+					listener.stat("Connected to node " + node + " at " + address, false);
+					reported = false;
+
+					while (running)
+					{
+						batch.add(queue.take());
+						queue.drainTo(batch, WRITE_BATCH - 1);
+						for (var frame : batch)
+						{
+							frame.writeTo(out);
+						}
+						out.flush();
+						batch.clear();
+
+						long droppedNow = dropped.get();
+						if (droppedNow != reportedDropped)
+						{
+							listener.stat("Node " + node + " fell behind. " + (droppedNow - reportedDropped)
+									+ " messages to it were dropped.", true);
+							reportedDropped = droppedNow;
+						}
+					}
+				} catch (IOException e)
+				{
+					// report once until it connects again, not on every retry
+					if (running && (connected || !reported))
+						listener.stat("Cannot reach node " + node + " at " + address + ": " + e.getMessage(), true);
+					reported = true;
+				} catch (InterruptedException e)
+				{
+					return; // stopped
+				} finally
+				{
+					connected = false;
+					batch.clear();
+					queue.clear();
+				}
+				reportedDropped = dropped.get();
+				SelectorEngine.pause(RETRY_MILLIS);
+			}
+		}
+
+		/**
+		 * Tells the peer which clients are logged in on this node.
+		 */
+		private void writeClients(MessageOutput out) throws IOException
+		{
+			var joined = new ArrayList<IMessage>(PRESENCE_BATCH);
+			for (var name : server.localNames())
+			{
+				joined.add(new ClientJoinedMessage(name));
+				if (joined.size() == PRESENCE_BATCH)
+				{
+					out.writeMessage(new BatchMessage(null, null, joined));
+					joined = new ArrayList<>(PRESENCE_BATCH);
+				}
+			}
+			if (!joined.isEmpty())
+				out.writeMessage(new BatchMessage(null, null, joined));
+		}
+
+		void close()
+		{
+			var socket = this.socket;
+			if (socket != null)
+			{
+				try
+				{
+					socket.close();
+				} catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+			var thread = this.thread;
+			if (thread != null)
+				thread.interrupt();
+		}
+
+		@Override
+		public String toString()
+		{
+			return (connected ? "connected to " : "cannot reach ") + address + ", " + queue.size() + " queued, "
+					+ dropped.get() + " dropped";
+		}
+	}
+
+	/**
+	 * A connection a peer made to this node, and the clients it announced.
+	 */
+	private class Inbound implements Runnable
+	{
+		private final Socket socket;
+		private volatile String node;
+		// the port the peer's clients connect to
+		private volatile int port;
+
+		Inbound(Socket socket)
+		{
+			this.socket = socket;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				var in = new MessageInput(new BufferedInputStream(socket.getInputStream()), codec);
+				IMessage hello = in.readMessage();
+				if (!(hello instanceof PeerHelloMessage))
+				{
+					listener.stat("A relay connection did not start with a hello. Connection dropped.", true);
+					return;
+				}
+				node = ((PeerHelloMessage) hello).node;
+				port = ((PeerHelloMessage) hello).port;
+				if (!links.containsKey(node))
+				{
+					listener.stat("Node " + node + " is not a peer of this node. Connection dropped.", true);
+					return;
+				}
+				listener.stat("Node " + node + " connected", false);
+				members.put(node, this);
+				updateRing();
+
+				while (running)
+				{
+					received(in.readMessage());
+				}
+			} catch (IOException | ClassNotFoundException e)
+			{
+				if (running && node != null)
+					listener.stat("Node " + node + " disconnected" + (e.getMessage() == null ? "" : ": "
+							+ e.getMessage()), true);
+			} finally
+			{
+				close();
+				inbound.remove(this);
+				if (node != null && members.remove(node, this))
+					updateRing();
+				// its clients are gone, as far as this node can tell, until it connects again
+				for (var client : remote.entrySet())
+				{
+					String name = client.getKey();
+					if (client.getValue() == this && remote.remove(name, this) && running)
+						server.relayed(new ClientLeftMessage(name));
+				}
+			}
+		}
+
+		private void received(IMessage message)
+		{
+			if (message instanceof BatchMessage)
+			{
+				for (var inner : ((BatchMessage) message).messages)
+				{
+					received(inner);
+				}
+			} else if (message instanceof ClientJoinedMessage)
+			{
+				String name = ((ClientJoinedMessage) message).name;
+				if (server.isLocal(name))
+				{
+					listener.stat(name + " logged in on node " + node + " while it is logged in here.", true);
+					return;
+				}
+				// a client this node already knows of is not announced again, e.g. when a peer connects again
+				var owner = remote.putIfAbsent(name, this);
+				if (owner == null)
+					server.relayed(message);
+				else if (owner != this && !(owner.node.equals(node) && remote.replace(name, owner, this)))
+					listener.stat(name + " logged in on node " + node + " while it is logged in on node " + owner.node
+							+ ".", true);
+			} else if (message instanceof ClientLeftMessage)
+			{
+				if (remote.remove(((ClientLeftMessage) message).name, this))
+					server.relayed(message);
+			} else
+			{
+				server.relayed(message);
+			}
+		}
+
+		void close()
+		{
+			try
+			{
+				socket.close();
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+}
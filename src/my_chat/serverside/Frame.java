@@ -0,0 +1,124 @@
+package my_chat.serverside;
+
+import my_chat.data_transfer.Deflate;
+import my_chat.data_transfer.MessageCodec;
+import my_chat.data_transfer.MessageOutput;
+import my_chat.message_types.IMessage;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A message on its way to the clients, with its wire bytes: the length prefix and the payload.
+ * The bytes are encoded at most once and never change, so one frame can be queued to any number of clients and each
+ * of them only costs a write.
+ * <p>
+ * A frame is encoded the first time its bytes are needed. A frame that goes to more than one client must be encoded
+ * with {@link #encode()} before it is queued, since the writers of different clients may ask for the bytes at the
+ * same time.
+ * <p>
+ * The clients that take compressed frames get the compressed bytes, which are also made once, by the first of their
+ * writers to need them.
+ *
+ * @author Elisha
+ */
+final class Frame
+{
+	final IMessage message;
+	/**
+	 * When the frame was created, by {@link System#nanoTime()}.
+	 */
+	final long createdAt = System.nanoTime();
+	private final MessageCodec codec;
+	private volatile byte[] bytes;
+	// the bytes for clients that take compressed frames, the same as bytes if compressing does not pay
+	private volatile byte[] compressed;
+
+	/**
+	 * @param message the message.
+	 * @param codec   the codec to encode it with.
+	 */
+	Frame(IMessage message, MessageCodec codec)
+	{
+		this.message = message;
+		this.codec = codec;
+	}
+
+	/**
+	 * A frame that is already encoded, e.g. passed on as a client sent it.
+	 *
+	 * @param message the message.
+	 * @param bytes   its length prefix and payload, which must not be compressed.
+	 */
+	Frame(IMessage message, byte[] bytes)
+	{
+		this.message = message;
+		this.codec = null;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Encodes the frame now, if it was not encoded yet.
+	 *
+	 * @return this frame.
+	 * @throws IOException if the message could not be encoded, or is too large for a frame.
+	 */
+	Frame encode() throws IOException
+	{
+		bytes();
+		return this;
+	}
+
+	/**
+	 * @return the length prefix and the payload. Do not modify.
+	 * @throws IOException if the message could not be encoded, or is too large for a frame.
+	 */
+	byte[] bytes() throws IOException
+	{
+		byte[] b = bytes;
+		if (b == null)
+		{
+			b = MessageOutput.frame(message, codec).array();
+			bytes = b;
+		}
+		return b;
+	}
+
+	/**
+	 * @param compressor the compressor of the client the frame goes to, or null if it does not take compressed
+	 *                   frames.
+	 * @return the bytes to write to that client: compressed, if the frame is big enough to gain from it. Do not
+	 * modify.
+	 * @throws IOException if the message could not be encoded, or is too large for a frame.
+	 */
+	byte[] bytes(Deflate.Compressor compressor) throws IOException
+	{
+		byte[] b = bytes();
+		if (compressor == null || !Deflate.isCompressible(message))
+			return b;
+		byte[] c = compressed;
+		if (c == null)
+		{
+			// two writers may both compress it; either result will do
+			c = compressor.compress(b, Integer.BYTES, b.length - Integer.BYTES);
+			if (c == null)
+				c = b;
+			compressed = c;
+		}
+		return c;
+	}
+
+	/**
+	 * Writes the bytes to a stream.
+	 *
+	 * @param out the stream.
+	 * @return the number of bytes written.
+	 * @throws IOException if the message could not be encoded or the stream could not be written.
+	 */
+	int writeTo(OutputStream out) throws IOException
+	{
+		byte[] b = bytes();
+		out.write(b);
+		return b.length;
+	}
+}
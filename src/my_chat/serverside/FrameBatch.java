@@ -0,0 +1,125 @@
+package my_chat.serverside;
+
+import my_chat.data_transfer.Deflate;
+import my_chat.data_transfer.MessageCodec;
+import my_chat.data_transfer.MessageOutput;
+import my_chat.message_types.BatchMessage;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The frames a client's writer took from its queue to write together.
+ * With batching on, and a codec that can splice batches, two or more frames go out as one
+ * {@link BatchMessage} frame: a header from {@link MessageCodec#batchHeader} followed by the
+ * frames as they are. The frames are not encoded again, so a frame shared by many clients is still encoded once.
+ * A frame that is a batch already goes out on its own, and so does a compressed frame, as the frames of a batch are
+ * never compressed.
+ * <p>
+ * Only the thread that drains the queue uses it.
+ *
+ * @author Elisha
+ */
+final class FrameBatch
+{
+	// leaves room for the header in a frame
+	private static final int MAX_FRAME_BYTES = MessageOutput.MAX_FRAME_LENGTH - (1 << 10);
+
+	/**
+	 * The frames, from 0 to {@link #size()}.
+	 */
+	final Frame[] frames;
+	/**
+	 * The bytes to write for each of the frames, compressed if the client takes compressed frames.
+	 */
+	final byte[][] bytes;
+	private final boolean batching;
+	private final MessageCodec codec;
+	private int size = 0;
+	private int frameBytes = 0;
+	// taken from the queue, but it did not fit in the last batch
+	private Frame next;
+	private volatile Deflate.Compressor compressor;
+
+	/**
+	 * @param capacity the most frames to take at once.
+	 * @param batching true to put the frames together into batch frames.
+	 * @param codec    the codec used on the wire.
+	 */
+	FrameBatch(int capacity, boolean batching, MessageCodec codec)
+	{
+		this.frames = new Frame[Math.max(1, capacity)];
+		this.bytes = new byte[frames.length][];
+		this.batching = batching;
+		this.codec = codec;
+	}
+
+	/**
+	 * Compresses the frames taken from now on that are big enough, once the client said it takes compressed frames.
+	 *
+	 * @param compressor the client's compressor, or null to not compress.
+	 */
+	void compress(Deflate.Compressor compressor)
+	{
+		this.compressor = compressor;
+	}
+
+	/**
+	 * Takes the next frames from the queue, in place of the ones taken before.
+	 *
+	 * @param queue the queue.
+	 * @return the number of frames taken, 0 if there are none.
+	 * @throws IOException if a frame could not be encoded.
+	 */
+	int poll(OutboundQueue queue) throws IOException
+	{
+		Arrays.fill(frames, 0, size, null);
+		Arrays.fill(bytes, 0, size, null);
+		var compressor = this.compressor;
+		size = 0;
+		frameBytes = 0;
+		while (size < frames.length)
+		{
+			Frame frame = next != null ? next : queue.poll();
+			next = null;
+			if (frame == null)
+				break;
+
+			byte[] b = frame.bytes(compressor);
+			int length = b.length;
+			// batches do not nest, so a batch frame goes on its own
+			boolean alone = batching && (frame.message instanceof BatchMessage || Deflate.isCompressed(b));
+			if (size > 0 && batching && (alone || frameBytes + length > MAX_FRAME_BYTES))
+			{
+				next = frame;
+				break;
+			}
+			bytes[size] = b;
+			frames[size++] = frame;
+			frameBytes += length;
+			if (alone)
+				break;
+		}
+		return size;
+	}
+
+	/**
+	 * @return the number of frames taken.
+	 */
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @param dest the client's name, or null if it has not logged in.
+	 * @return the bytes to write before the frames to make them one batch frame, or null to write them one by one.
+	 * @throws IOException if the header could not be encoded.
+	 */
+	byte[] header(String dest) throws IOException
+	{
+		if (!batching || size < 2)
+			return null;
+		return codec.batchHeader(null, dest, size, frameBytes);
+	}
+}
@@ -0,0 +1,102 @@
+package my_chat.serverside;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * A consistent-hash ring that places client names on the nodes of a cluster.
+ * Every node stands at {@link #VIRTUAL_NODES} points of the ring, and a name belongs to the node at the first point at
+ * or after the name's hash, so each node gets an even share of the names. When a node joins or leaves, only the names
+ * next to its points move: about 1/N of them.
+ * <p>
+ * A ring never changes; a new one is built when the nodes change. Looking a name up is a binary search over the
+ * points.
+ *
+ * @author Elisha
+ */
+final class HashRing
+{
+	/**
+	 * The points each node stands at.
+	 */
+	static final int VIRTUAL_NODES = 128;
+
+	// sorted, and the node at each point
+	private final long[] points;
+	private final String[] owners;
+
+	/**
+	 * @param nodes the names of the nodes. Every node in the cluster must build its ring from the same names to place
+	 *              the clients the same way.
+	 */
+	HashRing(Collection<String> nodes)
+	{
+		var ring = new ArrayList<Point>(nodes.size() * VIRTUAL_NODES);
+		for (var node : nodes)
+		{
+			for (int i = 0; i < VIRTUAL_NODES; i++)
+			{
+				ring.add(new Point(hash(node + '#' + i), node));
+			}
+		}
+		// ties, unlikely as they are, are broken the same way on every node
+		ring.sort(Comparator.comparingLong((Point p) -> p.hash).thenComparing(p -> p.node));
+
+		points = new long[ring.size()];
+		owners = new String[ring.size()];
+		for (int i = 0; i < ring.size(); i++)
+		{
+			points[i] = ring.get(i).hash;
+			owners[i] = ring.get(i).node;
+		}
+	}
+
+	/**
+	 * @param name a valid client name, see {@link ChatServer#isValidName}.
+	 * @return the node the name belongs on, or null if the ring has no nodes.
+	 */
+	String nodeFor(String name)
+	{
+		if (points.length == 0)
+			return null;
+		int i = Arrays.binarySearch(points, hash(name));
+		if (i < 0)
+			i = -i - 1; // the first point after the hash
+		return owners[i == points.length ? 0 : i];
+	}
+
+	/**
+	 * 64-bit FNV-1a over the UTF-8 bytes, with a final mix so that names that differ in their last letter spread over
+	 * the whole ring.
+	 */
+	static long hash(String key)
+	{
+		long h = 0xcbf29ce484222325L;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8))
+		{
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static final class Point
+	{
+		final long hash;
+		final String node;
+
+		Point(long hash, String node)
+		{
+			this.hash = hash;
+			this.node = node;
+		}
+	}
+}
@@ -0,0 +1,462 @@
+package my_chat.serverside;
+
+import my_chat.message_types.IMessage;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The messages a server has sent, in a bounded ring buffer.
+ * Every message gets a sequence number, starting at 1 and growing by one per message. The oldest messages are
+ * evicted when the buffer is full or, if there is an age limit, when a message is added after they got too old.
+ * The entries are also indexed by source and by destination, so the per-user queries only look at that user's
+ * entries.
+ *
+ * @author Elisha
+ */
+public class MessageHistory
+{
+	/**
+	 * A message and where it is in the history.
+	 */
+	public static class Entry
+	{
+		public final long seq;
+		public final long timestamp;
+		public final IMessage message;
+
+		Entry(long seq, long timestamp, IMessage message)
+		{
+			this.seq = seq;
+			this.timestamp = timestamp;
+			this.message = message;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "#" + seq + " " + message;
+		}
+	}
+
+	private final Entry[] ring;
+	private final long maxAgeMillis;
+	// the sequence number of the oldest entry, and of the next entry
+	private long firstSeq = 1, nextSeq = 1;
+
+	private final Map<String, Index> bySource = new HashMap<>();
+	private final Map<String, Index> byDest = new HashMap<>();
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * @param capacity     the maximum number of entries.
+	 * @param maxAgeMillis entries older than this are evicted. 0 means no age limit.
+	 */
+	public MessageHistory(int capacity, long maxAgeMillis)
+	{
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		this.ring = new Entry[capacity];
+		this.maxAgeMillis = maxAgeMillis;
+	}
+
+	/**
+	 * Appends a message.
+	 *
+	 * @param message the message.
+	 * @return the entry of the message.
+	 */
+	public Entry add(IMessage message)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			long now = System.currentTimeMillis();
+			evictOlderThan(now);
+
+			var entry = new Entry(nextSeq, now, message);
+			append(entry);
+			return entry;
+		} finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends an entry that was recorded earlier, such as one read back from a {@link MessageLog}.
+	 * The sequence numbers continue from it. If there is a gap between the last entry and this one, the history
+	 * restarts at this entry, so that it never has holes.
+	 *
+	 * @param entry the entry. Its sequence number must be after the last one.
+	 */
+	void restore(Entry entry)
+	{
+		lock.writeLock().lock();
+		try
+		{
+			if (firstSeq != nextSeq && entry.seq < nextSeq)
+				throw new IllegalArgumentException("Expected entry " + nextSeq + " but got " + entry.seq);
+
+			if (entry.seq != nextSeq)
+			{
+				Arrays.fill(ring, null);
+				bySource.clear();
+				byDest.clear();
+				firstSeq = nextSeq = entry.seq;
+			}
+			append(entry);
+		} finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the maximum number of entries.
+	 */
+	public int capacity()
+	{
+		return ring.length;
+	}
+
+	/**
+	 * @param seq a sequence number.
+	 * @return the entry with that number, or null if it was evicted or does not exist yet.
+	 */
+	public Entry get(long seq)
+	{
+		lock.readLock().lock();
+		try
+		{
+			return seq >= firstSeq && seq < nextSeq ? ring[slot(seq)] : null;
+		} finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param seq a sequence number. Use 0 for the whole history.
+	 * @param max the maximum number of entries to return.
+	 * @return the oldest entries after seq, oldest first.
+	 */
+	public List<Entry> since(long seq, int max)
+	{
+		lock.readLock().lock();
+		try
+		{
+			long from = Math.max(seq + 1, firstSeq);
+			long to = Math.min(nextSeq, from + max);
+			var entries = new ArrayList<Entry>((int) Math.max(0, to - from));
+			for (long s = from; s < to; s++)
+			{
+				entries.add(ring[slot(s)]);
+			}
+			return entries;
+		} finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param source a source.
+	 * @param n      the maximum number of entries to return.
+	 * @return the newest n entries from that source, oldest first.
+	 */
+	public List<Entry> lastFrom(String source, int n)
+	{
+		lock.readLock().lock();
+		try
+		{
+			return last(bySource.get(source), n);
+		} finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param dest a destination, such as a user name or "&lt;all&gt;".
+	 * @param n    the maximum number of entries to return.
+	 * @return the newest n entries to that destination, oldest first.
+	 */
+	public List<Entry> lastTo(String dest, int n)
+	{
+		lock.readLock().lock();
+		try
+		{
+			return last(byDest.get(dest), n);
+		} finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @param user a user name.
+	 * @param n    the maximum number of entries to return.
+	 * @return the newest n entries from or to that user, oldest first.
+	 */
+	public List<Entry> lastFor(String user, int n)
+	{
+		lock.readLock().lock();
+		try
+		{
+			Index from = bySource.getOrDefault(user, Index.EMPTY);
+			Index to = byDest.getOrDefault(user, Index.EMPTY);
+			int i = from.size() - 1, j = to.size() - 1;
+
+			// merge the two indexes, newest first
+			var entries = new ArrayList<Entry>();
+			while (entries.size() < n && (i >= 0 || j >= 0))
+			{
+				Entry a = i >= 0 ? from.get(i) : null;
+				Entry b = j >= 0 ? to.get(j) : null;
+				if (b == null || (a != null && a.seq > b.seq))
+				{
+					entries.add(a);
+					i--;
+				} else
+				{
+					// a message from the user to the user is in both indexes
+					if (a == b)
+						i--;
+					entries.add(b);
+					j--;
+				}
+			}
+			Collections.reverse(entries);
+			return entries;
+		} finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The entries a user should have received: the ones sent to the user and the ones sent to "&lt;all&gt;".
+	 *
+	 * @param user     a user name.
+	 * @param afterSeq only entries after this sequence number.
+	 * @param upToSeq  only entries up to and including this sequence number.
+	 * @param max      the maximum number of entries to return.
+	 * @return the oldest matching entries, oldest first.
+	 */
+	public List<Entry> sinceFor(String user, long afterSeq, long upToSeq, int max)
+	{
+		lock.readLock().lock();
+		try
+		{
+			Index to = byDest.getOrDefault(user, Index.EMPTY);
+			Index all = byDest.getOrDefault("<all>", Index.EMPTY);
+			int i = to.firstAfter(afterSeq), j = all.firstAfter(afterSeq);
+
+			// merge the two indexes, oldest first
+			var entries = new ArrayList<Entry>(Math.min(max, 256));
+			while (entries.size() < max)
+			{
+				Entry a = i < to.size() ? to.get(i) : null;
+				Entry b = j < all.size() ? all.get(j) : null;
+				Entry next;
+				if (b == null || (a != null && a.seq < b.seq))
+				{
+					next = a;
+					i++;
+				} else
+				{
+					next = b;
+					j++;
+				}
+				if (next == null || next.seq > upToSeq)
+					break;
+				entries.add(next);
+			}
+			return entries;
+		} finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the sequence number of the newest entry, or 0 if nothing was added yet.
+	 */
+	public long lastSeq()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return nextSeq - 1;
+		} finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of entries.
+	 */
+	public int size()
+	{
+		lock.readLock().lock();
+		try
+		{
+			return (int) (nextSeq - firstSeq);
+		} finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes all the entries. The sequence numbers keep growing from where they were.
+	 */
+	public void clear()
+	{
+		lock.writeLock().lock();
+		try
+		{
+			Arrays.fill(ring, null);
+			bySource.clear();
+			byDest.clear();
+			firstSeq = nextSeq;
+		} finally
+		{
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void append(Entry entry)
+	{
+		if (nextSeq - firstSeq == ring.length)
+			evictFirst();
+
+		ring[slot(entry.seq)] = entry;
+		nextSeq++;
+		index(bySource, entry.message.getSource()).addLast(entry);
+		index(byDest, entry.message.getDest()).addLast(entry);
+	}
+
+	private int slot(long seq)
+	{
+		return (int) (seq % ring.length);
+	}
+
+	private static Index index(Map<String, Index> index, String key)
+	{
+		return index.computeIfAbsent(key, k -> new Index());
+	}
+
+	private static List<Entry> last(Index entries, int n)
+	{
+		if (entries == null)
+			return new ArrayList<>();
+
+		int from = Math.max(0, entries.size() - n);
+		var last = new ArrayList<Entry>(entries.size() - from);
+		for (int i = from; i < entries.size(); i++)
+		{
+			last.add(entries.get(i));
+		}
+		return last;
+	}
+
+	private void evictOlderThan(long now)
+	{
+		if (maxAgeMillis <= 0)
+			return;
+		while (firstSeq < nextSeq && ring[slot(firstSeq)].timestamp < now - maxAgeMillis)
+		{
+			evictFirst();
+		}
+	}
+
+	/**
+	 * Evicts the oldest entry. It is also the oldest entry in both of its indexes.
+	 */
+	private void evictFirst()
+	{
+		int slot = slot(firstSeq++);
+		Entry entry = ring[slot];
+		ring[slot] = null;
+		unindex(bySource, entry.message.getSource());
+		unindex(byDest, entry.message.getDest());
+	}
+
+	private static void unindex(Map<String, Index> index, String key)
+	{
+		var entries = index.get(key);
+		entries.pollFirst();
+		if (entries.isEmpty())
+			index.remove(key);
+	}
+
+	/**
+	 * The entries of one source or destination, oldest first, in a growable circular array.
+	 * Entries are added at the end and evicted from the start, so they stay sorted by sequence number.
+	 */
+	private static class Index
+	{
+		static final Index EMPTY = new Index();
+
+		private Entry[] entries = new Entry[8];
+		private int head = 0, size = 0;
+
+		int size()
+		{
+			return size;
+		}
+
+		Entry get(int i)
+		{
+			return entries[(head + i) & (entries.length - 1)];
+		}
+
+		void addLast(Entry entry)
+		{
+			if (size == entries.length)
+			{
+				var grown = new Entry[entries.length * 2];
+				for (int i = 0; i < size; i++)
+				{
+					grown[i] = get(i);
+				}
+				entries = grown;
+				head = 0;
+			}
+			entries[(head + size++) & (entries.length - 1)] = entry;
+		}
+
+		void pollFirst()
+		{
+			entries[head] = null;
+			head = (head + 1) & (entries.length - 1);
+			size--;
+		}
+
+		boolean isEmpty()
+		{
+			return size == 0;
+		}
+
+		/**
+		 * @return the position of the first entry whose sequence number is after seq, or size if there is none.
+		 */
+		int firstAfter(long seq)
+		{
+			int low = 0, high = size;
+			while (low < high)
+			{
+				int middle = (low + high) >>> 1;
+				if (get(middle).seq <= seq)
+					low = middle + 1;
+				else
+					high = middle;
+			}
+			return low;
+		}
+	}
+}
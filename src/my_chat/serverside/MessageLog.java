@@ -0,0 +1,352 @@
+package my_chat.serverside;
+
+import my_chat.data_transfer.MessageCodec;
+import my_chat.message_types.IMessage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of {@link MessageHistory} entries, kept in memory-mapped segment files.
+ * <p>
+ * A segment is named after the sequence number of its first entry, and holds records of the form
+ * <pre>
+ * int length | int crc | long seq | long timestamp | payload
+ * </pre>
+ * where the payload is the message in {@link MessageCodec#BINARY} and the CRC covers everything after it.
+ * The length is written last, and the rest of a segment is zeros, so a record that was cut short by a crash reads as
+ * the end of the log.
+ * <p>
+ * When a record does not fit in the current segment a new one is started, and the oldest segments are deleted when
+ * there are more than the retention limit.
+ *
+ * @author Elisha
+ */
+public class MessageLog implements Closeable
+{
+	private static final int HEADER = 24;
+	private static final String SUFFIX = ".log";
+
+	private final Path directory;
+	private final int segmentBytes;
+	private final int retainSegments;
+	private final long syncIntervalMillis;
+	private final MessageCodec codec = MessageCodec.BINARY;
+
+	private final ArrayDeque<Path> segments = new ArrayDeque<>();
+	private Segment active;
+	private long lastSeq = 0;
+	private volatile boolean dirty = false;
+	// a lock rather than a monitor, since append() is on the send path and may wait for the disk
+	private final ReentrantLock lock = new ReentrantLock();
+
+	private final CRC32 crc = new CRC32();
+	private final ByteBuffer seqAndTimestamp = ByteBuffer.allocate(16);
+	private ScheduledExecutorService syncer;
+
+	/**
+	 * Opens a log, creating the directory if needed, and finds where the last segment ends.
+	 *
+	 * @param directory          the directory of the segment files.
+	 * @param segmentBytes       the size of a segment file.
+	 * @param retainSegments     the maximum number of segment files to keep.
+	 * @param syncIntervalMillis 0 to force every record to disk before {@link #append} returns. A positive number to
+	 *                           force the records written during that interval together, from a background thread
+	 *                           (group commit). A negative number to leave it to the operating system.
+	 * @throws IOException if the directory or the last segment could not be opened.
+	 */
+	public MessageLog(Path directory, int segmentBytes, int retainSegments, long syncIntervalMillis) throws IOException
+	{
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.retainSegments = Math.max(1, retainSegments);
+		this.syncIntervalMillis = syncIntervalMillis;
+
+		Files.createDirectories(directory);
+		try (var files = Files.list(directory))
+		{
+			files.filter(file -> file.getFileName().toString().endsWith(SUFFIX))
+					.sorted()
+					.forEach(segments::add);
+		}
+
+		if (!segments.isEmpty())
+		{
+			Path last = segments.getLast();
+			long size = Files.size(last);
+			active = new Segment(last, baseSeq(last), (int) size);
+			lastSeq = active.baseSeq - 1;
+			while (active.position + HEADER <= active.buffer.capacity())
+			{
+				int length = active.buffer.getInt(active.position);
+				if (!valid(active.buffer, active.position, length, lastSeq + 1, true))
+					break;
+				lastSeq++;
+				active.position += HEADER + length;
+			}
+		}
+
+		if (syncIntervalMillis > 0)
+		{
+			syncer = Executors.newSingleThreadScheduledExecutor(runnable ->
+			{
+				var thread = new Thread(runnable, "MessageLog-sync");
+				thread.setDaemon(true);
+				return thread;
+			});
+			syncer.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMillis, syncIntervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return the sequence number of the last record, or 0 if the log is empty.
+	 */
+	public long lastSeq()
+	{
+		lock.lock();
+		try
+		{
+			return lastSeq;
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Appends an entry. Entries must be appended in sequence order.
+	 *
+	 * @param entry the entry.
+	 * @throws IOException if the entry could not be encoded or written.
+	 */
+	public void append(MessageHistory.Entry entry) throws IOException
+	{
+		lock.lock();
+		try
+		{
+			byte[] payload = codec.encode(entry.message);
+			int size = HEADER + payload.length;
+
+			if (active == null || active.position + size > active.buffer.capacity() || entry.seq != lastSeq + 1)
+				roll(entry.seq, size);
+
+			MappedByteBuffer buffer = active.buffer;
+			int position = active.position;
+			buffer.putLong(position + 8, entry.seq);
+			buffer.putLong(position + 16, entry.timestamp);
+			buffer.position(position + HEADER);
+			buffer.put(payload);
+
+			seqAndTimestamp.clear();
+			seqAndTimestamp.putLong(entry.seq).putLong(entry.timestamp).flip();
+			crc.reset();
+			crc.update(seqAndTimestamp);
+			crc.update(payload);
+			buffer.putInt(position + 4, (int) crc.getValue());
+			buffer.putInt(position, payload.length);
+
+			active.position += size;
+			lastSeq = entry.seq;
+			dirty = true;
+
+			if (syncIntervalMillis == 0)
+				sync();
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads the log from the start and hands every entry from the given sequence number on to a consumer.
+	 * Entries before it are skipped without being decoded.
+	 *
+	 * @param fromSeq  the first sequence number to hand over.
+	 * @param consumer gets the entries, in order.
+	 * @return the number of entries handed over.
+	 * @throws IOException if a segment could not be read.
+	 */
+	public long replay(long fromSeq, Consumer<MessageHistory.Entry> consumer) throws IOException
+	{
+		Path[] files;
+		lock.lock();
+		try
+		{
+			files = segments.toArray(new Path[0]);
+		} finally
+		{
+			lock.unlock();
+		}
+
+		long count = 0;
+		var crc = new CRC32();
+		byte[] scratch = new byte[256];
+		for (int i = 0; i < files.length; i++)
+		{
+			// a later segment starts at or before fromSeq, so everything here is older
+			if (i + 1 < files.length && baseSeq(files[i + 1]) <= fromSeq)
+				continue;
+
+			long seq = baseSeq(files[i]);
+			try (var channel = FileChannel.open(files[i], StandardOpenOption.READ))
+			{
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				int position = 0;
+				while (position + HEADER <= buffer.capacity())
+				{
+					int length = buffer.getInt(position);
+					if (!valid(buffer, position, length, seq, false))
+						break;
+
+					if (seq >= fromSeq)
+					{
+						if (scratch.length < length + 16)
+							scratch = new byte[Math.max(length + 16, scratch.length * 2)];
+						buffer.position(position + 8);
+						buffer.get(scratch, 0, length + 16);
+
+						crc.reset();
+						crc.update(scratch, 0, length + 16);
+						if ((int) crc.getValue() != buffer.getInt(position + 4))
+							break;
+
+						try
+						{
+							IMessage message = codec.decode(scratch, 16, length);
+							consumer.accept(new MessageHistory.Entry(seq, buffer.getLong(position + 16), message));
+							count++;
+						} catch (ClassNotFoundException e)
+						{
+							throw new IOException("Unknown record " + seq + " in " + files[i], e);
+						}
+					}
+					seq++;
+					position += HEADER + length;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Forces the records written so far to disk.
+	 */
+	public void sync()
+	{
+		Segment segment;
+		lock.lock();
+		try
+		{
+			segment = active;
+			dirty = false;
+		} finally
+		{
+			lock.unlock();
+		}
+		if (segment != null)
+			segment.buffer.force();
+	}
+
+	@Override
+	public void close()
+	{
+		lock.lock();
+		try
+		{
+			if (syncer != null)
+				syncer.shutdownNow();
+			if (active != null)
+			{
+				active.buffer.force();
+				active = null;
+			}
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	private void syncQuietly()
+	{
+		if (dirty)
+			sync();
+	}
+
+	/**
+	 * Closes the active segment and starts a new one whose first record is seq.
+	 */
+	private void roll(long seq, int recordSize) throws IOException
+	{
+		if (active != null)
+			active.buffer.force();
+
+		Path file = directory.resolve(String.format("%020d", seq) + SUFFIX);
+		active = new Segment(file, seq, Math.max(segmentBytes, recordSize));
+		segments.addLast(file);
+
+		while (segments.size() > retainSegments)
+		{
+			Files.deleteIfExists(segments.removeFirst());
+		}
+	}
+
+	/**
+	 * Checks the header of the record at position, and optionally its CRC.
+	 */
+	private boolean valid(ByteBuffer buffer, int position, int length, long expectedSeq, boolean checkCrc)
+	{
+		if (length <= 0 || position + HEADER + length > buffer.capacity())
+			return false;
+		if (buffer.getLong(position + 8) != expectedSeq)
+			return false;
+		if (!checkCrc)
+			return true;
+
+		byte[] record = new byte[16 + length];
+		buffer.position(position + 8);
+		buffer.get(record);
+		crc.reset();
+		crc.update(record);
+		return (int) crc.getValue() == buffer.getInt(position + 4);
+	}
+
+	private static long baseSeq(Path segment)
+	{
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+	}
+
+	/**
+	 * A segment file, mapped for writing.
+	 */
+	private static class Segment
+	{
+		final long baseSeq;
+		final MappedByteBuffer buffer;
+		int position = 0;
+
+		Segment(Path file, long baseSeq, int size) throws IOException
+		{
+			this.baseSeq = baseSeq;
+			try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE))
+			{
+				this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+		}
+	}
+}
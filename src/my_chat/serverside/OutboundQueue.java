@@ -0,0 +1,210 @@
+package my_chat.serverside;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of the messages waiting to be written to one client.
+ * Any thread may offer frames. One writer at a time drains the queue: a writer claims the queue with
+ * {@link #claimDrain()}, polls until it is empty, and then calls {@link #releaseDrain()}.
+ * <p>
+ * Offering never waits, as it is done under the server's sequencer: under {@link OverflowPolicy#BLOCK} a full queue
+ * takes up to another capacity of frames, and the server holds back the clients that sent them until
+ * {@link #whenRoom(Runnable)} says there is room.
+ *
+ * @author Elisha
+ */
+class OutboundQueue
+{
+	private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final AtomicBoolean draining = new AtomicBoolean();
+	// the tasks to run once the queue is short enough, see whenBelow
+	private final ArrayList<Waiter> waiters = new ArrayList<>();
+
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final ServerMetrics metrics;
+
+	/**
+	 * @param capacity the maximum number of queued frames.
+	 * @param policy   what to do when the queue is full.
+	 * @param metrics  the server's metrics, which count the frames {@link OverflowPolicy#DROP_OLDEST} drops.
+	 */
+	OutboundQueue(int capacity, OverflowPolicy policy, ServerMetrics metrics)
+	{
+		this.capacity = capacity;
+		this.policy = policy;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Adds a message, applying the overflow policy if the queue is full. This does not wait.
+	 *
+	 * @param frame the frame to add.
+	 * @return false if the client should be disconnected, in which case the message was not added.
+	 */
+	boolean offer(Frame frame)
+	{
+		lock.lock();
+		try
+		{
+			if (frames.size() >= capacity)
+			{
+				switch (policy)
+				{
+					case DROP_OLDEST:
+						frames.pollFirst();
+						metrics.overflowDropped();
+						break;
+					case DISCONNECT:
+						return false;
+					case BLOCK:
+						// the senders wait once their message is routed; the queue takes theirs until then
+						if (frames.size() >= 2 * capacity)
+							return false;
+						break;
+				}
+			}
+			frames.addLast(frame);
+			return true;
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the oldest frame, or null if the queue is empty.
+	 */
+	Frame poll()
+	{
+		Frame frame;
+		ArrayList<Runnable> due = null;
+		lock.lock();
+		try
+		{
+			frame = frames.pollFirst();
+			for (int i = waiters.size() - 1; i >= 0; i--)
+			{
+				if (frames.size() < waiters.get(i).size)
+				{
+					if (due == null)
+						due = new ArrayList<>();
+					due.add(waiters.remove(i).task);
+				}
+			}
+		} finally
+		{
+			lock.unlock();
+		}
+		if (due != null)
+		{
+			for (var task : due)
+			{
+				task.run();
+			}
+		}
+		return frame;
+	}
+
+	/**
+	 * @return true if the queue holds as many frames as its capacity, or more.
+	 */
+	boolean isFull()
+	{
+		lock.lock();
+		try
+		{
+			return frames.size() >= capacity;
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Runs a task once the queue has room: right away if it has, or else on the writer's thread once it polls enough.
+	 * The task must be short. If the client is dropped first, it never runs.
+	 *
+	 * @param task the task.
+	 */
+	void whenRoom(Runnable task)
+	{
+		whenBelow(capacity, task);
+	}
+
+	/**
+	 * Runs a task once the queue holds fewer frames than a size: right away if it does, or else on the writer's thread
+	 * once it polls enough. The task must be short. If the client is dropped first, it never runs.
+	 *
+	 * @param size the size.
+	 * @param task the task.
+	 */
+	void whenBelow(int size, Runnable task)
+	{
+		lock.lock();
+		try
+		{
+			if (frames.size() >= size)
+			{
+				waiters.add(new Waiter(size, task));
+				return;
+			}
+		} finally
+		{
+			lock.unlock();
+		}
+		task.run();
+	}
+
+	private static final class Waiter
+	{
+		final int size;
+		final Runnable task;
+
+		Waiter(int size, Runnable task)
+		{
+			this.size = size;
+			this.task = task;
+		}
+	}
+
+	/**
+	 * Claims the right to drain the queue.
+	 *
+	 * @return true if the caller is now the writer and must drain the queue, false if there is a writer already.
+	 */
+	boolean claimDrain()
+	{
+		return draining.compareAndSet(false, true);
+	}
+
+	/**
+	 * Gives up the right to drain the queue, unless messages arrived since the last poll.
+	 *
+	 * @return true if the caller is still the writer and must keep draining.
+	 */
+	boolean releaseDrain()
+	{
+		draining.set(false);
+		return size() > 0 && claimDrain();
+	}
+
+	/**
+	 * @return the number of queued frames.
+	 */
+	int size()
+	{
+		lock.lock();
+		try
+		{
+			return frames.size();
+		} finally
+		{
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package my_chat.serverside;
+
+/**
+ * What a client's outbound queue does when it is full, i.e. when the client reads slower than it is sent to.
+ *
+ * @author Elisha
+ */
+public enum OverflowPolicy
+{
+	/**
+	 * Drop the oldest queued message to make room for the new one.
+	 */
+	DROP_OLDEST,
+	/**
+	 * Disconnect the client.
+	 */
+	DISCONNECT,
+	/**
+	 * Queue the message anyway, and hold back the client that sent it: the server reads nothing more from that client
+	 * until there is room, up to a timeout, and then disconnects the slow client. So a slow client slows its senders
+	 * down, and only them; the messages of other clients are routed meanwhile. A queue takes up to twice its capacity,
+	 * for the messages that are on the way before their senders are held back, and the messages another node of a
+	 * cluster forwards, whose sender is not held back; the slow client is disconnected beyond that.
+	 */
+	BLOCK
+}
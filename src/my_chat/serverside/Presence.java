@@ -0,0 +1,113 @@
+package my_chat.serverside;
+
+import my_chat.message_types.BroadcastMessage;
+import my_chat.message_types.ClientJoinedMessage;
+import my_chat.message_types.ClientLeftMessage;
+import my_chat.message_types.NameListMessage;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Who is logged in, on this node and the others, as the clients are told: the names that the joins and leaves the
+ * server sent so far add up to. Its version is the sequence number of the last of those joins and leaves, so a client
+ * that gets the names with their version knows which joins and leaves are already in them and which come after.
+ * <p>
+ * It is changed under the server's sequencer, so it is in step with the joins and leaves every client is sent. The
+ * names are kept sorted, in a skip list, so a page of a directory query is found in O(log n + page), and read without
+ * the sequencer, so lookups do not hold up the messages.
+ *
+ * @author Elisha
+ */
+final class Presence
+{
+	/**
+	 * The most names a page of a directory query holds.
+	 */
+	static final int MAX_PAGE = 500;
+
+	private final ConcurrentSkipListSet<String> names = new ConcurrentSkipListSet<>();
+	private volatile long version = 0;
+	// a copy of the names that every name list shares until the next join or leave
+	private HashSet<String> snapshot;
+
+	/**
+	 * Applies a join or leave the server numbered and is sending to the clients.
+	 *
+	 * @param message a {@link ClientJoinedMessage} or {@link ClientLeftMessage}.
+	 */
+	void apply(BroadcastMessage message)
+	{
+		if (message instanceof ClientJoinedMessage)
+			names.add(((ClientJoinedMessage) message).name);
+		else if (message instanceof ClientLeftMessage)
+			names.remove(((ClientLeftMessage) message).name);
+		else
+			return;
+		version = message.seq;
+		snapshot = null;
+	}
+
+	/**
+	 * @return the sequence number of the last join or leave, or 0 if there was none.
+	 */
+	long version()
+	{
+		return version;
+	}
+
+	/**
+	 * @return the names as of {@link #version()}. The set is made again only after a join or leave, so it must not be
+	 * changed.
+	 */
+	HashSet<String> snapshot()
+	{
+		if (snapshot == null)
+			snapshot = new HashSet<>(names);
+		return snapshot;
+	}
+
+	/**
+	 * Answers a directory query: the names that start with a prefix, in order, a page at a time. It may be called
+	 * without the sequencer, and then a join or leave during the call may or may not be in the page.
+	 *
+	 * @param dest   the client that asked.
+	 * @param prefix what the names start with, or null for any name.
+	 * @param after  the cursor: the page starts after this name, or at the first name if it is null.
+	 * @param limit  the most names to send, at most {@link #MAX_PAGE}.
+	 * @return the page, with the cursor of the next page if there are more names.
+	 */
+	NameListMessage page(String dest, String prefix, String after, int limit)
+	{
+		if (prefix == null)
+			prefix = "";
+		limit = Math.max(1, Math.min(limit, MAX_PAGE));
+		long version = this.version;
+
+		// start at the prefix, or after the cursor if it is further on
+		var tail = after == null || after.compareTo(prefix) < 0 ? names.tailSet(prefix, true)
+				: names.tailSet(after, false);
+		var page = new LinkedHashSet<String>();
+		String last = null, next = null;
+		for (var name : tail)
+		{
+			if (!name.startsWith(prefix))
+				break;
+			if (page.size() == limit)
+			{
+				next = last;
+				break;
+			}
+			page.add(name);
+			last = name;
+		}
+		return NameListMessage.page(dest, page, version, next);
+	}
+
+	void clear()
+	{
+		names.clear();
+		snapshot = null;
+	}
+}
@@ -0,0 +1,114 @@
+package my_chat.serverside;
+
+import java.util.*;
+
+/**
+ * The rooms and their members.
+ * Each room keeps its own members, so a room message costs one lookup and one send per member, however many clients
+ * are logged in. Each connection keeps its rooms, so a client that leaves the server leaves them without a scan.
+ * <p>
+ * Not thread safe: the server only uses it under its sequencer, which also orders the room messages.
+ *
+ * @author Elisha
+ */
+class RoomRegistry
+{
+	// members in the order they joined
+	private final HashMap<String, LinkedHashMap<String, ClientConnection>> rooms = new HashMap<>();
+	private final HashMap<ClientConnection, Set<String>> joined = new HashMap<>();
+
+	/**
+	 * @param room       a room. It is created if it does not exist.
+	 * @param name       the client's name.
+	 * @param connection the client's connection.
+	 * @return true if the client joined, false if it was already a member.
+	 */
+	boolean join(String room, String name, ClientConnection connection)
+	{
+		var members = rooms.computeIfAbsent(room, r -> new LinkedHashMap<>());
+		if (members.putIfAbsent(name, connection) != null)
+			return false;
+		joined.computeIfAbsent(connection, c -> new HashSet<>()).add(room);
+		return true;
+	}
+
+	/**
+	 * @param room       a room. It is removed once its last member leaves.
+	 * @param name       the client's name.
+	 * @param connection the client's connection.
+	 * @return true if the client left, false if it was not a member.
+	 */
+	boolean leave(String room, String name, ClientConnection connection)
+	{
+		var members = rooms.get(room);
+		if (members == null || !members.remove(name, connection))
+			return false;
+		if (members.isEmpty())
+			rooms.remove(room);
+
+		var ofClient = joined.get(connection);
+		if (ofClient != null)
+		{
+			ofClient.remove(room);
+			if (ofClient.isEmpty())
+				joined.remove(connection);
+		}
+		return true;
+	}
+
+	/**
+	 * Takes a client out of every room it is in.
+	 *
+	 * @param name       the client's name.
+	 * @param connection the client's connection.
+	 * @return the rooms it left.
+	 */
+	List<String> leaveAll(String name, ClientConnection connection)
+	{
+		var ofClient = joined.get(connection);
+		if (ofClient == null)
+			return Collections.emptyList();
+		var left = new ArrayList<>(ofClient);
+		for (var room : left)
+			leave(room, name, connection);
+		return left;
+	}
+
+	/**
+	 * @param room a room.
+	 * @param name a client's name.
+	 * @return true if the client is in the room.
+	 */
+	boolean isMember(String room, String name)
+	{
+		var members = rooms.get(room);
+		return members != null && members.containsKey(name);
+	}
+
+	/**
+	 * @param room a room.
+	 * @return the room's members by name, empty if there is no such room. Do not modify.
+	 */
+	Map<String, ClientConnection> members(String room)
+	{
+		var members = rooms.get(room);
+		return members == null ? Collections.emptyMap() : members;
+	}
+
+	/**
+	 * @return the number of rooms with members.
+	 */
+	int size()
+	{
+		return rooms.size();
+	}
+
+	/**
+	 * Removes every room.
+	 */
+	void clear()
+	{
+		rooms.clear();
+		joined.clear();
+	}
+}
@@ -0,0 +1,751 @@
+package my_chat.serverside;
+
+import my_chat.data_transfer.ChatListener;
+import my_chat.data_transfer.Deflate;
+import my_chat.data_transfer.MessageCodec;
+import my_chat.data_transfer.MessageOutput;
+import my_chat.message_types.FileChunkMessage;
+import my_chat.message_types.IClientMessage;
+import my_chat.message_types.IMessage;
+import my_chat.message_types.LoginMessage;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A non-blocking engine for {@link ChatServer}.
+ * The thread that calls {@link #run()} accepts the clients and hands them out, round robin, to a few event loops.
+ * Each loop multiplexes its clients on one {@link Selector}, so an idle client costs a channel and a small buffer
+ * instead of a thread.
+ *
+ * @author Elisha
+ */
+class SelectorEngine
+{
+	private static final int INITIAL_READ_BUFFER = 1024;
+	// the most frames one gathering write takes from a client's queue when the server does not batch them
+	private static final int GATHER = 64;
+	static final int ACCEPT_BACKLOG = 1024;
+	static final long ACCEPT_RETRY_MILLIS = 100;
+
+	private final ChatServer server;
+	private final ChatListener listener;
+	private final int port;
+	private final MessageCodec codec;
+	private final EventLoop[] loops;
+
+	private ServerSocketChannel acceptor;
+	private volatile boolean running = true;
+
+	/**
+	 * @param server        the server whose logic the clients are connected to.
+	 * @param listener      the server's listener.
+	 * @param port          the port to listen on.
+	 * @param numberOfLoops the number of event loop threads.
+	 * @param codec         the codec used on the wire.
+	 */
+	SelectorEngine(ChatServer server, ChatListener listener, int port, int numberOfLoops, MessageCodec codec)
+	{
+		this.server = server;
+		this.listener = listener;
+		this.port = port;
+		this.codec = codec;
+		this.loops = new EventLoop[Math.max(1, numberOfLoops)];
+	}
+
+	/**
+	 * Accepts clients until {@link #stop()} is called. This blocks the calling thread.
+	 *
+	 * @throws IOException if the server socket or a selector could not be opened.
+	 */
+	void run() throws IOException
+	{
+		acceptor = ServerSocketChannel.open();
+		try
+		{
+			acceptor.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+
+			for (int i = 0; i < loops.length; i++)
+			{
+				loops[i] = new EventLoop(Selector.open(), "Selector-" + i);
+				loops[i].thread.start();
+			}
+
+			int next = 0;
+			while (running)
+			{
+				SocketChannel channel;
+				try
+				{
+					channel = acceptor.accept();
+				} catch (ClosedChannelException e)
+				{
+					break;
+				} catch (IOException e)
+				{
+					// most likely out of file descriptors; back off instead of spinning
+					listener.stat("Could not accept a client: " + e.getMessage(), true);
+					pause(ACCEPT_RETRY_MILLIS);
+					continue;
+				}
+				// turned away while the channel still blocks, so the busy message is written before it closes
+				if (!server.admit(channel.socket()))
+				{
+					channel.close();
+					continue;
+				}
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+				loops[next].register(channel);
+				next = (next + 1) % loops.length;
+			}
+		} finally
+		{
+			stop();
+		}
+	}
+
+	/**
+	 * Stops accepting clients and closes every channel. Stopping a stopped engine does nothing.
+	 */
+	void stop()
+	{
+		running = false;
+		try
+		{
+			if (acceptor != null)
+				acceptor.close();
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		for (var loop : loops)
+		{
+			if (loop != null)
+				loop.selector.wakeup();
+		}
+	}
+
+	static void pause(long millis)
+	{
+		try
+		{
+			Thread.sleep(millis);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * A thread that serves the channels registered with one selector.
+	 */
+	private class EventLoop implements Runnable
+	{
+		private final Selector selector;
+		private final Thread thread;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		// the sessions that have not logged in yet, by deadline, as they all get the same timeout
+		private final ArrayDeque<Session> handshakes = new ArrayDeque<>();
+		// the sessions held back for full queues, by deadline, for the same reason
+		private final ArrayDeque<Pause> pauses = new ArrayDeque<>();
+
+		EventLoop(Selector selector, String name)
+		{
+			this.selector = selector;
+			this.thread = new Thread(this, name);
+		}
+
+		/**
+		 * Runs a task on this loop's thread.
+		 */
+		void execute(Runnable task)
+		{
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		boolean inLoop()
+		{
+			return Thread.currentThread() == thread;
+		}
+
+		void register(SocketChannel channel)
+		{
+			execute(() ->
+			{
+				var session = new Session(this, channel);
+				try
+				{
+					session.key = channel.register(selector, SelectionKey.OP_READ, session);
+					long timeout = server.admission.handshakeTimeoutMillis();
+					if (timeout > 0)
+					{
+						session.handshakeDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+						handshakes.add(session);
+					}
+					session.sendLoginRequest();
+				} catch (IOException e)
+				{
+					listener.stat("Could not register a new client: " + e.getMessage(), true);
+					session.close();
+				}
+			});
+		}
+
+		@Override
+		public void run()
+		{
+			while (running)
+			{
+				try
+				{
+					selector.select(selectTimeoutMillis());
+				} catch (IOException e)
+				{
+					listener.stat("Selector failed: " + e.getMessage(), true);
+					break;
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null)
+				{
+					task.run();
+				}
+
+				var keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					var key = keys.next();
+					keys.remove();
+
+					var session = (Session) key.attachment();
+					if (key.isValid() && key.isReadable())
+						session.read();
+					if (key.isValid() && key.isWritable())
+						session.flush();
+				}
+
+				expireHandshakes();
+				expirePauses();
+			}
+
+			for (var key : selector.keys())
+			{
+				((Session) key.attachment()).close();
+			}
+			for (var session : handshakes)
+			{
+				session.close();
+			}
+			try
+			{
+				selector.close();
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * @return how long to wait for the channels: until the first handshake or hold-back is due, or 0 for as long
+		 * as it takes.
+		 */
+		private long selectTimeoutMillis()
+		{
+			long now = System.nanoTime(), wait = Long.MAX_VALUE;
+			var handshake = handshakes.peek();
+			if (handshake != null)
+				wait = handshake.handshakeDeadline - now;
+			var pause = pauses.peek();
+			if (pause != null)
+				wait = Math.min(wait, pause.deadline - now);
+			return wait == Long.MAX_VALUE ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait));
+		}
+
+		/**
+		 * Drops the clients that did not make room in time for the sessions they held back, and lets those sessions
+		 * read again. Forgets the hold-backs that are over.
+		 */
+		private void expirePauses()
+		{
+			long now = System.nanoTime();
+			Pause pause;
+			while ((pause = pauses.peek()) != null && (pause.over || now - pause.deadline >= 0))
+			{
+				pauses.poll();
+				if (!pause.over)
+				{
+					for (var connection : pause.full)
+					{
+						if (connection.isFull())
+							connection.drop();
+					}
+					pause.session.resume(pause);
+				}
+			}
+		}
+
+		/**
+		 * Drops the sessions that did not log in in time, and forgets the ones that did.
+		 */
+		private void expireHandshakes()
+		{
+			long now = System.nanoTime();
+			Session session;
+			while ((session = handshakes.peek()) != null
+					&& (!session.handshaking || now - session.handshakeDeadline >= 0))
+			{
+				handshakes.poll();
+				if (session.handshaking)
+				{
+					server.handshakeTimedOut();
+					session.disconnected();
+				}
+			}
+		}
+	}
+
+	/**
+	 * One client, served by the loop it was registered with.
+	 * Only {@link #send(Frame)} and {@link #close()} may be called from other threads.
+	 */
+	private class Session implements ClientConnection
+	{
+		private final EventLoop loop;
+		private final SocketChannel channel;
+		private SelectionKey key;
+
+		private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+		private final OutboundQueue queue = server.newOutboundQueue();
+		private final SessionStats stats = new SessionStats();
+		private final FrameBatch pending = server.newFrameBatch(GATHER);
+		// the buffers being written, and their frames (null for a batch header); batch[batchStart] is the first one
+		// the socket did not take all of
+		private final ByteBuffer[] batch = new ByteBuffer[pending.frames.length + 1];
+		private final Frame[] batchFrames = new Frame[batch.length];
+		private int batchStart = 0, batchEnd = 0;
+
+		private String name;
+		private volatile boolean closed = false;
+		private boolean handshaking = true, closing = false;
+		private long handshakeDeadline;
+		private Deflate.Decompressor decompressor;
+		// set while the session is held back, see holdBack
+		private Pause pause;
+
+		Session(EventLoop loop, SocketChannel channel)
+		{
+			this.loop = loop;
+			this.channel = channel;
+		}
+
+		@Override
+		public void send(Frame frame) throws IOException
+		{
+			if (closed)
+				throw new IOException("Connection is closed");
+
+			if (!queue.offer(frame))
+			{
+				loop.execute(this::disconnected);
+				throw new IOException("Outbound queue overflowed. Client dropped.");
+			}
+			if (queue.claimDrain())
+			{
+				if (loop.inLoop())
+					flush();
+				else
+					loop.execute(this::flush);
+			}
+		}
+
+		@Override
+		public int queueDepth()
+		{
+			return queue.size();
+		}
+
+		@Override
+		public boolean isFull()
+		{
+			return queue.isFull();
+		}
+
+		@Override
+		public void whenRoom(Runnable task)
+		{
+			queue.whenRoom(task);
+		}
+
+		@Override
+		public void whenBelow(int depth, Runnable task)
+		{
+			queue.whenBelow(depth, task);
+		}
+
+		/**
+		 * Stops reading from the client instead of waiting: the loop's thread writes to the clients it waits for, and
+		 * serves its other sessions meanwhile. The frames already read are dispatched once it {@link #resume}s.
+		 */
+		@Override
+		public void holdBack(Collection<ClientConnection> full, long timeoutMillis)
+		{
+			var pause = new Pause(this, full, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+			this.pause = pause;
+			loop.pauses.add(pause);
+			if (key.isValid())
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			for (var connection : full)
+			{
+				connection.whenRoom(() -> loop.execute(pause::roomMade));
+			}
+		}
+
+		/**
+		 * Reads from the client again, once a hold-back is over.
+		 */
+		void resume(Pause pause)
+		{
+			pause.over = true;
+			if (this.pause != pause)
+				return;
+			this.pause = null;
+			if (key.isValid())
+			{
+				key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+				process(false);
+			}
+		}
+
+		/**
+		 * @return the interest in reading: none while the session is held back.
+		 */
+		private int readOps()
+		{
+			return pause == null ? SelectionKey.OP_READ : 0;
+		}
+
+		@Override
+		public SessionStats stats()
+		{
+			return stats;
+		}
+
+		@Override
+		public boolean isClosed()
+		{
+			return closed;
+		}
+
+		@Override
+		public void close()
+		{
+			if (!loop.inLoop())
+			{
+				loop.execute(this::close);
+				return;
+			}
+			closed = true;
+			if (handshaking)
+			{
+				handshaking = false;
+				server.admission.handshakeEnded();
+			}
+			if (key != null)
+				key.cancel();
+			try
+			{
+				channel.close();
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		@Override
+		public void closeAfterFlush()
+		{
+			if (!loop.inLoop())
+			{
+				loop.execute(this::closeAfterFlush);
+				return;
+			}
+			closing = true;
+			if (queue.claimDrain())
+				flush();
+		}
+
+		@Override
+		public void drop()
+		{
+			loop.execute(this::disconnected);
+		}
+
+		void sendLoginRequest() throws IOException
+		{
+			IMessage loginRequestMessage = server.loginRequest();
+			send(server.frame(loginRequestMessage));
+			listener.messageSent(loginRequestMessage);
+		}
+
+		/**
+		 * Writes as much of the outbound queue as the socket takes, and waits for OP_WRITE if there is more.
+		 * The frames the server batches together, or up to {@link #GATHER} frames if it does not, go out in one
+		 * gathering write.
+		 * Only the loop thread that holds the queue's drain claim may call this.
+		 */
+		void flush()
+		{
+			if (key == null || !key.isValid())
+				return;
+
+			try
+			{
+				while (true)
+				{
+					if (batchStart == batchEnd)
+					{
+						batchStart = batchEnd = 0;
+						int count = pending.poll(queue);
+						if (count == 0)
+						{
+							if (queue.releaseDrain())
+								continue;
+							if (closing)
+								close();
+							else
+								key.interestOps(readOps());
+							return;
+						}
+						byte[] header = pending.header(name);
+						if (header != null)
+							batch[batchEnd++] = ByteBuffer.wrap(header);
+						for (int i = 0; i < count; i++)
+						{
+							batch[batchEnd] = ByteBuffer.wrap(pending.bytes[i]);
+							batchFrames[batchEnd++] = pending.frames[i];
+						}
+					}
+
+					channel.write(batch, batchStart, batchEnd - batchStart);
+					while (batchStart < batchEnd && !batch[batchStart].hasRemaining())
+					{
+						int size = batch[batchStart].limit();
+						if (batchFrames[batchStart] == null)
+						{
+							stats.sentOverhead(size);
+							server.metrics.sentOverhead(size);
+						} else
+						{
+							stats.sent(size);
+							server.metrics.sent(batchFrames[batchStart], size);
+						}
+						batchFrames[batchStart] = null;
+						batch[batchStart++] = null;
+					}
+					if (batchStart < batchEnd)
+					{
+						// keep the drain claim; OP_WRITE calls us again
+						key.interestOps(readOps() | SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+			} catch (IOException e)
+			{
+				listener.stat("IOException. Client dropped. Name: " + (name == null ? "'null'" : name), true);
+				// not right away: this may be a send to this client while another client is logged out, and logging
+				// this one out from inside it would fan out again, and again for every client that fails the same way
+				loop.execute(this::disconnected);
+			}
+		}
+
+		/**
+		 * Reads what is available and dispatches every complete frame.
+		 */
+		void read()
+		{
+			process(true);
+		}
+
+		/**
+		 * Dispatches the complete frames in the read buffer, until the session is held back.
+		 *
+		 * @param read true to read what is available first.
+		 */
+		private void process(boolean read)
+		{
+			try
+			{
+				if (read && channel.read(readBuffer) < 0)
+				{
+					disconnected();
+					return;
+				}
+
+				readBuffer.flip();
+				int needed = 0;
+				while (readBuffer.remaining() >= Integer.BYTES)
+				{
+					int prefix = readBuffer.getInt(readBuffer.position());
+					int length = Deflate.length(prefix);
+					if (length < 0 || length > MessageOutput.MAX_FRAME_LENGTH)
+						throw new StreamCorruptedException("Invalid frame length: " + length);
+					if (readBuffer.remaining() < Integer.BYTES + length)
+					{
+						needed = Integer.BYTES + length;
+						break;
+					}
+
+					int start = readBuffer.position() + Integer.BYTES;
+					IMessage message = decode(prefix, readBuffer.array(), readBuffer.arrayOffset() + start, length);
+					if (message instanceof FileChunkMessage && !Deflate.isCompressed(prefix))
+					{
+						// passed on as it came, see ChatServer#frame: the binary codec skipped the chunk's data, so
+						// this is its only copy, and it is not encoded again
+						int from = readBuffer.arrayOffset() + start - Integer.BYTES;
+						((FileChunkMessage) message).frame = Arrays.copyOfRange(readBuffer.array(), from,
+								from + Integer.BYTES + length);
+					}
+					readBuffer.position(start + length);
+					stats.received(Integer.BYTES + length);
+					server.metrics.received(message, Integer.BYTES + length);
+
+					received(message);
+					if (closed)
+						return;
+					if (pause != null)
+						break;
+				}
+				readBuffer.compact();
+
+				if (needed > readBuffer.capacity())
+				{
+					readBuffer = ByteBuffer.allocate(needed).put(readBuffer.flip());
+				} else if (readBuffer.position() == 0 && readBuffer.capacity() > INITIAL_READ_BUFFER)
+				{
+					readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+				}
+			} catch (IOException e)
+			{
+				listener.stat("IOException. Client dropped. Name: " + (name == null ? "'null'" : name), true);
+				disconnected();
+			} catch (ClassNotFoundException e)
+			{
+				listener.stat("Problem reading from stream. Client dropped. Name: " + (name == null ? "'null'" : name)
+						, true);
+				disconnected();
+			}
+		}
+
+		/**
+		 * Decodes a frame. An uncompressed one is decoded to relay, as its frame is kept if it is a file chunk.
+		 * A compressed one is an error if the server does not take compressed frames.
+		 */
+		private IMessage decode(int prefix, byte[] payload, int offset, int length)
+				throws IOException, ClassNotFoundException
+		{
+			if (!Deflate.isCompressed(prefix))
+				return codec.decodeToRelay(payload, offset, length);
+			if (!server.takesCompressed())
+				throw new StreamCorruptedException("A compressed frame, though compression was not agreed on");
+			if (decompressor == null)
+				decompressor = new Deflate.Decompressor();
+			return decompressor.decode(codec, payload, offset, length);
+		}
+
+		/**
+		 * The same login / message flow as {@link ChatServer}'s blocking Handler.
+		 */
+		private void received(IMessage obj) throws IOException
+		{
+			if (!(obj instanceof IClientMessage))
+			{
+				listener.stat("A non-client send was received. Message dropped.", true);
+				return;
+			}
+
+			IClientMessage message = (IClientMessage) obj;
+			if (name == null)
+			{
+				if (closing)
+					return; // turned away
+				if (message instanceof LoginMessage && !server.loginAllowed(channel.socket().getInetAddress(), this))
+					return;
+				server.messageReceived(message, this);
+				if (message instanceof LoginMessage)
+				{
+					pending.compress(server.compressorFor(message));
+					if (server.clientConnected(message, this))
+					{
+						name = message.getSource();
+						handshaking = false;
+						server.admission.handshakeEnded();
+					}
+				} else
+				{
+					sendLoginRequest();
+				}
+			} else if (message instanceof LoginMessage)
+			{
+				if (server.clientLogout(message, this))
+				{
+					name = null;
+					close();
+				}
+			} else
+			{
+				server.messageReceived(message, this);
+			}
+		}
+
+		private void disconnected()
+		{
+			if (name != null)
+			{
+				server.clientDisconnected(name, this);
+				name = null;
+			}
+			close();
+		}
+	}
+
+	/**
+	 * A session held back until the clients it sent to have room in their queues, or the deadline passes.
+	 * Only the loop's thread touches it.
+	 */
+	private static final class Pause
+	{
+		final Session session;
+		final Collection<ClientConnection> full;
+		final long deadline;
+		// the clients that have not made room yet
+		int waiting;
+		boolean over = false;
+
+		Pause(Session session, Collection<ClientConnection> full, long deadline)
+		{
+			this.session = session;
+			this.full = full;
+			this.deadline = deadline;
+			this.waiting = full.size();
+		}
+
+		void roomMade()
+		{
+			if (!over && --waiting == 0)
+				session.resume(this);
+		}
+	}
+}
@@ -0,0 +1,400 @@
+package my_chat.serverside;
+
+import my_chat.data_transfer.LatencyHistogram;
+import my_chat.message_types.IMessage;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * What a server has done since it was created: logins, messages and bytes each way, and how long messages wait for
+ * the sequencer, take to fan out and take to reach the socket.
+ * <p>
+ * Recording is a few striped adds and never locks, so the threads that read, sequence and write messages can all
+ * record at once without contending. Read everything at once with {@link #snapshot()}, or through JMX.
+ *
+ * @author Elisha
+ */
+public class ServerMetrics implements ServerMetricsMXBean
+{
+	/**
+	 * The shortest window the JMX rates are averaged over.
+	 */
+	public static final int RATE_WINDOW_SECONDS = 10;
+	private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(RATE_WINDOW_SECONDS);
+
+	private final IntSupplier connectedClients;
+	private final LongAdder logins = new LongAdder();
+	private final LongAdder rejectedLogins = new LongAdder();
+	private final LongAdder busy = new LongAdder();
+	private final LongAdder handshakeTimeouts = new LongAdder();
+	private final LongAdder idleEvictions = new LongAdder();
+	private final LongAdder overflowDrops = new LongAdder();
+	private final ConcurrentHashMap<Class<?>, LongAdder> received = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Class<?>, LongAdder> sent = new ConcurrentHashMap<>();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+	private final LatencyHistogram lockWait = new LatencyHistogram();
+	private final LatencyHistogram fanOut = new LatencyHistogram();
+	private final LatencyHistogram delivery = new LatencyHistogram();
+
+	// the JMX rates are between these two snapshots
+	private final ReentrantLock rateLock = new ReentrantLock();
+	private Snapshot rateFrom, rateTo;
+
+	/**
+	 * @param connectedClients counts the logged in clients.
+	 */
+	ServerMetrics(IntSupplier connectedClients)
+	{
+		this.connectedClients = connectedClients;
+		rateFrom = rateTo = snapshot();
+	}
+
+	void login(boolean accepted)
+	{
+		(accepted ? logins : rejectedLogins).increment();
+	}
+
+	/**
+	 * Counts a connection that was told the server is busy.
+	 */
+	void busy()
+	{
+		busy.increment();
+	}
+
+	/**
+	 * Counts a connection that was closed because it did not log in in time.
+	 */
+	void handshakeTimedOut()
+	{
+		handshakeTimeouts.increment();
+	}
+
+	/**
+	 * Counts a client that was dropped because it did not answer a heartbeat.
+	 */
+	void idleEvicted()
+	{
+		idleEvictions.increment();
+	}
+
+	/**
+	 * Counts a message that was dropped from a full outbound queue, see {@link OverflowPolicy#DROP_OLDEST}.
+	 */
+	void overflowDropped()
+	{
+		overflowDrops.increment();
+	}
+
+	/**
+	 * @param message    a message a client sent.
+	 * @param frameBytes its size on the wire, length prefix included.
+	 */
+	void received(IMessage message, int frameBytes)
+	{
+		counter(received, message).increment();
+		bytesIn.add(frameBytes);
+	}
+
+	/**
+	 * @param frame      a frame that was written to a client.
+	 * @param frameBytes its size.
+	 */
+	void sent(Frame frame, int frameBytes)
+	{
+		counter(sent, frame.message).increment();
+		bytesOut.add(frameBytes);
+		delivery.record(System.nanoTime() - frame.createdAt);
+	}
+
+	/**
+	 * @param bytes bytes written to a client that are not a message of their own, such as the header of a batch.
+	 */
+	void sentOverhead(int bytes)
+	{
+		bytesOut.add(bytes);
+	}
+
+	/**
+	 * @param nanos how long a message waited for the sequencer.
+	 */
+	void lockWait(long nanos)
+	{
+		lockWait.record(nanos);
+	}
+
+	/**
+	 * @param nanos how long it took to number a message and queue it for every recipient.
+	 */
+	void fanOut(long nanos)
+	{
+		fanOut.record(nanos);
+	}
+
+	private static LongAdder counter(ConcurrentHashMap<Class<?>, LongAdder> counters, IMessage message)
+	{
+		var counter = counters.get(message.getClass());
+		if (counter == null)
+			counter = counters.computeIfAbsent(message.getClass(), type -> new LongAdder());
+		return counter;
+	}
+
+	/**
+	 * @return every metric as it is now. Events recorded meanwhile may or may not be included.
+	 */
+	public Snapshot snapshot()
+	{
+		return new Snapshot(this);
+	}
+
+	@Override
+	public int getConnectedClients()
+	{
+		return connectedClients.getAsInt();
+	}
+
+	@Override
+	public long getLogins()
+	{
+		return logins.sum();
+	}
+
+	@Override
+	public long getRejectedLogins()
+	{
+		return rejectedLogins.sum();
+	}
+
+	@Override
+	public long getBusyResponses()
+	{
+		return busy.sum();
+	}
+
+	@Override
+	public long getHandshakeTimeouts()
+	{
+		return handshakeTimeouts.sum();
+	}
+
+	@Override
+	public long getIdleEvictions()
+	{
+		return idleEvictions.sum();
+	}
+
+	@Override
+	public long getOverflowDrops()
+	{
+		return overflowDrops.sum();
+	}
+
+	@Override
+	public double getLoginsPerSecond()
+	{
+		return rate(s -> s.logins);
+	}
+
+	@Override
+	public double getRejectedLoginsPerSecond()
+	{
+		return rate(s -> s.rejectedLogins);
+	}
+
+	@Override
+	public Map<String, Long> getMessagesReceived()
+	{
+		return byName(received);
+	}
+
+	@Override
+	public Map<String, Long> getMessagesSent()
+	{
+		return byName(sent);
+	}
+
+	@Override
+	public double getMessagesReceivedPerSecond()
+	{
+		return rate(Snapshot::totalReceived);
+	}
+
+	@Override
+	public double getMessagesSentPerSecond()
+	{
+		return rate(Snapshot::totalSent);
+	}
+
+	@Override
+	public long getBytesIn()
+	{
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut()
+	{
+		return bytesOut.sum();
+	}
+
+	@Override
+	public LatencyHistogram.Summary getLockWait()
+	{
+		return lockWait.summary();
+	}
+
+	@Override
+	public LatencyHistogram.Summary getFanOut()
+	{
+		return fanOut.summary();
+	}
+
+	@Override
+	public LatencyHistogram.Summary getDelivery()
+	{
+		return delivery.summary();
+	}
+
+	/**
+	 * Takes a new snapshot if the last one is a window old, and returns the rate between the last two.
+	 */
+	private double rate(ToLongFunction<Snapshot> counter)
+	{
+		rateLock.lock();
+		try
+		{
+			if (System.nanoTime() - rateTo.takenAt >= RATE_WINDOW_NANOS)
+			{
+				rateFrom = rateTo;
+				rateTo = snapshot();
+			}
+			// no complete window yet: the rate so far
+			if (rateTo == rateFrom)
+				return snapshot().perSecond(rateFrom, counter);
+			return rateTo.perSecond(rateFrom, counter);
+		} finally
+		{
+			rateLock.unlock();
+		}
+	}
+
+	private static Map<String, Long> byName(ConcurrentHashMap<Class<?>, LongAdder> counters)
+	{
+		var counts = new TreeMap<String, Long>();
+		for (var counter : counters.entrySet())
+			counts.put(counter.getKey().getSimpleName(), counter.getValue().sum());
+		return Collections.unmodifiableMap(counts);
+	}
+
+	/**
+	 * The metrics at one moment. Times are in nanoseconds.
+	 */
+	public static final class Snapshot
+	{
+		/**
+		 * When the snapshot was taken, by {@link System#nanoTime()}.
+		 */
+		public final long takenAt;
+		public final int connectedClients;
+		public final long logins, rejectedLogins;
+		/**
+		 * Connections told the server is busy, and connections closed for not logging in in time.
+		 */
+		public final long busyResponses, handshakeTimeouts;
+		/**
+		 * Clients dropped for not answering a heartbeat.
+		 */
+		public final long idleEvictions;
+		/**
+		 * Messages dropped from full outbound queues, so that their clients never got them.
+		 */
+		public final long overflowDrops;
+		/**
+		 * Message counts by the simple name of the message class.
+		 */
+		public final Map<String, Long> messagesReceived, messagesSent;
+		/**
+		 * Bytes read from and written to the clients, length prefixes included.
+		 */
+		public final long bytesIn, bytesOut;
+		/**
+		 * How long messages waited for the sequencer.
+		 */
+		public final LatencyHistogram.Summary lockWait;
+		/**
+		 * How long it took to number a message and queue it for every recipient.
+		 */
+		public final LatencyHistogram.Summary fanOut;
+		/**
+		 * How long frames took from being created to being written to a client's socket.
+		 */
+		public final LatencyHistogram.Summary delivery;
+
+		private Snapshot(ServerMetrics metrics)
+		{
+			takenAt = System.nanoTime();
+			connectedClients = metrics.getConnectedClients();
+			logins = metrics.getLogins();
+			rejectedLogins = metrics.getRejectedLogins();
+			busyResponses = metrics.getBusyResponses();
+			handshakeTimeouts = metrics.getHandshakeTimeouts();
+			idleEvictions = metrics.getIdleEvictions();
+			overflowDrops = metrics.getOverflowDrops();
+			messagesReceived = metrics.getMessagesReceived();
+			messagesSent = metrics.getMessagesSent();
+			bytesIn = metrics.getBytesIn();
+			bytesOut = metrics.getBytesOut();
+			lockWait = metrics.getLockWait();
+			fanOut = metrics.getFanOut();
+			delivery = metrics.getDelivery();
+		}
+
+		/**
+		 * @return the number of messages received, of every type.
+		 */
+		public long totalReceived()
+		{
+			return messagesReceived.values().stream().mapToLong(Long::longValue).sum();
+		}
+
+		/**
+		 * @return the number of messages sent, of every type.
+		 */
+		public long totalSent()
+		{
+			return messagesSent.values().stream().mapToLong(Long::longValue).sum();
+		}
+
+		/**
+		 * @param earlier an earlier snapshot of the same server.
+		 * @param counter one of the counters, e.g. {@code s -> s.logins}.
+		 * @return how much the counter grew per second between the two snapshots, or 0 if they are the same.
+		 */
+		public double perSecond(Snapshot earlier, ToLongFunction<Snapshot> counter)
+		{
+			long nanos = takenAt - earlier.takenAt;
+			if (nanos <= 0)
+				return 0;
+			return (counter.applyAsLong(this) - counter.applyAsLong(earlier)) * 1e9 / nanos;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "clients " + connectedClients + ", logins " + logins + " (" + rejectedLogins + " rejected, "
+					+ busyResponses + " busy, " + handshakeTimeouts + " timed out), " + idleEvictions + " idle dropped, "
+					+ overflowDrops + " overflow dropped, received " + messagesReceived + " (" + bytesIn
+					+ " bytes), sent " + messagesSent + " (" + bytesOut + " bytes)\nlock wait " + lockWait
+					+ "\nfan-out " + fanOut + "\ndelivery " + delivery;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package my_chat.serverside;
+
+import my_chat.data_transfer.LatencyHistogram;
+
+import java.util.Map;
+
+/**
+ * The server's metrics as JMX attributes. Times are in nanoseconds.
+ * The rates are averages over the last complete window of at least {@link ServerMetrics#RATE_WINDOW_SECONDS}
+ * seconds, so every console sees the same figures no matter how often it polls. Until the first window completes,
+ * they are averages since the server was created.
+ *
+ * @author Elisha
+ */
+public interface ServerMetricsMXBean
+{
+	int getConnectedClients();
+
+	long getLogins();
+
+	long getRejectedLogins();
+
+	long getBusyResponses();
+
+	long getHandshakeTimeouts();
+
+	long getIdleEvictions();
+
+	long getOverflowDrops();
+
+	double getLoginsPerSecond();
+
+	double getRejectedLoginsPerSecond();
+
+	Map<String, Long> getMessagesReceived();
+
+	Map<String, Long> getMessagesSent();
+
+	double getMessagesReceivedPerSecond();
+
+	double getMessagesSentPerSecond();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	LatencyHistogram.Summary getLockWait();
+
+	LatencyHistogram.Summary getFanOut();
+
+	LatencyHistogram.Summary getDelivery();
+}
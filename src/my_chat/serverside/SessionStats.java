@@ -0,0 +1,85 @@
+package my_chat.serverside;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traffic counters for one client connection.
+ * The reading thread updates the inbound counters and the writing thread the outbound ones, and anyone may read them.
+ *
+ * @author Elisha
+ */
+public class SessionStats
+{
+	private final long connectedAt = System.currentTimeMillis();
+	private final AtomicLong messagesIn = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong messagesOut = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+
+	void received(int frameBytes)
+	{
+		messagesIn.incrementAndGet();
+		bytesIn.addAndGet(frameBytes);
+	}
+
+	void sent(int frameBytes)
+	{
+		messagesOut.incrementAndGet();
+		bytesOut.addAndGet(frameBytes);
+	}
+
+	/**
+	 * @param bytes bytes written that are not a message of their own, such as the header of a batch.
+	 */
+	void sentOverhead(int bytes)
+	{
+		bytesOut.addAndGet(bytes);
+	}
+
+	/**
+	 * @return when the client connected, in milliseconds since the epoch.
+	 */
+	public long getConnectedAt()
+	{
+		return connectedAt;
+	}
+
+	/**
+	 * @return the number of messages read from the client.
+	 */
+	public long getMessagesIn()
+	{
+		return messagesIn.get();
+	}
+
+	/**
+	 * @return the number of bytes read from the client, length prefixes included.
+	 */
+	public long getBytesIn()
+	{
+		return bytesIn.get();
+	}
+
+	/**
+	 * @return the number of messages written to the client.
+	 */
+	public long getMessagesOut()
+	{
+		return messagesOut.get();
+	}
+
+	/**
+	 * @return the number of bytes written to the client, length prefixes included.
+	 */
+	public long getBytesOut()
+	{
+		return bytesOut.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return getMessagesIn() + " in (" + getBytesIn() + " bytes), " + getMessagesOut() + " out (" + getBytesOut()
+				+ " bytes), connected for " + (System.currentTimeMillis() - connectedAt) / 1000 + " s";
+	}
+}
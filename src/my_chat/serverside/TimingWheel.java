@@ -0,0 +1,195 @@
+package my_chat.serverside;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel: one thread keeps the timers of every connection, instead of a timer or a sleeping thread for
+ * each. The wheel is a ring of slots, each a list of timers, and a hand that moves one slot every tick. A timer goes in
+ * the slot the hand will be at when it is due, with the number of turns the hand has to make first, so scheduling and
+ * cancelling take constant time however many timers there are, and a tick only looks at one slot.
+ * <p>
+ * Timers fire up to a tick late. Other threads hand new and cancelled timers to the wheel's thread through queues, so
+ * the slots are only ever touched by that thread and need no lock. Tasks run on the wheel's thread too, so they must
+ * be short: queueing a message or closing a connection, not writing to one.
+ *
+ * @author Elisha
+ */
+final class TimingWheel
+{
+	private final long tickNanos;
+	private final Timer[] slots;
+	private final int mask;
+	private final long start = System.nanoTime();
+	private final ConcurrentLinkedQueue<Timer> added = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<Timer> removed = new ConcurrentLinkedQueue<>();
+	private final Thread thread;
+	private volatile boolean running = true;
+	// the tick the hand is at; only the wheel's thread uses it
+	private long tick = 0;
+
+	/**
+	 * Starts the wheel's thread.
+	 *
+	 * @param name       the name of the thread.
+	 * @param tickMillis how far apart the ticks are.
+	 * @param slots      the number of slots, rounded up to a power of two. Timers due within a turn of the wheel,
+	 *                   slots times the tick, take no extra work.
+	 */
+	TimingWheel(String name, long tickMillis, int slots)
+	{
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+		int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+		this.slots = new Timer[size];
+		this.mask = size - 1;
+		thread = new Thread(this::run, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Schedules a task. It may be called from any thread, including from a task.
+	 *
+	 * @param delayMillis how long from now the task is due.
+	 * @param task        the task, which runs once on the wheel's thread.
+	 * @return the timer, to cancel the task.
+	 */
+	Timer schedule(long delayMillis, Runnable task)
+	{
+		var timer = new Timer(task, System.nanoTime() - start + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+		added.add(timer);
+		return timer;
+	}
+
+	/**
+	 * Stops the wheel's thread. The timers that are left never fire.
+	 */
+	void stop()
+	{
+		running = false;
+		LockSupport.unpark(thread);
+	}
+
+	private void run()
+	{
+		while (running)
+		{
+			long next = (tick + 1) * tickNanos;
+			long wait;
+			while (running && (wait = next - (System.nanoTime() - start)) > 0)
+			{
+				LockSupport.parkNanos(this, wait);
+			}
+			if (!running)
+				break;
+
+			// timers added during this tick that are due now fire in it
+			addTimers();
+			removeCancelled();
+			expire((int) (tick & mask));
+			tick++;
+		}
+		added.clear();
+		removed.clear();
+	}
+
+	private void addTimers()
+	{
+		Timer timer;
+		while ((timer = added.poll()) != null)
+		{
+			if (timer.cancelled)
+				continue;
+			long due = Math.max(timer.deadline / tickNanos, tick);
+			timer.rounds = (due - tick) / slots.length;
+			int slot = (int) (due & mask);
+			timer.slot = slot;
+			timer.next = slots[slot];
+			if (timer.next != null)
+				timer.next.previous = timer;
+			slots[slot] = timer;
+		}
+	}
+
+	private void removeCancelled()
+	{
+		Timer timer;
+		while ((timer = removed.poll()) != null)
+		{
+			unlink(timer);
+		}
+	}
+
+	private void expire(int slot)
+	{
+		var timer = slots[slot];
+		while (timer != null)
+		{
+			var next = timer.next;
+			if (timer.rounds > 0)
+			{
+				timer.rounds--;
+			} else
+			{
+				unlink(timer);
+				try
+				{
+					if (!timer.cancelled)
+						timer.task.run();
+				} catch (RuntimeException e)
+				{
+					e.printStackTrace();
+				}
+			}
+			timer = next;
+		}
+	}
+
+	private void unlink(Timer timer)
+	{
+		if (timer.slot < 0)
+			return;
+		if (timer.previous != null)
+			timer.previous.next = timer.next;
+		else
+			slots[timer.slot] = timer.next;
+		if (timer.next != null)
+			timer.next.previous = timer.previous;
+		timer.previous = timer.next = null;
+		timer.slot = -1;
+	}
+
+	/**
+	 * A scheduled task.
+	 */
+	final class Timer
+	{
+		private final Runnable task;
+		// nanoseconds after the wheel started
+		private final long deadline;
+		private volatile boolean cancelled = false;
+		// where the wheel's thread keeps it
+		private long rounds;
+		private int slot = -1;
+		private Timer previous, next;
+
+		private Timer(Runnable task, long deadline)
+		{
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the task, and lets go of it by the next tick. A task that is due as it is cancelled may still run.
+		 */
+		void cancel()
+		{
+			if (!cancelled)
+			{
+				cancelled = true;
+				removed.add(this);
+			}
+		}
+	}
+}
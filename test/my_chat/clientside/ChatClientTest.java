@@ -0,0 +1,192 @@
+package my_chat.clientside;
+
+import my_chat.data_transfer.ChatListener;
+import my_chat.data_transfer.MessageCodec;
+import my_chat.data_transfer.MessageInput;
+import my_chat.data_transfer.MessageOutput;
+import my_chat.message_types.IMessage;
+import my_chat.message_types.LoginResponseMessage;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author Elisha
+ */
+class ChatClientTest
+{
+	private static final ChatListener QUIET = new ChatListener()
+	{
+		@Override
+		public void messageReceived(IMessage message)
+		{
+		}
+
+		@Override
+		public void messageSent(IMessage message)
+		{
+		}
+
+		@Override
+		public void stat(String message, boolean err)
+		{
+		}
+	};
+
+	/**
+	 * A server that logs the client in and then stops reading, so the socket and then the send queue fill up, and
+	 * resets the connection while a caller waits for room. The caller, the writer and the reader must all let go.
+	 */
+	@Test
+	void fullSendQueueOnBrokenSocket() throws Exception
+	{
+		try (var server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress()))
+		{
+			var client = newClient(server);
+			var reader = new Thread(client, "reader");
+			reader.start();
+			var socket = logIn(server);
+			var sent = new ArrayList<CompletableFuture<Void>>();
+			var sender = fill(client, sent);
+
+			socket.setSoLinger(true, 0);
+			socket.close();
+
+			sender.join(TimeUnit.SECONDS.toMillis(5));
+			assertFalse(sender.isAlive(), "the sender is still waiting for room");
+			reader.join(TimeUnit.SECONDS.toMillis(5));
+			assertFalse(reader.isAlive(), "the reader did not stop");
+			assertFalse(client.isRunning());
+			assertTrue(anyFailed(sent), "no send failed though the connection broke");
+			assertTrue(client.messageAll("late").isCompletedExceptionally());
+		}
+	}
+
+	/**
+	 * A server that logs the client in and then stops reading, but keeps the connection open. Stopping the client
+	 * must not wait behind the caller stuck on the full queue, nor for the writer stuck on the socket.
+	 */
+	@Test
+	void fullSendQueueOnStalledServer() throws Exception
+	{
+		try (var server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress()))
+		{
+			var client = newClient(server);
+			var reader = new Thread(client, "reader");
+			reader.start();
+			var socket = logIn(server);
+			try
+			{
+				var sent = new ArrayList<CompletableFuture<Void>>();
+				var sender = fill(client, sent);
+
+				var stopper = new Thread(client::stop, "stopper");
+				stopper.start();
+				stopper.join(TimeUnit.SECONDS.toMillis(5));
+				assertFalse(stopper.isAlive(), "stop() waited for the stalled server");
+
+				sender.join(TimeUnit.SECONDS.toMillis(5));
+				assertFalse(sender.isAlive(), "the sender is still waiting for room");
+				reader.join(TimeUnit.SECONDS.toMillis(5));
+				assertFalse(reader.isAlive(), "the reader did not stop");
+				assertFalse(client.isRunning());
+				assertTrue(anyFailed(sent), "every send went through to a server that does not read");
+			} finally
+			{
+				socket.close();
+			}
+		}
+	}
+
+	private static ChatClient newClient(ServerSocket server)
+	{
+		var client = new ChatClient(QUIET, server.getInetAddress().getHostAddress());
+		client.setPort(server.getLocalPort());
+		client.setCodec(MessageCodec.BINARY);
+		client.setCompression(0);
+		client.setSendQueue(4);
+		client.updateName("alice");
+		return client;
+	}
+
+	/**
+	 * Accepts the client and logs it in, and then reads nothing more.
+	 */
+	private static Socket logIn(ServerSocket server) throws Exception
+	{
+		var socket = server.accept();
+		var in = new MessageInput(new BufferedInputStream(socket.getInputStream()), MessageCodec.BINARY);
+		in.readMessage();
+		var out = new MessageOutput(socket.getOutputStream(), MessageCodec.BINARY);
+		out.writeMessage(new LoginResponseMessage(true, false, "alice"));
+		out.flush();
+		return socket;
+	}
+
+	/**
+	 * Sends far more than the socket buffers hold from another thread, and returns once it is stuck on the full
+	 * queue.
+	 */
+	private static Thread fill(ChatClient client, List<CompletableFuture<Void>> sent) throws InterruptedException
+	{
+		var text = "x".repeat(64 << 10);
+		var queued = new AtomicInteger();
+		var sender = new Thread(() -> {
+			for (int i = 0; i < 1024; i++)
+			{
+				var future = client.messageAll(text);
+				synchronized (sent)
+				{
+					sent.add(future);
+				}
+				queued.incrementAndGet();
+			}
+		}, "sender");
+		sender.start();
+
+		int last;
+		do
+		{
+			last = queued.get();
+			Thread.sleep(300);
+		} while (queued.get() != last);
+		assertTrue(sender.isAlive(), "the queue never filled up");
+		return sender;
+	}
+
+	/**
+	 * Waits for every send to complete, and tells whether any failed.
+	 */
+	private static boolean anyFailed(List<CompletableFuture<Void>> sent) throws Exception
+	{
+		List<CompletableFuture<Void>> futures;
+		synchronized (sent)
+		{
+			futures = new ArrayList<>(sent);
+		}
+		boolean failed = false;
+		for (var future : futures)
+		{
+			try
+			{
+				future.get(5, TimeUnit.SECONDS);
+			} catch (ExecutionException e)
+			{
+				failed = true;
+			}
+		}
+		return failed;
+	}
+}